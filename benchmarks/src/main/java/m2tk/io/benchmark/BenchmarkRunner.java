@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试入口。
+ * <p>
+ * 在JMH命令行参数的基础上默认开启GC分析（分配速率），并把结果以JSON格式写入target/jmh-result.json，
+ * 便于在版本之间比较。命令行中给出的-rf/-rff参数优先。
+ */
+public final class BenchmarkRunner
+{
+    private BenchmarkRunner()
+    {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException
+    {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.addProfiler(GCProfiler.class);
+        if (!cmdOptions.getResultFormat().hasValue())
+            builder.resultFormat(ResultFormatType.JSON);
+        if (!cmdOptions.getResult().hasValue())
+            builder.result("target/jmh-result.json");
+
+        Options options = builder.parent(cmdOptions).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.benchmark;
+
+import m2tk.io.ProtocolManager;
+import m2tk.io.RxChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileRxChannel读取性能。
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FileRxBenchmark
+{
+    @Param({"188", "1316", "65536"})
+    public int readSize;
+
+    @Param({"false", "true"})
+    public boolean mmap;
+
+    @Param({"256"})
+    public int fileSizeMB;
+
+    private File file;
+    private RxChannel channel;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        file = Fixtures.tsFile(fileSizeMB);
+        channel = ProtocolManager.openRxChannel(file.toURI() + (mmap ? "?mmap=true" : ""));
+        channel.control("rewind", true);
+        buffer = ByteBuffer.allocateDirect(readSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        channel.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int read(Traffic traffic) throws IOException
+    {
+        buffer.clear();
+        int n = channel.read(buffer);
+        traffic.add(n);
+        return n;
+    }
+}
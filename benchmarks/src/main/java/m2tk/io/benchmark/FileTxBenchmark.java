@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.benchmark;
+
+import m2tk.io.ProtocolManager;
+import m2tk.io.TxChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileTxChannel写入性能（不限速）。
+ * <p>
+ * 写满一个文件后重新打开，避免测到通道达到容量上限后的回绕等待。
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FileTxBenchmark
+{
+    private static final long FILE_LIMIT = 256L * 1024 * 1024;
+
+    @Param({"188", "1316", "65424"})
+    public int writeSize;
+
+    private File file;
+    private TxChannel channel;
+    private ByteBuffer buffer;
+    private long written;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        file = Fixtures.tempFile("m2tk-bench-tx");
+        buffer = Fixtures.packets(writeSize / 188, true);
+        reopen();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        channel.close();
+        file.delete();
+    }
+
+    private void reopen() throws IOException
+    {
+        if (channel != null)
+            channel.close();
+        channel = ProtocolManager.openTxChannel(file.toURI().toString());
+        written = 0;
+    }
+
+    @Benchmark
+    public void write(Traffic traffic) throws IOException
+    {
+        if (written + writeSize > FILE_LIMIT)
+            reopen();
+
+        buffer.rewind();
+        channel.write(buffer);
+        written += writeSize;
+        traffic.add(writeSize);
+    }
+}
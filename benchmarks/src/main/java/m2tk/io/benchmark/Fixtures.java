@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基准测试公用的测试数据。
+ */
+final class Fixtures
+{
+    private Fixtures()
+    {
+    }
+
+    /**
+     * 测试文件所在目录：优先使用系统属性m2tk.bench.dir，其次使用tmpfs（/dev/shm），最后使用系统临时目录。
+     */
+    static File workDir()
+    {
+        String dir = System.getProperty("m2tk.bench.dir");
+        if (dir != null)
+            return new File(dir);
+
+        File shm = new File("/dev/shm");
+        if (shm.isDirectory() && shm.canWrite())
+            return shm;
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    static File tempFile(String prefix) throws IOException
+    {
+        File file = File.createTempFile(prefix, ".ts", workDir());
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * 组播通道的引擎参数。socket引擎不能指定网络接口（指定后会改用nio引擎），使用第一个可用的非回环接口。
+     */
+    static String multicastOptions(String engine, String nif)
+    {
+        return "socket".equals(engine) ? "engine=socket" : "engine=" + engine + "&nif=" + nif;
+    }
+
+    /**
+     * 生成由TS包组成的测试数据块（PID依次递增，负载为伪随机数据）。
+     */
+    static ByteBuffer packets(int count, boolean direct)
+    {
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(count * 188) : ByteBuffer.allocate(count * 188);
+        int seed = 0x2468ACE;
+        for (int i = 0; i < count; i++)
+        {
+            int pid = 0x100 + (i % 16);
+            buf.put((byte) 0x47);
+            buf.put((byte) (pid >> 8));
+            buf.put((byte) pid);
+            buf.put((byte) (0x10 | (i & 0x0F)));
+            for (int j = 4; j < 188; j++)
+            {
+                seed = seed * 1103515245 + 12345;
+                buf.put((byte) (seed >> 16));
+            }
+        }
+        return buf.flip();
+    }
+
+    /**
+     * 生成指定大小（MB）的TS测试文件。
+     */
+    static File tsFile(int sizeMB) throws IOException
+    {
+        File file = tempFile("m2tk-bench-rx");
+        ByteBuffer block = packets(1024, true);
+        long total = sizeMB * 1024L * 1024L / 188 * 188;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            FileChannel channel = raf.getChannel();
+            long written = 0;
+            while (written < total)
+            {
+                block.rewind();
+                block.limit((int) Math.min(block.capacity(), total - written));
+                written += channel.write(block);
+            }
+        }
+        return file;
+    }
+}
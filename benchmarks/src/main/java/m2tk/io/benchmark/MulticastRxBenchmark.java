@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.benchmark;
+
+import m2tk.io.ProtocolManager;
+import m2tk.io.RxChannel;
+import m2tk.io.TxChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 组播输入通道接收性能（回环接口）。
+ * <p>
+ * 后台线程经回环接口持续发送报文（可限速），基准方法从输入通道读取。网络接口可通过系统属性m2tk.bench.nif指定，默认为lo；
+ * socket引擎不能指定网络接口，收发双方都使用第一个可用的非回环接口（依靠组播回送）。
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MulticastRxBenchmark
+{
+    @Param({"socket", "nio", "reactor"})
+    public String engine;
+
+    @Param({"188", "1316"})
+    public int readSize;
+
+    @Param({"200000000"})
+    public int senderBitrate;
+
+    private RxChannel channel;
+    private Thread sender;
+    private volatile boolean running;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        String nif = System.getProperty("m2tk.bench.nif", "lo");
+        String group = "udp://239.255.77.1:17001";
+
+        channel = ProtocolManager.openRxChannel(group + "?" + Fixtures.multicastOptions(engine, nif) + "&ring=4096");
+        channel.control("timeout", 5000);
+        buffer = ByteBuffer.allocateDirect(readSize);
+
+        TxChannel tx = ProtocolManager.openTxChannel(group + "?" + Fixtures.multicastOptions("socket".equals(engine) ? "socket" : "nio", nif));
+        tx.control("bitrate", senderBitrate);
+        running = true;
+        sender = new Thread(() -> {
+            ByteBuffer frames = Fixtures.packets(70, true);
+            try (TxChannel out = tx)
+            {
+                while (running)
+                {
+                    frames.rewind();
+                    out.write(frames);
+                }
+            } catch (IOException ex)
+            {
+                ex.printStackTrace(System.err);
+            }
+        }, "bench-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        running = false;
+        sender.join(5000);
+        channel.close();
+    }
+
+    @Benchmark
+    public int read(Traffic traffic) throws IOException
+    {
+        buffer.clear();
+        int n = channel.read(buffer);
+        traffic.add(n);
+        return n;
+    }
+}
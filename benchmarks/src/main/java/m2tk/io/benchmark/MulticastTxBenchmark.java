@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.benchmark;
+
+import m2tk.io.ProtocolManager;
+import m2tk.io.TxChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 组播输出通道发送性能（回环接口，不限速）。
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MulticastTxBenchmark
+{
+    @Param({"socket", "nio"})
+    public String engine;
+
+    @Param({"1316", "13160"})
+    public int writeSize;
+
+    private TxChannel channel;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        String nif = System.getProperty("m2tk.bench.nif", "lo");
+        channel = ProtocolManager.openTxChannel("udp://239.255.77.2:17002?" + Fixtures.multicastOptions(engine, nif));
+        buffer = Fixtures.packets(writeSize / 188, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        channel.close();
+    }
+
+    @Benchmark
+    public void write(Traffic traffic) throws IOException
+    {
+        buffer.rewind();
+        channel.write(buffer);
+        traffic.add(writeSize);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io;
+
+/**
+ * 通道统计数据快照
+ * <p>
+ * 通过{@code query("stats")}获取，各项计数均为自通道打开（或上次{@code control("stats.reset")}）以来的累计值。
+ */
+public final class ChannelStatistics
+{
+    private final long elapsedNanos;
+    private final long bytes;
+    private final long packets;
+    private final long calls;
+    private final long blockedNanos;
+    private final long wraps;
+    private final long drops;
+    private final long pacingLagNanos;
+
+    /**
+     * @param elapsedNanos 统计时长（纳秒）
+     * @param bytes 读取或写入的字节数
+     * @param packets 读取或写入的TS包数
+     * @param calls read/write调用次数
+     * @param blockedNanos 阻塞等待（接收、限速、休眠）的累计时间（纳秒）
+     * @param wraps 回绕次数
+     * @param drops 丢弃的报文或数据块数量
+     * @param pacingLagNanos 最近一次限速输出落后于计划的时间（纳秒）
+     */
+    public ChannelStatistics(long elapsedNanos, long bytes, long packets, long calls,
+                             long blockedNanos, long wraps, long drops, long pacingLagNanos)
+    {
+        this.elapsedNanos = elapsedNanos;
+        this.bytes = bytes;
+        this.packets = packets;
+        this.calls = calls;
+        this.blockedNanos = blockedNanos;
+        this.wraps = wraps;
+        this.drops = drops;
+        this.pacingLagNanos = pacingLagNanos;
+    }
+
+    /**
+     * @return 统计时长（纳秒）
+     */
+    public long getElapsedNanos()
+    {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return 读取或写入的字节数
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return 读取或写入的TS包数
+     */
+    public long getPackets()
+    {
+        return packets;
+    }
+
+    /**
+     * @return read/write调用次数
+     */
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * @return 阻塞等待（接收、限速、休眠）的累计时间（纳秒）
+     */
+    public long getBlockedNanos()
+    {
+        return blockedNanos;
+    }
+
+    /**
+     * @return 回绕次数（输入文件重新从头读取，或输出文件达到容量上限后从头覆盖）
+     */
+    public long getWraps()
+    {
+        return wraps;
+    }
+
+    /**
+     * @return 丢弃的报文或数据块数量（如接收队列溢出）
+     */
+    public long getDrops()
+    {
+        return drops;
+    }
+
+    /**
+     * @return 最近一次限速输出落后于计划的时间（纳秒），0表示按计划输出
+     */
+    public long getPacingLagNanos()
+    {
+        return pacingLagNanos;
+    }
+
+    /**
+     * @return 平均码率（bps）
+     */
+    public long getBitrate()
+    {
+        return (elapsedNanos <= 0) ? 0 : (long) (bytes * 8 * 1e9 / elapsedNanos);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ChannelStatistics{" +
+               "elapsedNanos=" + elapsedNanos +
+               ", bytes=" + bytes +
+               ", packets=" + packets +
+               ", calls=" + calls +
+               ", blockedNanos=" + blockedNanos +
+               ", wraps=" + wraps +
+               ", drops=" + drops +
+               ", pacingLagNanos=" + pacingLagNanos +
+               '}';
+    }
+}
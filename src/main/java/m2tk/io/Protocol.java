@@ -22,6 +22,18 @@ import java.io.IOException;
  */
 public interface Protocol extends Queryable
 {
+    /**
+     * 获取当前协议处理的URI协议名（scheme），用于按资源描述的协议名直接定位协议实例。
+     * <p>
+     * 返回空数组表示协议名不固定，此时由{@link #accepts(String)}逐个判断。
+     *
+     * @return URI协议名列表（不区分大小写）
+     */
+    default String[] getSchemes()
+    {
+        return new String[0];
+    }
+
     /**
      * 查询当前协议是否支持流通道资源描述。
      *
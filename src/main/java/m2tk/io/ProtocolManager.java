@@ -16,24 +16,43 @@
 package m2tk.io;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.ServiceLoader;
 
 /**
  * 基于SPI模式加载当前Classpath中的Protocol实例。
+ * <p>
+ * 协议实例按URI协议名（scheme）建立索引，打开通道时只询问声明了该协议名的协议，
+ * 以及没有声明协议名的协议。
  */
 public final class ProtocolManager
 {
     private static final List<Protocol> PROTOCOLS;
+    private static final Map<String, List<Protocol>> SCHEMES;
+    private static final List<Protocol> UNINDEXED;
 
     static
     {
         PROTOCOLS = new ArrayList<>();
+        SCHEMES = new HashMap<>();
+        UNINDEXED = new ArrayList<>();
         ServiceLoader<Protocol> available = ServiceLoader.load(Protocol.class);
         for (Protocol protocol : available)
         {
             PROTOCOLS.add(protocol);
+
+            String[] schemes = protocol.getSchemes();
+            if (schemes == null || schemes.length == 0)
+            {
+                UNINDEXED.add(protocol);
+                continue;
+            }
+            for (String scheme : schemes)
+                SCHEMES.computeIfAbsent(scheme.toLowerCase(Locale.ROOT), key -> new ArrayList<>()).add(protocol);
         }
     }
 
@@ -41,11 +60,19 @@ public final class ProtocolManager
     {
     }
 
+    /**
+     * 为指定资源打开输入通道。
+     *
+     * @param resource 资源描述
+     * @return 输入通道
+     * @throws IllegalArgumentException 没有协议能为指定资源创建输入通道（各协议的失败原因作为suppressed异常附加）
+     */
     public static RxChannel openRxChannel(String resource)
     {
         Objects.requireNonNull(resource, "资源描述为空");
 
-        for (Protocol protocol : PROTOCOLS)
+        IllegalArgumentException failure = new IllegalArgumentException("当前没有协议能为指定资源创建输入通道");
+        for (Protocol protocol : candidates(resource))
         {
             try
             {
@@ -53,18 +80,26 @@ public final class ProtocolManager
                     return protocol.openRxChannel(resource);
             } catch (Exception ex)
             {
-                ex.printStackTrace(System.err);
+                failure.addSuppressed(ex);
             }
         }
 
-        throw new IllegalArgumentException("当前没有协议能为指定资源创建输入通道");
+        throw failure;
     }
 
+    /**
+     * 为指定资源打开输出通道。
+     *
+     * @param resource 资源描述
+     * @return 输出通道
+     * @throws IllegalArgumentException 没有协议能为指定资源创建输出通道（各协议的失败原因作为suppressed异常附加）
+     */
     public static TxChannel openTxChannel(String resource)
     {
         Objects.requireNonNull(resource, "资源描述为空");
 
-        for (Protocol protocol : PROTOCOLS)
+        IllegalArgumentException failure = new IllegalArgumentException("当前没有协议能为指定资源创建输出通道");
+        for (Protocol protocol : candidates(resource))
         {
             try
             {
@@ -72,18 +107,25 @@ public final class ProtocolManager
                     return protocol.openTxChannel(resource);
             } catch (Exception ex)
             {
-                ex.printStackTrace(System.err);
+                failure.addSuppressed(ex);
             }
         }
 
-        throw new IllegalArgumentException("当前没有协议能为指定资源创建输出通道");
+        throw failure;
     }
 
+    /**
+     * 查找认可指定资源的协议。
+     *
+     * @param resource 资源描述
+     * @return 第一个认可该资源的协议
+     * @throws IllegalArgumentException 没有协议认可指定资源
+     */
     public static Protocol getProtocol(String resource)
     {
         Objects.requireNonNull(resource, "资源描述为空");
 
-        for (Protocol protocol : PROTOCOLS)
+        for (Protocol protocol : candidates(resource))
         {
             try
             {
@@ -97,4 +139,36 @@ public final class ProtocolManager
 
         throw new IllegalArgumentException("当前没有协议认可指定资源");
     }
+
+    private static List<Protocol> candidates(String resource)
+    {
+        String scheme = schemeOf(resource);
+        List<Protocol> indexed = (scheme == null) ? null : SCHEMES.get(scheme);
+        if (indexed == null)
+            return UNINDEXED;
+        if (UNINDEXED.isEmpty())
+            return indexed;
+
+        List<Protocol> candidates = new ArrayList<>(indexed.size() + UNINDEXED.size());
+        candidates.addAll(indexed);
+        candidates.addAll(UNINDEXED);
+        return candidates;
+    }
+
+    private static String schemeOf(String resource)
+    {
+        // 按RFC 3986，scheme = ALPHA *( ALPHA / DIGIT / "+" / "-" / "." )，这里不需要完整解析URI。
+        int idx = resource.indexOf(':');
+        if (idx <= 0)
+            return null;
+        for (int i = 0; i < idx; i++)
+        {
+            char c = resource.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                            (i > 0 && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'));
+            if (!valid)
+                return null;
+        }
+        return resource.substring(0, idx).toLowerCase(Locale.ROOT);
+    }
 }
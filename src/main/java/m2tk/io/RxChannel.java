@@ -17,6 +17,7 @@ package m2tk.io;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * 输入通道
@@ -33,4 +34,154 @@ public interface RxChannel extends Closeable, Controllable, Queryable
      * @throws IOException IO异常
      */
     int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * 读取通道数据到缓冲区
+     * <p>
+     * 数据从缓冲区的当前位置开始写入，最多写满缓冲区的剩余空间。实现类应尽量直接写入所给缓冲区（包括直接缓冲区），
+     * 避免中间拷贝。
+     *
+     * @param dst 结果缓冲区
+     * @return 实际读取的长度，-1表示通道数据已读完
+     * @throws IOException IO异常
+     */
+    default int read(ByteBuffer dst) throws IOException
+    {
+        if (dst.hasArray())
+        {
+            int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0)
+                dst.position(dst.position() + n);
+            return n;
+        }
+
+        byte[] tmp = new byte[dst.remaining()];
+        int n = read(tmp, 0, tmp.length);
+        if (n > 0)
+            dst.put(tmp, 0, n);
+        return n;
+    }
+
+    /**
+     * 分散读取通道数据
+     *
+     * @param dsts 结果缓冲区数组
+     * @return 实际读取的长度，-1表示通道数据已读完
+     * @throws IOException IO异常
+     */
+    default long read(ByteBuffer[] dsts) throws IOException
+    {
+        return read(dsts, 0, dsts.length);
+    }
+
+    /**
+     * 分散读取通道数据
+     * <p>
+     * 依次填充各缓冲区，前一个缓冲区未被填满时不会继续填充后续缓冲区。
+     *
+     * @param dsts 结果缓冲区数组
+     * @param offset 第一个缓冲区在数组中的位置
+     * @param length 参与读取的缓冲区数量
+     * @return 实际读取的长度，-1表示通道数据已读完
+     * @throws IOException IO异常
+     */
+    default long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        if (offset < 0 || length < 0 || dsts.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            ByteBuffer dst = dsts[i];
+            int n = read(dst);
+            if (n < 0)
+                return (total == 0) ? -1 : total;
+            total += n;
+            if (dst.hasRemaining())
+                break;
+        }
+        return total;
+    }
+
+    /**
+     * 按整包读取TS数据
+     * <p>
+     * 每次只返回完整的TS包（188字节），缓冲区中的包都以同步字节开头。通道在读取过程中发现同步字节缺失时自行重新同步，
+     * 并记录失步次数。至少读到一个包才返回，但不会为了凑满maxPackets而继续等待。
+     * <p>
+     * 按包读取的通道可能预读部分数据，不要与{@link #read(ByteBuffer)}等按字节读取的方法混用。
+     * <p>
+     * 默认实现基于{@link #read(ByteBuffer)}：读取一次（最多maxPackets个包的数据），不以同步字节开头的数据被丢弃至下一个同步字节，
+     * 末尾不完整的包读满后一并返回。是否为凑满缓冲区而等待取决于通道的{@link #read(ByteBuffer)}，
+     * 本库提供的通道都有各自的实现，按包读取时不会为凑满maxPackets而等待。
+     *
+     * @param dst 结果缓冲区，剩余空间至少能放下一个TS包
+     * @param maxPackets 最多读取的包数
+     * @return 实际读取的包数，-1表示通道数据已读完
+     * @throws IOException IO异常
+     */
+    default int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        int from = dst.position();
+        int limit = dst.limit();
+        int capacity = Math.min(maxPackets, dst.remaining() / 188) * 188;
+        if (maxPackets <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("缓冲区剩余空间不足一个TS包");
+
+        int end = from; // 已确认的完整包的末尾
+        try
+        {
+            dst.limit(from + capacity);
+            while (true)
+            {
+                if (read(dst) < 0)
+                    break; // 末尾不完整的包被丢弃
+
+                end = alignPackets(dst, end);
+                int partial = dst.position() - end;
+                if (end > from && partial == 0)
+                    break;
+                if (end > from)
+                    dst.limit(end + 188); // 只读满末尾不完整的包
+            }
+        } finally
+        {
+            dst.limit(limit);
+        }
+
+        dst.position(end);
+        return (end == from) ? -1 : (end - from) / 188;
+    }
+
+    /**
+     * 从end开始逐包检查已读入的数据，不以同步字节开头的数据前移覆盖（丢弃至下一个同步字节）。
+     *
+     * @return 完整包的末尾位置
+     */
+    private static int alignPackets(ByteBuffer dst, int end)
+    {
+        int filled = dst.position();
+        while (end < filled)
+        {
+            if (dst.get(end) != 0x47)
+            {
+                int next = end + 1;
+                while (next < filled && dst.get(next) != 0x47)
+                    next++;
+                ByteBuffer tail = dst.duplicate();
+                tail.limit(filled).position(next);
+                ByteBuffer head = dst.duplicate();
+                head.position(end);
+                head.put(tail);
+                filled -= next - end;
+                continue;
+            }
+            if (filled - end < 188)
+                break;
+            end += 188;
+        }
+        dst.position(filled);
+        return end;
+    }
 }
@@ -17,6 +17,7 @@ package m2tk.io;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * 输出通道
@@ -32,4 +33,55 @@ public interface TxChannel extends Closeable, Controllable, Queryable
      * @throws IOException IO异常
      */
     void write(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * 向通道写入缓冲区数据
+     * <p>
+     * 写入缓冲区当前位置到上限之间的全部数据，返回时缓冲区位置等于上限。实现类应尽量直接从所给缓冲区（包括直接缓冲区）
+     * 读取数据，避免中间拷贝。
+     *
+     * @param src 数据缓冲区
+     * @throws IOException IO异常
+     */
+    default void write(ByteBuffer src) throws IOException
+    {
+        if (src.hasArray())
+        {
+            write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+
+        byte[] tmp = new byte[src.remaining()];
+        src.get(tmp);
+        write(tmp, 0, tmp.length);
+    }
+
+    /**
+     * 聚集写入多个缓冲区的数据
+     *
+     * @param srcs 数据缓冲区数组
+     * @throws IOException IO异常
+     */
+    default void write(ByteBuffer[] srcs) throws IOException
+    {
+        write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * 聚集写入多个缓冲区的数据
+     *
+     * @param srcs 数据缓冲区数组
+     * @param offset 第一个缓冲区在数组中的位置
+     * @param length 参与写入的缓冲区数量
+     * @throws IOException IO异常
+     */
+    default void write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        if (offset < 0 || length < 0 || srcs.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        for (int i = offset; i < offset + length; i++)
+            write(srcs[i]);
+    }
 }
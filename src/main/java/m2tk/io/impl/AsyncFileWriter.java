@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 异步多缓冲写入器。
+ * <p>
+ * 生产者线程向当前缓冲区拷贝数据，写满后交给后台线程写出，随即换用下一个空闲缓冲区继续填充，
+ * 因此磁盘刷写与限速等待都不会阻塞生产者。所有缓冲区都在等待写出时，新数据直接丢弃并计入溢出数，
+ * 而不是阻塞生产者（录制组播时，阻塞接收线程会造成上游丢包）。
+ * <p>
+ * 交给后台线程的缓冲区保持填充状态（position为数据长度，未flip），连同填充时的包长度一起交给{@link Sink}写出并清空。
+ * 一个缓冲区只装一种包长度的数据，包长度改变时先交出当前缓冲区。
+ */
+final class AsyncFileWriter
+{
+    static final int DEFAULT_BUFFERS = 2;
+    static final int MAX_BUFFERS = 64;
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final Block END = new Block(ByteBuffer.allocate(0));
+
+    interface Sink
+    {
+        void write(ByteBuffer data, int packetSize) throws IOException;
+    }
+
+    private static final class Block
+    {
+        final ByteBuffer data;
+        int packetSize;
+
+        Block(ByteBuffer data)
+        {
+            this.data = data;
+        }
+    }
+
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> filled;
+    private final Sink sink;
+    private final Thread thread;
+    private final int buffers;
+    private Block active;
+    private volatile long overflows; // 只由生产者线程更新
+    private volatile Throwable failure;
+
+    AsyncFileWriter(String name, int buffers, Sink sink)
+    {
+        if (buffers < 2 || buffers > MAX_BUFFERS)
+            throw new IllegalArgumentException("无效的缓冲区数量：" + buffers);
+
+        this.buffers = buffers;
+        this.sink = sink;
+        free = new ArrayBlockingQueue<>(buffers);
+        filled = new ArrayBlockingQueue<>(buffers + 1); // 多留一个位置给结束标记
+        for (int i = 0; i < buffers; i++)
+            free.add(new Block(ByteBuffer.allocateDirect(BUFFER_SIZE)));
+
+        thread = new Thread(this::run, "m2tk-file-writer[" + name + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 缓存数据，缓冲区写满时交给后台线程写出。
+     *
+     * @param src 数据（长度为packetSize的整数倍）
+     * @param packetSize 包长度，缓冲区按整包填充，溢出时按整包丢弃
+     */
+    void put(ByteBuffer src, int packetSize) throws IOException
+    {
+        checkFailure();
+
+        if (active != null && active.packetSize != packetSize)
+            flush(); // 包长度改变，当前缓冲区按原有包长度交出
+
+        while (src.hasRemaining())
+        {
+            if (active == null)
+            {
+                active = free.poll();
+                if (active == null)
+                {
+                    overflows += src.remaining() / packetSize;
+                    src.position(src.limit());
+                    return;
+                }
+                active.packetSize = packetSize;
+                active.data.clear().limit(BUFFER_SIZE / packetSize * packetSize);
+            }
+
+            ByteBuffer data = active.data;
+            int count = Math.min(src.remaining(), data.remaining());
+            int srcLimit = src.limit();
+            src.limit(src.position() + count);
+            data.put(src);
+            src.limit(srcLimit);
+
+            if (!data.hasRemaining())
+                flush();
+        }
+    }
+
+    /**
+     * 将当前缓冲区（即使未满）交给后台线程写出。
+     */
+    void flush()
+    {
+        if (active != null && active.data.position() > 0)
+        {
+            filled.add(active);
+            active = null;
+        }
+    }
+
+    /**
+     * 写出全部缓存的数据并结束后台线程。
+     */
+    void close() throws IOException
+    {
+        flush();
+        filled.add(END);
+        boolean interrupted = false;
+        while (thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            } catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        checkFailure();
+    }
+
+    int buffers()
+    {
+        return buffers;
+    }
+
+    /**
+     * @return 等待写出的缓冲区数量
+     */
+    int pending()
+    {
+        return filled.size();
+    }
+
+    /**
+     * @return 因缓冲区用尽而丢弃的包数
+     */
+    long overflows()
+    {
+        return overflows;
+    }
+
+    private void checkFailure() throws IOException
+    {
+        Throwable ex = failure;
+        if (ex != null)
+            throw new IOException("后台写入失败", ex);
+    }
+
+    private void run()
+    {
+        while (true)
+        {
+            Block block;
+            try
+            {
+                block = filled.take();
+            } catch (InterruptedException ex)
+            {
+                continue; // 只由结束标记退出，保证数据写完
+            }
+            if (block == END)
+                return;
+
+            // 出错后继续回收缓冲区（数据丢弃），避免生产者在close时等待。
+            if (failure == null)
+            {
+                try
+                {
+                    sink.write(block.data, block.packetSize);
+                } catch (Throwable ex)
+                {
+                    failure = ex; // 包括运行时异常，后台线程不能因此退出，否则缓冲区不再回收
+                }
+            }
+            block.data.clear();
+            free.add(block);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于FileChannel的文件数据源，每次读取都经过一次系统调用。
+ */
+final class ChannelFileSource implements FileSource
+{
+    private final FileChannel channel;
+
+    ChannelFileSource(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return channel.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        return channel.read(dsts, offset, length);
+    }
+
+    @Override
+    public long position() throws IOException
+    {
+        return channel.position();
+    }
+
+    @Override
+    public void position(long position) throws IOException
+    {
+        channel.position(position);
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单生产者/单消费者的无锁报文环形队列。
+ * <p>
+ * 所有报文槽在创建时一次性分配，生产者直接把报文接收到槽内（{@link #claim()}或{@link #claimView()}后{@link #publish(int)}），
+ * 消费者读完后归还（{@link #peek()}后{@link #release()}），运行过程中不再分配内存。队列满时由生产者决定如何处理，
+ * 并通过{@link #countOverflow()}记录溢出次数。
+ */
+final class DatagramRing
+{
+    private static final long SPIN_NANOS = 20_000; // 队列为空时先自旋20µs，再挂起等待。
+
+    private final byte[][] slots;
+    private final ByteBuffer[] views;
+    private final int[] lengths;
+    private final int mask;
+    private final AtomicLong head; // 消费位置
+    private final AtomicLong tail; // 生产位置
+    private final AtomicLong overflows;
+    private volatile Thread waiter;
+    private volatile boolean terminated;
+
+    /**
+     * @param capacity 报文槽数量（向上取整为2的幂）
+     * @param slotSize 报文槽大小（字节）
+     */
+    DatagramRing(int capacity, int slotSize)
+    {
+        if (capacity < 2 || capacity > (1 << 20))
+            throw new IllegalArgumentException("无效的队列长度：" + capacity);
+
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new byte[size][slotSize];
+        views = new ByteBuffer[size];
+        for (int i = 0; i < size; i++)
+            views[i] = ByteBuffer.wrap(slots[i]);
+        lengths = new int[size];
+        mask = size - 1;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        overflows = new AtomicLong();
+    }
+
+    int capacity()
+    {
+        return slots.length;
+    }
+
+    int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    long overflows()
+    {
+        return overflows.get();
+    }
+
+    // ---------------- 生产者 ----------------
+
+    /**
+     * 获取下一个空闲的报文槽。
+     *
+     * @return 报文槽，队列已满时返回null
+     */
+    byte[] claim()
+    {
+        long t = tail.get();
+        if (t - head.get() == slots.length)
+            return null;
+        return slots[(int) t & mask];
+    }
+
+    /**
+     * 获取下一个空闲报文槽的缓冲区视图（已清空），用于直接从通道接收报文。
+     *
+     * @return 报文槽视图，队列已满时返回null
+     */
+    ByteBuffer claimView()
+    {
+        long t = tail.get();
+        if (t - head.get() == slots.length)
+            return null;
+        ByteBuffer view = views[(int) t & mask];
+        view.clear();
+        return view;
+    }
+
+    /**
+     * 发布最近一次claim得到的报文槽。
+     *
+     * @param length 报文长度
+     */
+    void publish(int length)
+    {
+        long t = tail.get();
+        lengths[(int) t & mask] = length;
+        tail.set(t + 1); // volatile写：先发布再读取waiter，与读者先登记waiter再读取tail配对，不会错过唤醒
+
+        Thread w = waiter;
+        if (w != null)
+            LockSupport.unpark(w);
+    }
+
+    void countOverflow()
+    {
+        overflows.incrementAndGet();
+    }
+
+    /**
+     * 结束队列（生产者退出、接收失败或通道关闭时），唤醒正在等待的消费者。
+     * 之后队列中剩余的报文仍可读取，读完后{@link #await(long)}立即返回-1，不再等待。
+     */
+    void terminate()
+    {
+        terminated = true;
+        Thread w = waiter;
+        if (w != null)
+            LockSupport.unpark(w);
+    }
+
+    // ---------------- 消费者 ----------------
+
+    /**
+     * 查看队首报文。
+     *
+     * @return 队首报文槽的序号，队列为空时返回-1
+     */
+    int peek()
+    {
+        long h = head.get();
+        if (h == tail.get())
+            return -1;
+        return (int) h & mask;
+    }
+
+    byte[] slot(int index)
+    {
+        return slots[index];
+    }
+
+    ByteBuffer view(int index)
+    {
+        return views[index];
+    }
+
+    int length(int index)
+    {
+        return lengths[index];
+    }
+
+    /**
+     * 归还队首报文槽。
+     */
+    void release()
+    {
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * 等待队列中出现报文。
+     *
+     * @param timeoutNanos 最长等待时间，小于等于0表示无限等待
+     * @return 队首报文槽的序号，超时、线程被中断或队列已结束时返回-1
+     */
+    int await(long timeoutNanos)
+    {
+        int index = peek();
+        if (index >= 0)
+            return index;
+
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < SPIN_NANOS)
+        {
+            Thread.onSpinWait();
+            if ((index = peek()) >= 0)
+                return index;
+            if (terminated)
+                return peek();
+        }
+
+        long deadline = start + timeoutNanos;
+        waiter = Thread.currentThread();
+        try
+        {
+            while ((index = peek()) < 0)
+            {
+                if (terminated)
+                    return peek(); // 结束前发布的报文仍然交付
+                if (Thread.currentThread().isInterrupted())
+                    return -1;
+
+                if (timeoutNanos <= 0)
+                {
+                    LockSupport.park(this);
+                } else
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return -1;
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            return index;
+        } finally
+        {
+            waiter = null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按报文查找同步位置。
+ * <p>
+ * 报文内的包数不少于要求时，在报文内查找连续若干个以同步字节开头的包；
+ * 包数不足时（小报文），要求从同步位置起直到报文末尾都是完整的包，并在随后的报文中（从报文开头起）继续确认，
+ * 累计确认的包数达到要求才锁定，避免单个包里偶然出现的0x47被当作同步位置。
+ */
+final class DatagramSync
+{
+    private final int required;
+    private int confirmed;
+    private int confirmedSize;
+
+    /**
+     * @param required 锁定前需要连续确认的包数
+     */
+    DatagramSync(int required)
+    {
+        this.required = required;
+    }
+
+    /**
+     * 重新开始确认。
+     */
+    void reset()
+    {
+        confirmed = 0;
+    }
+
+    /**
+     * 在一个报文的[from, to)区间内查找同步位置。
+     *
+     * @param buf 报文数据
+     * @param from 起始位置（绝对索引）
+     * @param to 报文末尾（绝对索引，不包含）
+     * @param packetSize 包长度
+     * @return 锁定的包起始位置；尚未确认足够的包时返回-1，调用者丢弃该报文后继续下一个
+     */
+    int locate(ByteBuffer buf, int from, int to, int packetSize)
+    {
+        int available = (to - from) / packetSize;
+        if (available >= required)
+        {
+            confirmed = 0;
+            // 要求最后一个包完整地落在报文内
+            return PacketFormat.find(buf, from, to - packetSize + PacketFormat.syncOffset(packetSize) + 1, packetSize, required);
+        }
+
+        // 小报文：只接受一直延续到报文末尾的完整包，后续报文必须从开头起接续。
+        int start = from + (to - from) % packetSize;
+        if (available == 0 || !isTiled(buf, start, to, packetSize))
+        {
+            confirmed = 0;
+            return -1;
+        }
+        if (confirmed > 0 && (start != from || packetSize != confirmedSize))
+            confirmed = 0; // 未能接续上一个报文，从本报文重新开始确认
+
+        confirmedSize = packetSize;
+        confirmed += available;
+        if (confirmed < required)
+            return -1;
+        confirmed = 0;
+        return start;
+    }
+
+    /**
+     * 识别小报文的包长度：从报文末尾向前恰好由完整的包组成、且每个包都以同步字节开头的包长度。
+     *
+     * @return 包长度，不能识别时返回0
+     */
+    static int tiledSize(ByteBuffer buf, int from, int to)
+    {
+        for (int size : new int[]{PacketFormat.TS_PACKET_SIZE, PacketFormat.RS_PACKET_SIZE, PacketFormat.M2TS_PACKET_SIZE})
+        {
+            if (isTiled(buf, from + (to - from) % size, to, size))
+                return size;
+        }
+        return 0;
+    }
+
+    /**
+     * 检查[start, to)区间是否恰好由完整的包组成，且每个包都以同步字节开头。
+     */
+    static boolean isTiled(ByteBuffer buf, int start, int to, int packetSize)
+    {
+        if (start >= to || (to - start) % packetSize != 0)
+            return false;
+        int offset = PacketFormat.syncOffset(packetSize);
+        for (int p = start; p < to; p += packetSize)
+        {
+            if (buf.get(p + offset) != SyncScanner.SYNC_BYTE)
+                return false;
+        }
+        return true;
+    }
+}
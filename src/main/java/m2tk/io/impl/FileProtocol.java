@@ -22,9 +22,16 @@ import m2tk.io.TxChannel;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 
 public final class FileProtocol implements Protocol
 {
+    @Override
+    public String[] getSchemes()
+    {
+        return new String[]{"file"};
+    }
+
     @Override
     public boolean accepts(String resource)
     {
@@ -35,13 +42,84 @@ public final class FileProtocol implements Protocol
     @Override
     public RxChannel openRxChannel(String resource) throws IOException
     {
-        return new FileRxChannel(new File(URI.create(resource)));
+        URI uri = URI.create(resource);
+        UriParameters params = UriParameters.of(uri);
+
+        // 内存映射模式：file:///path/to/file.ts?mmap=true&window=256 （窗口大小单位为MB）
+        int mmapWindow = 0;
+        if (params.getBoolean("mmap", false))
+        {
+            int windowMB = params.getInt("window", MappedFileSource.DEFAULT_WINDOW_SIZE / (1024 * 1024));
+            if (windowMB < 1 || windowMB > 1024)
+                throw new IllegalArgumentException("无效的映射窗口大小：" + windowMB);
+            mmapWindow = windowMB * 1024 * 1024;
+        }
+
+        // 预读模式（适合网络存储）：file:///path/to/file.ts?readahead=3&block=4 （预读块数，块大小单位为MB）
+        int readAheadBlocks = 0;
+        int readAheadBlockSize = 0;
+        if (params.contains("readahead"))
+        {
+            readAheadBlocks = params.getInt("readahead", ReadAheadFileSource.DEFAULT_BLOCKS);
+            if (readAheadBlocks < 2 || readAheadBlocks > ReadAheadFileSource.MAX_BLOCKS)
+                throw new IllegalArgumentException("无效的预读块数：" + readAheadBlocks);
+            int blockMB = params.getInt("block", ReadAheadFileSource.DEFAULT_BLOCK_SIZE / (1024 * 1024));
+            if (blockMB < 1 || blockMB > 64)
+                throw new IllegalArgumentException("无效的预读块大小：" + blockMB);
+            readAheadBlockSize = blockMB * 1024 * 1024;
+        }
+
+        return new FileRxChannel(toFile(uri), mmapWindow, readAheadBlocks, readAheadBlockSize);
     }
 
     @Override
     public TxChannel openTxChannel(String resource) throws IOException
     {
-        return new FileTxChannel(new File(URI.create(resource)));
+        URI uri = URI.create(resource);
+        UriParameters params = UriParameters.of(uri);
+
+        // 异步写入模式：file:///path/to/file.ts?async=true&buffers=2
+        int asyncBuffers = 0;
+        if (params.getBoolean("async", false))
+            asyncBuffers = params.getInt("buffers", AsyncFileWriter.DEFAULT_BUFFERS);
+
+        // 分段录制：file:///path/to/rec.ts?segment=512&duration=600&keep=48 （大小单位为MB，时长单位为秒）
+        File file = toFile(uri);
+        FileSegments segments = null;
+        if (params.contains("segment") || params.contains("duration"))
+        {
+            int segmentMB = params.getInt("segment", 0);
+            int duration = params.getInt("duration", 0);
+            int keep = params.getInt("keep", 0);
+            if (segmentMB < 0 || duration < 0 || keep < 0)
+                throw new IllegalArgumentException("无效的分段参数：" + resource);
+            segments = new FileSegments(file, segmentMB * 1024L * 1024L, duration, keep);
+        }
+
+        // 录制时生成时间索引：file:///path/to/rec.ts?index=true ，索引文件为rec.ts.idx
+        boolean indexed = params.getBoolean("index", false);
+        if (indexed && segments != null)
+        {
+            segments.close();
+            throw new IllegalArgumentException("分段录制不支持时间索引");
+        }
+
+        return new FileTxChannel(file, asyncBuffers, segments, indexed);
+    }
+
+    private static File toFile(URI uri)
+    {
+        if (uri.getRawQuery() == null)
+            return new File(uri);
+
+        try
+        {
+            // File(URI)不接受带查询参数的URI，需要先去掉参数部分。
+            return new File(new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, null));
+        } catch (URISyntaxException ex)
+        {
+            throw new IllegalArgumentException("无效的文件路径：" + uri, ex);
+        }
     }
 
     @Override
@@ -21,32 +21,103 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 final class FileRxChannel implements RxChannel
 {
+    private static final int SYNC_COUNT = 5; // 连续5个包都以同步字节开头才算同步成功
+    private static final int SYNC_BLOCK_SIZE = PacketFormat.MAX_PACKET_SIZE * 256;
+    private static final int INDEX_BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int RATE_PROBE_SIZE = 4 * 1024 * 1024;
+
     private final RandomAccessFile file;
+    private final FileSource source;
+    private final MappedFileSource mapped;
+    private final ReadAheadFileSource readAhead;
+    private final ByteBuffer syncBuffer;
     private final String filename;
+    private final PcrClock clock;
+    private final PacketReader packetReader = new PacketReader(this::read);
+    private final StatsCounters stats = new StatsCounters(packetReader::packetSize);
     private boolean closed;
     private boolean rewindEnabled;
+    private boolean realtime;
+    private boolean rateProbed;
+    private TimeIndex index;
 
     FileRxChannel(File f) throws IOException
+    {
+        this(f, 0, 0, 0);
+    }
+
+    /**
+     * @param f 输入文件
+     * @param mmapWindow 内存映射窗口大小（字节），小于等于0时不使用内存映射。
+     * @param readAheadBlocks 预读块数，小于等于0时不使用预读；与内存映射同时指定时只使用内存映射。
+     * @param readAheadBlockSize 预读块大小（字节）
+     */
+    FileRxChannel(File f, int mmapWindow, int readAheadBlocks, int readAheadBlockSize) throws IOException
     {
         file = new RandomAccessFile(f, "r");
+        FileChannel channel = file.getChannel();
+        if (mmapWindow > 0)
+        {
+            mapped = new MappedFileSource(channel, mmapWindow);
+            readAhead = null;
+            source = mapped;
+        } else if (readAheadBlocks > 0)
+        {
+            mapped = null;
+            try
+            {
+                readAhead = new ReadAheadFileSource(channel, readAheadBlocks, readAheadBlockSize);
+            } catch (IOException | RuntimeException ex)
+            {
+                file.close();
+                throw ex;
+            }
+            source = readAhead;
+        } else
+        {
+            mapped = null;
+            readAhead = null;
+            source = new ChannelFileSource(channel);
+        }
+        syncBuffer = ByteBuffer.allocate(SYNC_BLOCK_SIZE);
         filename = f.getAbsolutePath();
+        clock = new PcrClock();
         closed = false;
         rewindEnabled = false;
+        realtime = false;
     }
 
     @Override
     public boolean hasProperty(String property)
     {
-        return "source name".equals(property);
+        return "source name".equals(property) ||
+               "mmap window".equals(property) ||
+               "mmap offset".equals(property) ||
+               "read-ahead blocks".equals(property) ||
+               "read-ahead block size".equals(property) ||
+               "read-ahead hit ratio".equals(property) ||
+               "realtime".equals(property) ||
+               "pcr pid".equals(property) ||
+               "packet size".equals(property) ||
+               "convert".equals(property) ||
+               "sync losses".equals(property) ||
+               "pidFilter".equals(property) ||
+               "pidFilter.drops".equals(property) ||
+               "skipped bytes".equals(property) ||
+               "duration".equals(property) ||
+               "index entries".equals(property) ||
+               StatsCounters.isProperty(property);
     }
 
     @Override
     public String[] getPropertyList()
     {
-        return new String[]{"source name"};
+        return StatsCounters.withStats(new String[]{"source name", "mmap window", "mmap offset", "read-ahead blocks", "read-ahead block size", "read-ahead hit ratio", "realtime", "pcr pid", "packet size", "convert", "sync losses", "skipped bytes", "pidFilter", "pidFilter.drops", "duration", "index entries"}, StatsCounters.PROPERTIES);
     }
 
     @Override
@@ -54,22 +125,75 @@ final class FileRxChannel implements RxChannel
     {
         if ("source name".equals(property))
             return filename;
-        return null;
+        if ("mmap window".equals(property))
+            return (mapped == null) ? 0 : mapped.windowSize();
+        if ("mmap offset".equals(property))
+            return (mapped == null) ? -1L : mapped.windowStart();
+        if ("read-ahead blocks".equals(property))
+            return (readAhead == null) ? 0 : readAhead.blocks();
+        if ("read-ahead block size".equals(property))
+            return (readAhead == null) ? 0 : readAhead.blockSize();
+        if ("read-ahead hit ratio".equals(property))
+            return (readAhead == null) ? 0.0 : readAhead.hitRatio();
+        if ("realtime".equals(property))
+            return realtime;
+        if ("pcr pid".equals(property))
+            return clock.pcrPid();
+        if ("packet size".equals(property))
+            return packetReader.packetSize();
+        if ("convert".equals(property))
+            return packetReader.isConvert();
+        if ("pidFilter".equals(property))
+            return packetReader.filter().selected();
+        if ("pidFilter.drops".equals(property))
+            return packetReader.filter().drops();
+        if ("sync losses".equals(property))
+            return packetReader.syncLosses();
+        if ("skipped bytes".equals(property))
+            return packetReader.skippedBytes();
+        if ("duration".equals(property))
+            return (index == null) ? -1L : index.duration() * 1000 / TimeIndex.CLOCK_RATE; // 毫秒，建立索引后可用
+        if ("index entries".equals(property))
+            return (index == null) ? 0 : index.size();
+        return stats.query(property, 0);
     }
 
     @Override
     public boolean hasCommand(String command)
     {
-        return "sync".equals(command) || "rewind".equals(command);
+        return "sync".equals(command) || "rewind".equals(command) || "realtime".equals(command) ||
+               "seek".equals(command) || "packet size".equals(command) || "convert".equals(command) || "pidFilter".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"sync", "rewind", "realtime", "seek", "packet size", "convert", "pidFilter"}, StatsCounters.RESET_COMMAND);
     }
 
     @Override
     public void control(String command, Object... arguments) throws IOException
     {
         if ("sync".equals(command))
+        {
+            packetReader.reset();
             doSync();
+        }
         if ("rewind".equals(command))
             doSetRewind(arguments);
+        if ("realtime".equals(command))
+            doSetRealtime(arguments);
+        if ("seek".equals(command))
+            doSeek(arguments);
+        if ("packet size".equals(command))
+            packetReader.setPacketSize(PacketFormat.parse(arguments, true));
+        if ("convert".equals(command))
+            doSetConvert(arguments);
+        if ("pidFilter".equals(command))
+            packetReader.filter().set(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(0);
     }
 
     @Override
@@ -81,21 +205,182 @@ final class FileRxChannel implements RxChannel
         if (offset < 0 || buffer.length - offset < length)
             throw new IllegalArgumentException("无效的偏移量：" + offset);
 
-        int nRead = file.read(buffer, offset, length);
+        return read(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        int nRead = realtime ? readRealtime(dst) : read0(dst);
+        stats.transfer(nRead);
+        return nRead;
+    }
+
+    private int read0(ByteBuffer dst) throws IOException
+    {
+        int nRead = source.read(dst);
         if (nRead == -1 && rewindEnabled)
         {
-            file.seek(0);
-            return file.read(buffer, offset, length);
+            stats.wrap();
+            source.position(0);
+            return source.read(dst);
         }
 
         return nRead;
     }
 
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        if (offset < 0 || length < 0 || dsts.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        if (realtime)
+            return RxChannel.super.read(dsts, offset, length);
+
+        long nRead = source.read(dsts, offset, length);
+        if (nRead == -1 && rewindEnabled)
+        {
+            stats.wrap();
+            source.position(0);
+            nRead = source.read(dsts, offset, length);
+        }
+
+        stats.transfer(nRead);
+        return nRead;
+    }
+
+    /**
+     * 按PCR时间轴释放数据：只返回已到释放时刻的完整TS包，未到时刻的包退回文件，留待下次读取。
+     * 若第一个包尚未到释放时刻，则等待至该时刻。
+     * <p>
+     * 文件末尾不足一个包的数据被丢弃：开启回绕时从文件开头继续读取，否则返回-1。
+     */
+    private int readRealtime(ByteBuffer dst) throws IOException
+    {
+        int start = dst.position();
+        int limit = dst.limit();
+        int packetSize = packetReader.packetSize();
+        int syncOffset = PacketFormat.syncOffset(packetSize);
+        int capacity = dst.remaining() / packetSize * packetSize;
+        if (capacity == 0)
+            throw new IllegalArgumentException("实时模式下每次至少读取一个完整的TS包");
+
+        if (!rateProbed)
+        {
+            rateProbed = true;
+            probeRate(packetSize);
+        }
+
+        int nRead;
+        dst.limit(start + capacity);
+        try
+        {
+            nRead = readPacketData(dst, start, packetSize);
+            if (nRead < packetSize && rewindEnabled)
+            {
+                dst.position(start);
+                stats.wrap();
+                source.position(0);
+                clock.reset(); // 文件已回绕，时间轴不连续。
+                nRead = readPacketData(dst, start, packetSize);
+            }
+        } finally
+        {
+            dst.limit(limit);
+        }
+        if (nRead < packetSize)
+        {
+            dst.position(start);
+            return -1;
+        }
+
+        long after = source.position();
+        int packets = nRead / packetSize;
+        long now = System.nanoTime();
+        int released = 0;
+        while (released < packets)
+        {
+            int offset = start + released * packetSize + syncOffset;
+            long releaseTime = clock.releaseTime(dst, offset, now);
+            if (releaseTime - now > 0)
+            {
+                if (released > 0)
+                    break;
+                RatePacer.waitUntil(releaseTime);
+                long waitStart = now;
+                now = System.nanoTime();
+                stats.blocked(now - waitStart);
+            }
+            clock.update(dst, offset, packetSize, now);
+            released++;
+        }
+
+        int consumed = released * packetSize;
+        if (consumed < nRead)
+        {
+            source.position(after - (nRead - consumed));
+            dst.position(start + consumed);
+        }
+        return consumed;
+    }
+
+    /**
+     * 从当前位置读取数据，至少读满一个包（有些数据源在块边界处只返回部分数据），文件末尾除外。
+     *
+     * @return 读入的字节数
+     */
+    private int readPacketData(ByteBuffer dst, int start, int packetSize) throws IOException
+    {
+        while (dst.position() - start < packetSize)
+        {
+            if (source.read(dst) < 0)
+                break;
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * 从当前位置预读一段数据估算初始码率，使第一个PCR间隔内的包也能按码率释放。读位置不变。
+     */
+    private void probeRate(int packetSize) throws IOException
+    {
+        ByteBuffer probe = ByteBuffer.allocate(RATE_PROBE_SIZE);
+        long base = source.position();
+        try
+        {
+            while (probe.hasRemaining() && source.read(probe) > 0)
+            {
+                // 读满预读缓冲区或到达文件末尾
+            }
+        } finally
+        {
+            source.position(base);
+        }
+        clock.estimate(probe, PacketFormat.syncOffset(packetSize), probe.position(), packetSize);
+    }
+
+    @Override
+    public int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        return packetReader.readPackets(dst, maxPackets);
+    }
+
     @Override
     public void close() throws IOException
     {
         if (!closed)
         {
+            source.close();
             file.close();
             closed = true;
         }
@@ -106,25 +391,176 @@ final class FileRxChannel implements RxChannel
         if (closed)
             throw new IOException("通道已关闭");
 
-        int c = 0;
-        while (c < 5)
+        // 按块查找同步位置并识别包长度，相邻块之间保留(SYNC_COUNT - 1)个包的重叠，避免漏掉跨块的同步位置。
+        boolean wrapped = false;
+        while (true)
         {
-            int b = file.read();
-            if (b == -1)
-            {
-                if (!rewindEnabled)
-                    throw new EOFException();
+            long base = source.position();
+            ByteBuffer block = loadSyncBlock();
+            int from = block.position();
+            int to = block.limit();
 
-                file.seek(0);
-                continue;
+            int packetSize = packetReader.isAutoDetect()
+                             ? PacketFormat.detect(block, from, to, SYNC_COUNT)
+                             : packetReader.packetSize();
+            int found = (packetSize == 0) ? -1 : PacketFormat.find(block, from, to, packetSize, SYNC_COUNT);
+            if (found >= 0)
+            {
+                packetReader.detected(packetSize);
+                source.position(base + (found - from));
+                return;
             }
 
-            if (b == 0x47)
+            if (base + (to - from) < source.size())
             {
-                c++;
-                file.skipBytes(187);
+                int overlap = (SYNC_COUNT - 1) * PacketFormat.MAX_PACKET_SIZE + PacketFormat.syncOffset(PacketFormat.M2TS_PACKET_SIZE);
+                source.position(base + Math.max(1, (to - from) - overlap));
+                continue;
             }
+
+            if (!rewindEnabled)
+                throw new EOFException();
+            if (wrapped)
+                throw new IOException("未能找到同步位置");
+
+            wrapped = true;
+            source.position(0);
+        }
+    }
+
+    private ByteBuffer loadSyncBlock() throws IOException
+    {
+        if (mapped != null)
+        {
+            // 直接在映射区上查找，不拷贝数据。
+            ByteBuffer window = mapped.window(SYNC_BLOCK_SIZE);
+            return (window == null) ? syncBuffer.clear().flip() : window;
+        }
+
+        syncBuffer.clear();
+        while (syncBuffer.hasRemaining() && source.read(syncBuffer) > 0)
+        {
+            // 尽量填满整个块
+        }
+        return syncBuffer.flip();
+    }
+
+    private void doSetRealtime(Object[] arguments) throws IOException
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        boolean enabled;
+        if (arg instanceof Boolean)
+            enabled = (boolean) arg;
+        else if (arg instanceof String)
+            enabled = Boolean.parseBoolean((String) arg);
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+
+        if (enabled && !realtime)
+        {
+            doSync(); // 实时模式按包处理，需要先对齐包边界。
+            clock.reset();
+            rateProbed = false;
+        }
+        realtime = enabled;
+    }
+
+    /**
+     * 按时间定位（秒，从第一个PCR起算），跳到不晚于该时刻的最后一个随机访问点所在的包。
+     */
+    private void doSeek(Object[] arguments) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        double seconds = -1;
+        if (arg instanceof Integer)
+            seconds = (int) arg;
+        if (arg instanceof Long)
+            seconds = (long) arg;
+        if (arg instanceof Double)
+            seconds = (double) arg;
+        if (arg instanceof String)
+            seconds = Double.parseDouble((String) arg);
+
+        if (seconds < 0)
+            throw new IllegalArgumentException("无效的定位时间：" + arg);
+
+        TimeIndex timeIndex = loadIndex();
+        long offset = timeIndex.seek(Math.round(seconds * TimeIndex.CLOCK_RATE));
+        if (offset < 0)
+            throw new IOException("文件中没有PCR，无法按时间定位");
+
+        source.position(offset);
+        packetReader.reset();
+        packetReader.detected(timeIndex.packetSize());
+        clock.reset();
+    }
+
+    /**
+     * 加载时间索引：优先读取索引文件，文件增长（或没有索引文件）时接着扫描，并保存索引文件。
+     */
+    private TimeIndex loadIndex() throws IOException
+    {
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+        File sidecar = new File(filename + TimeIndex.SUFFIX);
+        if (index == null)
+            index = TimeIndex.load(sidecar, channel);
+        if (index == null)
+            index = createIndex(channel);
+        if (index.covered() >= length)
+            return index;
+
+        // 按位置读取，不影响当前读位置。
+        ByteBuffer block = ByteBuffer.allocateDirect(INDEX_BLOCK_SIZE);
+        long position = index.covered();
+        while (position < length)
+        {
+            block.clear();
+            int n = channel.read(block, position);
+            if (n <= 0)
+                break;
+            block.flip();
+            index.scan(block, position);
+            position += n;
+        }
+
+        try
+        {
+            index.save(sidecar);
+        } catch (IOException ex)
+        {
+            System.err.printf("Can not save index[%s], pass.%n", sidecar.getPath());
+        }
+        return index;
+    }
+
+    private TimeIndex createIndex(FileChannel channel) throws IOException
+    {
+        ByteBuffer block = ByteBuffer.allocate(SYNC_BLOCK_SIZE);
+        while (block.hasRemaining() && channel.read(block, block.position()) > 0)
+        {
+            // 尽量填满整个块
         }
+        block.flip();
+
+        int packetSize = packetReader.isAutoDetect()
+                         ? PacketFormat.detect(block, 0, block.limit(), SYNC_COUNT)
+                         : packetReader.packetSize();
+        int found = (packetSize == 0) ? -1 : PacketFormat.find(block, 0, block.limit(), packetSize, SYNC_COUNT);
+        if (found < 0)
+            throw new IOException("未能找到同步位置");
+
+        TimeIndex created = new TimeIndex(packetSize);
+        created.reset(found);
+        return created;
     }
 
     private void doSetRewind(Object[] arguments)
@@ -139,5 +575,21 @@ final class FileRxChannel implements RxChannel
             rewindEnabled = Boolean.parseBoolean((String) arg);
         else
             throw new IllegalArgumentException("无效参数：" + arguments[0]);
+        if (readAhead != null)
+            readAhead.setWrap(rewindEnabled); // 回绕时在文件末尾之后预读文件开头
+    }
+
+    private void doSetConvert(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            packetReader.setConvert((boolean) arg);
+        else if (arg instanceof String)
+            packetReader.setConvert(Boolean.parseBoolean((String) arg));
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
     }
 }
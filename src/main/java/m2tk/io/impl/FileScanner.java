@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * TS文件并行扫描。
+ * <p>
+ * 将文件按包边界切分为若干区间（每个切分点都用同步逻辑确认），在ForkJoinPool上按位置读取（pread）各区间，
+ * 对每个包调用访问器。每个区间有独立的结果对象，最后按文件顺序两两合并，合并函数总是以(前, 后)的顺序调用，
+ * 因此可以处理跨区间的状态（如连续计数器检查）。
+ * <p>
+ * 访问器在多个线程上并发调用，但同一个结果对象只由一个线程访问，不需要加锁。
+ */
+public final class FileScanner
+{
+    /**
+     * 包访问器。
+     *
+     * @param <R> 扫描结果类型
+     */
+    public interface PacketVisitor<R>
+    {
+        /**
+         * 处理一个TS包。
+         *
+         * @param result 当前区间的结果对象
+         * @param buffer 数据缓冲区（只读，不要修改其状态）
+         * @param offset TS包头（同步字节）在缓冲区中的位置（绝对索引），包长度固定为188字节
+         * @param position 包在文件中的起始位置（对于192或204字节的包，包含时间码或校验字节）
+         */
+        void visit(R result, ByteBuffer buffer, int offset, long position);
+    }
+
+    private static final int SYNC_COUNT = 5;
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final long MIN_RANGE_SIZE = 64L * 1024 * 1024;
+    private static final int RANGES_PER_THREAD = 4;
+
+    private FileScanner()
+    {
+    }
+
+    /**
+     * 在公共ForkJoinPool上扫描文件，自动识别包长度。
+     *
+     * @param file TS文件
+     * @param supplier 为每个区间创建结果对象
+     * @param visitor 包访问器
+     * @param merger 合并两个相邻区间的结果（前, 后）
+     * @param <R> 扫描结果类型
+     * @return 合并后的扫描结果
+     * @throws IOException 打开或读取文件失败
+     */
+    public static <R> R scan(File file, Supplier<R> supplier, PacketVisitor<R> visitor, BinaryOperator<R> merger) throws IOException
+    {
+        return scan(file, 0, ForkJoinPool.commonPool(), supplier, visitor, merger);
+    }
+
+    /**
+     * 扫描文件。
+     *
+     * @param file TS文件
+     * @param packetSize 包长度（188、192或204），0表示自动识别
+     * @param pool 执行扫描的线程池
+     * @param supplier 为每个区间创建结果对象
+     * @param visitor 包访问器
+     * @param merger 合并两个相邻区间的结果（前, 后）
+     * @param <R> 扫描结果类型
+     * @return 合并后的扫描结果
+     * @throws IOException 打开或读取文件失败
+     */
+    public static <R> R scan(File file, int packetSize, ForkJoinPool pool,
+                             Supplier<R> supplier, PacketVisitor<R> visitor, BinaryOperator<R> merger) throws IOException
+    {
+        if (packetSize != 0 && !PacketFormat.isValid(packetSize))
+            throw new IllegalArgumentException("无效的包长度：" + packetSize);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            long length = channel.size();
+            ByteBuffer probe = ByteBuffer.allocate(PacketFormat.MAX_PACKET_SIZE * 256);
+            readFully(channel, probe, 0);
+            int size = (packetSize == 0) ? PacketFormat.detect(probe, 0, probe.limit(), SYNC_COUNT) : packetSize;
+            int first = (size == 0) ? -1 : PacketFormat.find(probe, 0, probe.limit(), size, SYNC_COUNT);
+            if (first < 0)
+                return supplier.get(); // 没有找到同步位置，没有可扫描的包
+
+            long[] splits = split(channel, first, length, size, pool.getParallelism());
+            Scanner<R> scanner = new Scanner<>(channel, size, splits, supplier, visitor, merger);
+            try
+            {
+                return pool.invoke(scanner.task(0, splits.length - 1));
+            } catch (UncheckedIOException ex)
+            {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * 计算区间的切分点：第i个区间为[splits[i], splits[i + 1])。名义切分点之后第一个同步位置作为实际切分点。
+     */
+    private static long[] split(FileChannel channel, long first, long length, int packetSize, int parallelism) throws IOException
+    {
+        long total = length - first;
+        long rangeSize = Math.max(MIN_RANGE_SIZE, total / ((long) parallelism * RANGES_PER_THREAD));
+        int count = (int) Math.max(1, (total + rangeSize - 1) / rangeSize);
+
+        long[] splits = new long[count + 1];
+        splits[0] = first;
+        ByteBuffer probe = ByteBuffer.allocate(PacketFormat.MAX_PACKET_SIZE * 64);
+        int n = 1;
+        for (int i = 1; i < count; i++)
+        {
+            long nominal = first + i * rangeSize;
+            nominal -= (nominal - first) % packetSize; // 文件连续时名义切分点就是包边界
+            readFully(channel, probe, nominal);
+            int found = PacketFormat.find(probe, 0, probe.limit(), packetSize, SYNC_COUNT);
+            if (found < 0)
+                continue; // 该处数据损坏，合并到前一个区间
+            long point = nominal + found;
+            if (point > splits[n - 1])
+                splits[n++] = point;
+        }
+        splits[n++] = length;
+
+        long[] result = new long[n];
+        System.arraycopy(splits, 0, result, 0, n);
+        return result;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException
+    {
+        dst.clear();
+        while (dst.hasRemaining())
+        {
+            int n = channel.read(dst, position + dst.position());
+            if (n <= 0)
+                break;
+        }
+        dst.flip();
+    }
+
+    private static final class Scanner<R>
+    {
+        private final FileChannel channel;
+        private final int packetSize;
+        private final int syncOffset;
+        private final long[] splits;
+        private final Supplier<R> supplier;
+        private final PacketVisitor<R> visitor;
+        private final BinaryOperator<R> merger;
+
+        Scanner(FileChannel channel, int packetSize, long[] splits,
+                Supplier<R> supplier, PacketVisitor<R> visitor, BinaryOperator<R> merger)
+        {
+            this.channel = channel;
+            this.packetSize = packetSize;
+            this.syncOffset = PacketFormat.syncOffset(packetSize);
+            this.splits = splits;
+            this.supplier = supplier;
+            this.visitor = visitor;
+            this.merger = merger;
+        }
+
+        RangeTask task(int from, int to)
+        {
+            return new RangeTask(from, to);
+        }
+
+        /**
+         * 扫描起始位置在[start, end)内的包，失步时在块内重新查找同步位置。
+         */
+        private R scanRange(long start, long end)
+        {
+            R result = supplier.get();
+            ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE / packetSize * packetSize);
+            ByteBuffer view = block.asReadOnlyBuffer();
+            long position = start;
+            try
+            {
+                while (position < end)
+                {
+                    // 块末尾多读一个包，使区间最后一个包完整。
+                    long want = Math.min(block.capacity(), end - position + packetSize);
+                    block.clear().limit((int) want);
+                    fill(block, position, want);
+                    int limit = block.position();
+                    if (limit < packetSize)
+                        break;
+
+                    int i = 0;
+                    while (i + packetSize <= limit && position + i < end)
+                    {
+                        if (block.get(i + syncOffset) == SyncScanner.SYNC_BYTE)
+                        {
+                            visitor.visit(result, view, i + syncOffset, position + i);
+                            i += packetSize;
+                            continue;
+                        }
+                        int found = PacketFormat.find(block, i, limit, packetSize, Math.max(1, Math.min(SYNC_COUNT, (limit - i) / packetSize)));
+                        i = (found < 0) ? limit - packetSize + 1 : found;
+                    }
+                    position += i;
+                }
+            } catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+            return result;
+        }
+
+        private void fill(ByteBuffer dst, long position, long want) throws IOException
+        {
+            while (dst.position() < want)
+            {
+                int n = channel.read(dst, position + dst.position());
+                if (n <= 0)
+                    break;
+            }
+        }
+
+        /**
+         * 扫描区间[from, to)（按切分点编号），对半拆分，左半部分交给其他线程，结果按文件顺序合并。
+         */
+        private final class RangeTask extends RecursiveTask<R>
+        {
+            private static final long serialVersionUID = 1L;
+
+            private final int from;
+            private final int to;
+
+            RangeTask(int from, int to)
+            {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected R compute()
+            {
+                if (to - from == 1)
+                    return scanRange(splits[from], splits[to]);
+
+                int mid = (from + to) >>> 1;
+                RangeTask left = new RangeTask(from, mid);
+                left.fork();
+                R right = new RangeTask(mid, to).compute();
+                return merger.apply(left.join(), right);
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分段录制文件。
+ * <p>
+ * 按大小或时长切换到新的分段文件（name-000001.ts、name-000002.ts……），切换只发生在包边界上，不丢弃任何数据。
+ * 目录中已有同名分段时，从最大序号之后继续编号，已有分段同样计入保留数量，不会被覆盖。
+ * 下一个分段由后台线程提前创建，切换时直接使用；超出保留数量的旧分段也由后台线程删除，
+ * 写入线程不会因文件创建或删除而阻塞。
+ */
+final class FileSegments
+{
+    private final File directory;
+    private final String prefix;
+    private final String suffix;
+    private final long segmentBytes;
+    private final long segmentNanos;
+    private final int retention;
+    private final ExecutorService worker;
+    private final Deque<File> finished = new ArrayDeque<>();
+
+    private RandomAccessFile current;
+    private FileChannel channel;
+    private long start;
+    private Future<RandomAccessFile> next;
+    private volatile File currentFile;
+    private volatile int index;
+    private volatile long deleted;
+
+    /**
+     * @param template 文件名模板，分段序号插在扩展名之前
+     * @param segmentBytes 分段大小（字节），小于等于0时不按大小切换
+     * @param segmentSeconds 分段时长（秒），小于等于0时不按时长切换
+     * @param retention 保留的分段数量（包括正在写入的分段和目录中已有的分段），小于等于0时全部保留
+     */
+    FileSegments(File template, long segmentBytes, int segmentSeconds, int retention) throws IOException
+    {
+        if (segmentBytes <= 0 && segmentSeconds <= 0)
+            throw new IllegalArgumentException("必须指定分段大小或分段时长");
+
+        File absolute = template.getAbsoluteFile();
+        String name = absolute.getName();
+        int dot = name.lastIndexOf('.');
+        directory = absolute.getParentFile();
+        prefix = (dot > 0) ? name.substring(0, dot) : name;
+        suffix = (dot > 0) ? name.substring(dot) : "";
+        this.segmentBytes = segmentBytes;
+        this.segmentNanos = TimeUnit.SECONDS.toNanos(Math.max(0, segmentSeconds));
+        this.retention = retention;
+
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "m2tk-file-segments[" + name + "]");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        int first;
+        try
+        {
+            first = scanExisting() + 1;
+            current = open(first);
+        } catch (IOException ex)
+        {
+            worker.shutdown();
+            throw ex;
+        }
+        expire();
+        activate(first);
+    }
+
+    /**
+     * 准备写入：当前分段已满（大小或时长）时切换到下一个分段。
+     *
+     * @param packetSize 包长度
+     * @return 当前分段还能写入的字节数（大于0），写满后需要再次调用
+     */
+    long room(int packetSize) throws IOException
+    {
+        long capacity = (segmentBytes > 0) ? Math.max(1, segmentBytes / packetSize) * packetSize : Long.MAX_VALUE;
+        long position = channel.position();
+        if (position > 0 && (position >= capacity || isExpired()))
+        {
+            long partial = position % packetSize;
+            if (partial != 0)
+                return packetSize - partial; // 先补齐当前包，保证分段在包边界上切换
+
+            roll();
+            position = 0;
+        }
+        return capacity - position;
+    }
+
+    FileChannel channel()
+    {
+        return channel;
+    }
+
+    String currentName()
+    {
+        return currentFile.getPath();
+    }
+
+    int index()
+    {
+        return index;
+    }
+
+    long deleted()
+    {
+        return deleted;
+    }
+
+    /**
+     * 关闭当前分段，等待后台的删除任务完成。
+     */
+    void close() throws IOException
+    {
+        try
+        {
+            current.close();
+        } finally
+        {
+            Future<RandomAccessFile> pending = next;
+            next = null;
+            int unused = index + 1;
+            worker.execute(() -> discard(pending, unused));
+            worker.shutdown();
+            try
+            {
+                worker.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean isExpired()
+    {
+        return segmentNanos > 0 && System.nanoTime() - start >= segmentNanos;
+    }
+
+    private void roll() throws IOException
+    {
+        current.close();
+        finished.addLast(currentFile);
+        expire();
+
+        try
+        {
+            current = next.get();
+        } catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException("无法创建分段文件", cause);
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("创建分段文件时被中断", ex);
+        }
+        activate(index + 1);
+    }
+
+    private void activate(int segmentIndex)
+    {
+        File file = segmentFile(segmentIndex);
+        channel = current.getChannel();
+        start = System.nanoTime();
+        currentFile = file;
+        index = segmentIndex;
+        next = worker.submit(() -> open(segmentIndex + 1)); // 提前准备下一个分段
+    }
+
+    /**
+     * 把目录中已有的同名分段按序号登记为已完成的分段。
+     *
+     * @return 已有分段的最大序号，没有时为0
+     */
+    private int scanExisting() throws IOException
+    {
+        String[] names = directory.list();
+        if (names == null)
+            throw new IOException("无法读取目录：" + directory);
+
+        int[] indices = Arrays.stream(names).mapToInt(this::indexOf).filter(i -> i > 0).sorted().toArray();
+        for (int i : indices)
+            finished.addLast(segmentFile(i));
+        return (indices.length == 0) ? 0 : indices[indices.length - 1];
+    }
+
+    private int indexOf(String name)
+    {
+        int digits = name.length() - prefix.length() - suffix.length() - 1;
+        if (digits < 6 || digits > 9 || !name.startsWith(prefix + "-") || !name.endsWith(suffix))
+            return 0;
+        String number = name.substring(prefix.length() + 1, prefix.length() + 1 + digits);
+        if (!number.chars().allMatch(Character::isDigit))
+            return 0;
+        return Integer.parseInt(number);
+    }
+
+    /**
+     * 删除超出保留数量的旧分段（为正在写入的分段留出一个名额）。
+     */
+    private void expire()
+    {
+        while (retention > 0 && finished.size() >= retention)
+        {
+            File expired = finished.pollFirst();
+            worker.execute(() -> delete(expired));
+        }
+    }
+
+    private RandomAccessFile open(int segmentIndex) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segmentIndex), "rw");
+        try
+        {
+            file.setLength(0); // 序号不会重复，这里只是防止残留的同名文件
+        } catch (IOException ex)
+        {
+            file.close();
+            throw ex;
+        }
+        return file;
+    }
+
+    private void discard(Future<RandomAccessFile> pending, int segmentIndex)
+    {
+        if (pending == null)
+            return;
+        try
+        {
+            pending.get().close();
+        } catch (Exception ex)
+        {
+            // 未能创建的分段不需要清理
+        }
+        segmentFile(segmentIndex).delete();
+    }
+
+    private void delete(File file)
+    {
+        if (file.delete())
+            deleted++;
+        else
+            System.err.printf("Can not delete segment[%s], pass.%n", file.getPath());
+    }
+
+    private File segmentFile(int segmentIndex)
+    {
+        return new File(directory, String.format("%s-%06d%s", prefix, segmentIndex, suffix));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 文件数据源。FileRxChannel通过不同的数据源实现选择文件的读取方式。
+ */
+interface FileSource
+{
+    /**
+     * 从当前位置读取数据，最多填满缓冲区的剩余空间。
+     *
+     * @param dst 结果缓冲区
+     * @return 实际读取的长度，-1表示已到达文件末尾
+     * @throws IOException IO异常
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * 分散读取数据，依次填充各缓冲区。
+     *
+     * @param dsts 结果缓冲区数组
+     * @param offset 第一个缓冲区在数组中的位置
+     * @param length 参与读取的缓冲区数量
+     * @return 实际读取的长度，-1表示已到达文件末尾
+     * @throws IOException IO异常
+     */
+    default long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            ByteBuffer dst = dsts[i];
+            int n = read(dst);
+            if (n < 0)
+                return (total == 0) ? -1 : total;
+            total += n;
+            if (dst.hasRemaining())
+                break;
+        }
+        return total;
+    }
+
+    long position() throws IOException;
+
+    void position(long position) throws IOException;
+
+    long size() throws IOException;
+
+    void close() throws IOException;
+}
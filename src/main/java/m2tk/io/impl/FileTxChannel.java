@@ -20,37 +20,151 @@ import m2tk.io.TxChannel;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+/**
+ * 文件输出通道。
+ * <p>
+ * 异步模式下数据先进入多个轮换的缓冲区，由后台线程写入文件并按码率限速，写入线程不会因磁盘刷写或限速等待而阻塞；
+ * 缓冲区用尽时丢弃新数据，丢弃的包数计入统计。
+ * <p>
+ * 分段模式下按大小或时长滚动写入新的分段文件，不再回绕覆盖，参见{@link FileSegments}。
+ * <p>
+ * 开启索引时边写边生成时间索引（{@link TimeIndex}），定期追加到索引文件，关闭时保存完整索引。
+ */
 final class FileTxChannel implements TxChannel
 {
     private final RandomAccessFile file;
+    private final FileChannel channel;
     private int bitrate;
-    private long limit;
-    private final byte[] buf;
-    private int buffered;
-    private long lastTimePoint;
+    private volatile long limit; // 异步模式下由后台线程读取
+    private volatile int packetSize;
+    private int bufferedPacketSize; // 同步模式下缓存中数据的包长度
+    private final ByteBuffer buf;
+    private final RatePacer pacer;
+    private final StatsCounters stats = new StatsCounters(() -> packetSize);
+    private final AsyncFileWriter async;
+    private final FileSegments segments;
+    private final File indexFile;
+    private volatile TimeIndex index;
+    private long indexSaved;
+
+    private static final long INDEX_SAVE_INTERVAL_NANOS = 10_000_000_000L; // 索引每10秒追加保存一次
 
     FileTxChannel(File f) throws IOException
     {
-        file = new RandomAccessFile(f, "rw");
-        file.setLength(0);
+        this(f, 0, null, false);
+    }
+
+    /**
+     * @param f 输出文件
+     * @param asyncBuffers 异步写入的缓冲区数量，为0时同步写入。
+     * @param segments 分段录制文件，为null时写入单个文件（达到上限后回绕）。
+     * @param indexed 是否同时生成时间索引（不支持分段录制）
+     */
+    FileTxChannel(File f, int asyncBuffers, FileSegments segments, boolean indexed) throws IOException
+    {
+        if (indexed && segments != null)
+            throw new IllegalArgumentException("分段录制不支持时间索引");
+
+        this.segments = segments;
+        indexFile = indexed ? new File(f.getAbsolutePath() + TimeIndex.SUFFIX) : null;
+        index = indexed ? new TimeIndex(PacketFormat.TS_PACKET_SIZE) : null;
+        indexSaved = System.nanoTime();
+        if (segments == null)
+        {
+            file = new RandomAccessFile(f, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            if (!indexed)
+                new File(f.getAbsolutePath() + TimeIndex.SUFFIX).delete(); // 文件已截断，原有的索引文件作废
+        } else
+        {
+            file = null;
+            channel = null;
+        }
         bitrate = -1;
         limit = 1024 * 1024 * 1024L; // 1GB
-        buf = new byte[188 * 100]; // 缓存小反而能减少等待时间
-        resetBuffer();
+        packetSize = PacketFormat.TS_PACKET_SIZE;
+        bufferedPacketSize = packetSize;
+        buf = ByteBuffer.allocateDirect(188 * 100); // 缓存小反而能减少等待时间
+        pacer = new RatePacer(buf.capacity());
+        try
+        {
+            async = (asyncBuffers == 0) ? null : new AsyncFileWriter(f.getName(), asyncBuffers, this::writeBuffer);
+        } catch (RuntimeException ex)
+        {
+            if (segments != null)
+                segments.close();
+            else
+                file.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "bitrate".equals(property) ||
+               "measured bitrate".equals(property) ||
+               "burst".equals(property) ||
+               "packet size".equals(property) ||
+               "async buffers".equals(property) ||
+               "async pending".equals(property) ||
+               "async overflows".equals(property) ||
+               "segment".equals(property) ||
+               "segment index".equals(property) ||
+               "segments deleted".equals(property) ||
+               "index entries".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"bitrate", "measured bitrate", "burst", "packet size", "async buffers", "async pending", "async overflows", "segment", "segment index", "segments deleted", "index entries"}, StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("bitrate".equals(property))
+            return bitrate;
+        if ("measured bitrate".equals(property))
+            return pacer.getMeasuredBitrate();
+        if ("burst".equals(property))
+            return (int) (pacer.getBurstBytes() / packetSize);
+        if ("packet size".equals(property))
+            return packetSize;
+        if ("async buffers".equals(property))
+            return (async == null) ? 0 : async.buffers();
+        if ("async pending".equals(property))
+            return (async == null) ? 0 : async.pending();
+        if ("async overflows".equals(property))
+            return overflows();
+        if ("segment".equals(property))
+            return (segments == null) ? null : segments.currentName();
+        if ("segment index".equals(property))
+            return (segments == null) ? 0 : segments.index();
+        if ("segments deleted".equals(property))
+            return (segments == null) ? 0L : segments.deleted();
+        if ("index entries".equals(property))
+            return (index == null) ? 0 : index.size();
+        return stats.query(property, overflows());
     }
 
     @Override
     public boolean hasCommand(String command)
     {
-        return "bitrate".equals(command) || "limit".equals(command);
+        return "bitrate".equals(command) || "limit".equals(command) || "burst".equals(command) ||
+               "packet size".equals(command) || StatsCounters.RESET_COMMAND.equals(command);
     }
 
     @Override
     public String[] getCommandList()
     {
-        return new String[]{"bitrate", "limit"};
+        return StatsCounters.withStats(new String[]{"bitrate", "limit", "burst", "packet size"}, StatsCounters.RESET_COMMAND);
     }
 
     @Override
@@ -60,6 +174,12 @@ final class FileTxChannel implements TxChannel
             doSetBitrate(arguments);
         if ("limit".equals(command))
             doSetLimit(arguments);
+        if ("burst".equals(command))
+            doSetBurst(arguments);
+        if ("packet size".equals(command))
+            doSetPacketSize(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(overflows());
     }
 
     @Override
@@ -68,15 +188,84 @@ final class FileTxChannel implements TxChannel
         if (offset < 0 || bytes.length - offset < length)
             throw new IllegalArgumentException("无效的偏移量：" + offset);
 
-        if (length % 188 != 0)
-            throw new IllegalArgumentException("数据长度必须为188字节的整数倍");
+        write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException
+    {
+        if (src.remaining() % packetSize != 0)
+            throw new IllegalArgumentException("数据长度必须为" + packetSize + "字节的整数倍");
+        stats.transfer(src.remaining());
+
+        if (async != null)
+        {
+            async.put(src, packetSize);
+            return;
+        }
+
+        if (canWriteThrough(src.remaining()))
+        {
+            // 不限速且数据量足够大时，直接从调用者缓冲区写入文件，省去缓存拷贝。
+            pace(src.remaining());
+            writeFully(src, packetSize);
+            return;
+        }
 
-        while (length > 0)
+        while (src.hasRemaining())
         {
-            int cached = cache(bytes, offset, length);
+            cache(src);
             writeFile(isCacheFull());
-            length -= cached;
-            offset += cached;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        if (offset < 0 || length < 0 || srcs.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += srcs[i].remaining();
+        if (total % packetSize != 0)
+            throw new IllegalArgumentException("数据长度必须为" + packetSize + "字节的整数倍");
+        stats.transfer(total);
+
+        if (async != null)
+        {
+            for (int i = offset; i < offset + length; i++)
+                async.put(srcs[i], packetSize);
+            return;
+        }
+
+        if (canWriteThrough(total))
+        {
+            pace((int) total);
+            if (index != null)
+            {
+                long position = channel.position();
+                for (int i = offset; i < offset + length; i++)
+                {
+                    index.scan(srcs[i], position);
+                    position += srcs[i].remaining();
+                }
+            }
+            long written = 0;
+            while (written < total)
+                written += channel.write(srcs, offset, length);
+            saveIndex();
+            return;
+        }
+
+        for (int i = offset; i < offset + length; i++)
+        {
+            ByteBuffer src = srcs[i];
+            while (src.hasRemaining())
+            {
+                cache(src);
+                writeFile(isCacheFull());
+            }
         }
     }
 
@@ -84,9 +273,27 @@ final class FileTxChannel implements TxChannel
     public void close() throws IOException
     {
         bitrate = -1; // 取消限速，避免等待。
-        writeFile(true);
-        file.setLength(file.getFilePointer());
-        file.close();
+        synchronized (pacer)
+        {
+            pacer.setBitrate(-1);
+        }
+        try
+        {
+            if (async != null)
+                async.close(); // 等待后台线程写完全部缓存的数据
+            else
+                writeFile(true);
+            if (segments == null)
+                file.setLength(channel.position());
+            if (index != null)
+                index.save(indexFile);
+        } finally
+        {
+            if (segments != null)
+                segments.close();
+            else
+                file.close();
+        }
     }
 
     private void doSetBitrate(Object[] arguments)
@@ -106,6 +313,54 @@ final class FileTxChannel implements TxChannel
         if (value <= 0)
             throw new IllegalArgumentException("无效比特率：" + arg);
         bitrate = value;
+        synchronized (pacer)
+        {
+            pacer.setBitrate(value);
+        }
+    }
+
+    private void doSetBurst(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        // 突发量以TS包为单位，最小为1（逐包均匀输出）。
+        if (value < 1 || value > buf.capacity() / packetSize)
+            throw new IllegalArgumentException("无效突发量：" + arg);
+        synchronized (pacer)
+        {
+            pacer.setBurstBytes((long) value * packetSize);
+        }
+    }
+
+    private void doSetPacketSize(Object[] arguments)
+    {
+        int value = PacketFormat.parse(arguments, false);
+        if (index != null && value != index.packetSize())
+        {
+            if (index.covered() > 0)
+                throw new IllegalArgumentException("生成时间索引时不能修改包长度");
+            index = new TimeIndex(value);
+        }
+        if (async != null)
+            async.flush(); // 当前缓冲区按原有包长度对齐，先交给后台线程
+
+        // 突发量保持原有的包数
+        synchronized (pacer)
+        {
+            long burst = Math.min(pacer.getBurstBytes() / packetSize, buf.capacity() / value);
+            packetSize = value;
+            pacer.setBurstBytes(Math.max(1, burst) * packetSize);
+        }
     }
 
     private void doSetLimit(Object[] arguments)
@@ -129,50 +384,112 @@ final class FileTxChannel implements TxChannel
         limit = value * 1024 * 1024;
     }
 
-    private int cache(byte[] bytes, int offset, int length)
+    private boolean canWriteThrough(long length) throws IOException
+    {
+        return bitrate <= 0 &&
+               segments == null &&
+               buf.position() == 0 &&
+               length >= buf.capacity() &&
+               channel.position() + length <= limit;
+    }
+
+    private void cache(ByteBuffer src) throws IOException
     {
-        int count = Math.min(length, buf.length - buffered);
-        System.arraycopy(bytes, offset, buf, buffered, count);
-        buffered += count;
-        return count;
+        if (buf.position() > 0 && bufferedPacketSize != packetSize)
+            writeBuffer(buf, bufferedPacketSize); // 包长度改变，缓存中的数据按原有包长度先写出
+        if (buf.position() == 0)
+            bufferedPacketSize = packetSize;
+
+        int count = Math.min(src.remaining(), buf.remaining());
+        int srcLimit = src.limit();
+        src.limit(src.position() + count);
+        buf.put(src);
+        src.limit(srcLimit);
     }
 
     private boolean isCacheFull()
     {
-        return (buffered == buf.length);
+        return !buf.hasRemaining();
     }
 
     private void writeFile(boolean immediately) throws IOException
     {
-        if (!immediately && buffered < buf.length)
+        if (!immediately && buf.hasRemaining())
             return;
 
-        // 批量输出，并按照带宽要求控制输出速率
-        long expectedTimeNanos = buffered * 8 * 1000_000_000L / bitrate; // 按照指定带宽输出需要的时间
-        long t0 = lastTimePoint;
-        if (file.getFilePointer() < limit)
-        {
-            file.write(buf, 0, buffered);
-            resetBuffer();
-        } else
+        writeBuffer(buf, bufferedPacketSize);
+    }
+
+    /**
+     * 写出缓冲区中的数据（position为数据长度）并清空缓冲区。异步模式下由后台线程调用。
+     *
+     * @param packetSize 缓冲区中数据的包长度（填充时的包长度，之后可能已被修改）
+     */
+    private void writeBuffer(ByteBuffer data, int packetSize) throws IOException
+    {
+        if (segments == null && channel.position() >= limit)
         {
-            file.seek(0);
-            resetBuffer();
+            channel.position(0);
+            if (index != null)
+                index.reset(0); // 回绕后原有索引失效
+            stats.drop(data.position() / packetSize); // 缓存中的数据被丢弃
+            data.clear();
+            stats.wrap();
+            long t0 = System.nanoTime();
             sleep(100);
+            stats.blocked(System.nanoTime() - t0);
+            return;
         }
 
-        long elapsedTimeNanos = System.nanoTime() - t0;
+        // 按突发量分批输出，由令牌桶控制输出速率（bitrate为负数时不限速）
+        data.flip();
+        int end = data.limit();
+        while (data.position() < end)
+        {
+            long burst = Math.max(packetSize, pacer.getBurstBytes() / packetSize * packetSize); // 按本缓冲区的包长度对齐
+            int chunk = (int) Math.min(burst, end - data.position());
+            pace(chunk);
+            data.limit(data.position() + chunk);
+            writeFully(data, packetSize);
+            data.limit(end);
+        }
+        data.clear();
+    }
 
-        // 当bitrate为负数时，表示不限速输出。
-        if (bitrate > 0)
+    private void writeFully(ByteBuffer data, int packetSize) throws IOException
+    {
+        if (segments == null)
         {
-            if (elapsedTimeNanos < expectedTimeNanos)
-            {
-                // 实际输出速度高于额定速度，需要减速（等待）
-                long waitMillis = (expectedTimeNanos - elapsedTimeNanos) / 1000_000; // 1000_000 ns = 1 ms
-                sleep(waitMillis);
-            }
-            lastTimePoint = System.nanoTime();
+            if (index != null)
+                index.scan(data, channel.position());
+            while (data.hasRemaining())
+                channel.write(data);
+            saveIndex();
+            return;
+        }
+
+        // 分段模式：写满当前分段后切换到下一个分段，切换点总在包边界上。
+        int end = data.limit();
+        while (data.position() < end)
+        {
+            long room = segments.room(packetSize);
+            data.limit((int) Math.min(end, data.position() + room));
+            while (data.hasRemaining())
+                segments.channel().write(data);
+            data.limit(end);
+        }
+    }
+
+    private void saveIndex() throws IOException
+    {
+        if (index == null)
+            return;
+
+        long now = System.nanoTime();
+        if (now - indexSaved >= INDEX_SAVE_INTERVAL_NANOS)
+        {
+            index.save(indexFile);
+            indexSaved = now;
         }
     }
 
@@ -187,18 +504,30 @@ final class FileTxChannel implements TxChannel
         }
     }
 
-    private void resetBuffer()
+    private long overflows()
     {
-        Arrays.fill(buf, (byte) 0xFF);
-        for (int i = 0; i < buf.length; i += 188)
+        return (async == null) ? 0 : async.overflows();
+    }
+
+    private void pace(int bytes)
+    {
+        // 异步模式下限速在后台线程进行：只在登记发送时刻时与控制指令互斥，等待在锁外进行。
+        // 修改码率（包括关闭时取消限速）会唤醒等待，按新码率重新登记。
+        long start = System.nanoTime();
+        long sendTime;
+        while (true)
         {
-            buf[i    ] = 0x47;
-            buf[i + 1] = 0x1F;
-            buf[i + 2] = (byte) 0xFF;
-            buf[i + 3] = 0x1F;  // scrambling_control: 00
-                                // adaptation_field_control: 01
-                                // continuity_counter: 1111
+            int generation;
+            synchronized (pacer)
+            {
+                sendTime = pacer.reserve(bytes);
+                generation = pacer.generation();
+                stats.lag(pacer.getLagNanos());
+            }
+            if (pacer.await(sendTime, generation))
+                break;
         }
-        buffered = 0;
+        pacer.record(bytes);
+        stats.blocked((sendTime - start > 0) ? System.nanoTime() - start : 0);
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于内存映射的文件数据源。
+ * <p>
+ * 文件按固定大小的窗口分段映射（单个映射不能超过2GB），读取时直接从映射区拷贝数据，不再经过系统调用。
+ * 窗口读完后自动映射下一段，因此可以处理任意大小的文件。
+ */
+final class MappedFileSource implements FileSource
+{
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024; // 64MB
+
+    private final FileChannel channel;
+    private final int windowSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    MappedFileSource(FileChannel channel, int windowSize) throws IOException
+    {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("无效的映射窗口大小：" + windowSize);
+
+        this.channel = channel;
+        this.windowSize = windowSize;
+        this.position = channel.position();
+    }
+
+    int windowSize()
+    {
+        return windowSize;
+    }
+
+    long windowStart()
+    {
+        return (window == null) ? -1 : windowStart;
+    }
+
+    /**
+     * 获取覆盖当前位置的映射窗口，窗口的position即为当前读取位置。
+     *
+     * @return 映射窗口，已到达文件末尾时返回null
+     * @throws IOException IO异常
+     */
+    ByteBuffer window() throws IOException
+    {
+        return window(1);
+    }
+
+    /**
+     * 获取覆盖当前位置的映射窗口，并尽量保证窗口内至少还有指定数量的剩余数据。
+     * <p>
+     * 当前窗口剩余数据不足时，从当前位置开始重新映射（文件末尾不足时以实际剩余数据为准）。
+     *
+     * @param minRemaining 期望的最少剩余数据量
+     * @return 映射窗口，已到达文件末尾时返回null
+     * @throws IOException IO异常
+     */
+    ByteBuffer window(int minRemaining) throws IOException
+    {
+        if (window != null && window.remaining() >= minRemaining)
+            return window;
+
+        long size = channel.size(); // 文件可能仍在增长，每次映射前重新获取长度。
+        if (position >= size)
+            return null;
+        if (window != null && window.hasRemaining() && windowStart + window.limit() == size)
+            return window; // 当前窗口已覆盖到文件末尾
+
+        long length = Math.min(windowSize, size - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        windowStart = position;
+        return window;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (!dst.hasRemaining())
+            return 0;
+
+        ByteBuffer src = window();
+        if (src == null)
+            return -1;
+
+        int count = Math.min(dst.remaining(), src.remaining());
+        int srcLimit = src.limit();
+        src.limit(src.position() + count);
+        dst.put(src);
+        src.limit(srcLimit);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long position()
+    {
+        return position;
+    }
+
+    @Override
+    public void position(long newPosition)
+    {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("无效的位置：" + newPosition);
+
+        if (window != null &&
+            newPosition >= windowStart &&
+            newPosition <= windowStart + window.limit())
+        {
+            window.position((int) (newPosition - windowStart));
+        } else
+        {
+            window = null; // 新位置不在当前窗口内，下次读取时重新映射。
+        }
+        position = newPosition;
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        window = null; // 映射区在缓冲区对象被回收时释放
+        channel.close();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.Protocol;
+import m2tk.io.RxChannel;
+import m2tk.io.TxChannel;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * 内存管道协议：mem://name 。
+ * <p>
+ * 同名的输出通道与输入通道经由内存环形缓存相连，不需要文件或网络，适合在同一个进程内测试和评估处理流程。
+ * 缓存大小由先打开的一端指定：mem://name?size=4096 （单位为KB）；输出端可以限速：mem://name?bitrate=10000000 。
+ */
+public final class MemoryProtocol implements Protocol
+{
+    @Override
+    public String[] getSchemes()
+    {
+        return new String[]{"mem"};
+    }
+
+    @Override
+    public boolean accepts(String resource)
+    {
+        try
+        {
+            URI uri = URI.create(resource);
+            return "mem".equalsIgnoreCase(uri.getScheme()) && uri.getAuthority() != null;
+        } catch (IllegalArgumentException ex)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public RxChannel openRxChannel(String resource) throws IOException
+    {
+        URI uri = URI.create(resource);
+        return new MemoryRxChannel(attach(uri, false));
+    }
+
+    @Override
+    public TxChannel openTxChannel(String resource) throws IOException
+    {
+        URI uri = URI.create(resource);
+        UriParameters params = UriParameters.of(uri);
+
+        MemoryTxChannel channel = new MemoryTxChannel(attach(uri, true));
+        try
+        {
+            if (params.contains("bitrate"))
+                channel.control("bitrate", params.get("bitrate"));
+        } catch (RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    private static MemoryRing attach(URI uri, boolean writer) throws IOException
+    {
+        String name = uri.getAuthority();
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("缺少内存通道名称：" + uri);
+
+        int sizeKB = UriParameters.of(uri).getInt("size", MemoryRing.DEFAULT_SIZE_KB);
+        if (sizeKB < 4 || sizeKB > MemoryRing.MAX_SIZE_KB)
+            throw new IllegalArgumentException("无效的内存通道缓存大小：" + sizeKB);
+        return MemoryRing.attach(name, sizeKB, writer);
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        switch (property)
+        {
+            case "name":
+            case "version":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return new String[]{"name", "version"};
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        switch (property)
+        {
+            case "name":
+                return "Memory Protocol";
+            case "version":
+                return "1.0.0";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 内存环形管道：一个写者、一个读者，不加锁。
+ * <p>
+ * 写位置（head）只由写者改写，读位置（tail）只由读者改写，双方各自缓存对方的位置，只在缓存的位置不够用时才重新读取。
+ * 缓存满时写者等待，缓存空时读者等待；等待的一方先登记自己，再复查条件后park，另一方推进位置后unpark，不会丢失唤醒。
+ * <p>
+ * 同名的管道按名称登记，两端可以按任意顺序打开；写端关闭后读者读完剩余数据得到流结束，两端都关闭后注销。
+ */
+final class MemoryRing
+{
+    static final int DEFAULT_SIZE_KB = 4096;
+    static final int MAX_SIZE_KB = 1024 * 1024;
+
+    private static final Map<String, MemoryRing> RINGS = new HashMap<>();
+
+    private final String name;
+    private final byte[] data;
+    private final int mask;
+    private volatile long head;
+    private volatile long tail;
+    private volatile Thread producerWaiting;
+    private volatile Thread consumerWaiting;
+    private volatile boolean writerClosed;
+    private volatile boolean readerClosed;
+    private long cachedTail; // 只由写者访问
+    private long cachedHead; // 只由读者访问
+    private boolean writerAttached; // 由RINGS保护
+    private boolean readerAttached; // 由RINGS保护
+
+    private MemoryRing(String name, int capacity)
+    {
+        this.name = name;
+        data = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * 连接到指定名称的管道，不存在时按给定大小创建。
+     *
+     * @param name 名称
+     * @param sizeKB 缓存大小（KB，向上取整为2的幂），只在创建时生效
+     * @param writer 是否作为写端连接
+     */
+    static MemoryRing attach(String name, int sizeKB, boolean writer) throws IOException
+    {
+        synchronized (RINGS)
+        {
+            MemoryRing ring = RINGS.get(name);
+            if (ring == null)
+            {
+                ring = new MemoryRing(name, (Integer.highestOneBit(Math.max(1, sizeKB - 1)) << 1) * 1024); // 向上取整为2的幂
+                RINGS.put(name, ring);
+            }
+            if (writer ? ring.writerAttached : ring.readerAttached)
+                throw new IOException("内存通道的" + (writer ? "发送端" : "接收端") + "已被占用：" + name);
+
+            if (writer)
+                ring.writerAttached = true;
+            else
+                ring.readerAttached = true;
+            return ring;
+        }
+    }
+
+    String name()
+    {
+        return name;
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * @return 尚未读取的字节数
+     */
+    long available()
+    {
+        return head - tail;
+    }
+
+    /**
+     * 写入全部数据，缓存满时等待读者。
+     *
+     * @return 等待读者的时间（纳秒）
+     */
+    long write(ByteBuffer src) throws IOException
+    {
+        int capacity = mask + 1;
+        long waited = 0;
+        while (src.hasRemaining())
+        {
+            long h = head;
+            long free = capacity - (h - cachedTail);
+            if (free == 0)
+            {
+                cachedTail = tail;
+                free = capacity - (h - cachedTail);
+                if (free == 0)
+                {
+                    long t0 = System.nanoTime();
+                    awaitSpace(h);
+                    waited += System.nanoTime() - t0;
+                    continue;
+                }
+            }
+
+            int index = (int) (h & mask);
+            int n = (int) Math.min(Math.min(free, src.remaining()), capacity - index);
+            src.get(data, index, n);
+            head = h + n; // 先写数据，再公布位置
+            wakeUp(consumerWaiting);
+        }
+        return waited;
+    }
+
+    /**
+     * 读取数据：只等待第一批数据，之后只读取已经写入的数据。
+     *
+     * @param timeout 等待超时（毫秒），0表示一直等待
+     * @return 读取的字节数，写端已关闭且数据已读完时返回-1
+     */
+    int read(ByteBuffer dst, int timeout) throws IOException
+    {
+        long t = tail;
+        if (cachedHead == t)
+        {
+            cachedHead = head;
+            if (cachedHead == t && !awaitData(t, timeout))
+                return -1;
+        }
+
+        int received = 0;
+        while (dst.hasRemaining() && t < cachedHead)
+        {
+            int index = (int) (t & mask);
+            int n = (int) Math.min(Math.min(cachedHead - t, dst.remaining()), mask + 1 - index);
+            dst.put(data, index, n);
+            t += n;
+            received += n;
+        }
+        tail = t; // 读完数据后再公布位置，写者才能覆盖
+        wakeUp(producerWaiting);
+        return received;
+    }
+
+    void closeWriter()
+    {
+        writerClosed = true;
+        wakeUp(consumerWaiting);
+        release();
+    }
+
+    void closeReader()
+    {
+        readerClosed = true;
+        wakeUp(producerWaiting);
+        release();
+    }
+
+    private void release()
+    {
+        synchronized (RINGS)
+        {
+            // 写端关闭后保留管道，直到读者连接并关闭，保证先写后读的用法不丢数据。
+            if (readerClosed && (writerClosed || !writerAttached) && RINGS.get(name) == this)
+                RINGS.remove(name);
+        }
+    }
+
+    private void awaitSpace(long h) throws IOException
+    {
+        producerWaiting = Thread.currentThread();
+        try
+        {
+            while (h - (cachedTail = tail) == mask + 1)
+            {
+                if (readerClosed)
+                    throw new IOException("内存通道的接收端已关闭：" + name);
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("发送被中断");
+                LockSupport.park(this);
+            }
+        } finally
+        {
+            producerWaiting = null;
+        }
+    }
+
+    private boolean awaitData(long t, int timeout) throws IOException
+    {
+        long deadline = System.nanoTime() + timeout * 1000_000L;
+        consumerWaiting = Thread.currentThread();
+        try
+        {
+            while ((cachedHead = head) == t)
+            {
+                if (writerClosed)
+                {
+                    cachedHead = head; // 关闭前写入的数据
+                    return cachedHead != t;
+                }
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("接收被中断");
+                if (timeout == 0)
+                {
+                    LockSupport.park(this);
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    throw new SocketTimeoutException("接收超时");
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        } finally
+        {
+            consumerWaiting = null;
+        }
+    }
+
+    private static void wakeUp(Thread waiting)
+    {
+        if (waiting != null)
+            LockSupport.unpark(waiting);
+    }
+}
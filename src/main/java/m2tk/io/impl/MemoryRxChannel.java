@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.RxChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 内存管道的接收端。读取时只等待第一批数据，写端关闭且数据读完后返回流结束。
+ */
+final class MemoryRxChannel implements RxChannel
+{
+    private final MemoryRing ring;
+    private final PacketReader packetReader = new PacketReader(this::read);
+    private final StatsCounters stats = new StatsCounters(packetReader::packetSize);
+    private int timeout;
+    private boolean closed;
+
+    MemoryRxChannel(MemoryRing ring)
+    {
+        this.ring = ring;
+        timeout = 30000; // 30s
+        closed = false;
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "source name".equals(property) ||
+               "timeout".equals(property) ||
+               "capacity".equals(property) ||
+               "available".equals(property) ||
+               "packet size".equals(property) ||
+               "convert".equals(property) ||
+               "sync losses".equals(property) ||
+               "skipped bytes".equals(property) ||
+               "pidFilter".equals(property) ||
+               "pidFilter.drops".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"source name", "timeout", "capacity", "available", "packet size", "convert",
+                                                    "sync losses", "skipped bytes", "pidFilter", "pidFilter.drops"},
+                                       StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("source name".equals(property))
+            return "mem://" + ring.name();
+        if ("timeout".equals(property))
+            return timeout;
+        if ("capacity".equals(property))
+            return ring.capacity();
+        if ("available".equals(property))
+            return ring.available();
+        if ("packet size".equals(property))
+            return packetReader.packetSize();
+        if ("convert".equals(property))
+            return packetReader.isConvert();
+        if ("sync losses".equals(property))
+            return packetReader.syncLosses();
+        if ("skipped bytes".equals(property))
+            return packetReader.skippedBytes();
+        if ("pidFilter".equals(property))
+            return packetReader.filter().selected();
+        if ("pidFilter.drops".equals(property))
+            return packetReader.filter().drops();
+        return stats.query(property, 0);
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return "timeout".equals(command) || "sync".equals(command) ||
+               "packet size".equals(command) || "convert".equals(command) || "pidFilter".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"timeout", "sync", "packet size", "convert", "pidFilter"}, StatsCounters.RESET_COMMAND);
+    }
+
+    @Override
+    public void control(String command, Object... arguments)
+    {
+        if ("timeout".equals(command))
+            doSetTimeout(arguments);
+        if ("sync".equals(command))
+            packetReader.reset(); // 下次按包读取时重新同步
+        if ("packet size".equals(command))
+            packetReader.setPacketSize(PacketFormat.parse(arguments, true));
+        if ("convert".equals(command))
+            doSetConvert(arguments);
+        if ("pidFilter".equals(command))
+            packetReader.filter().set(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(0);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (offset < 0 || buffer.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        return read(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        long t0 = System.nanoTime();
+        boolean empty = (ring.available() == 0);
+        int nRead = ring.read(dst, timeout);
+        if (empty)
+            stats.blocked(System.nanoTime() - t0); // 缓存为空时需要等待写者
+        stats.transfer(nRead);
+        return nRead;
+    }
+
+    @Override
+    public int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        return packetReader.readPackets(dst, maxPackets);
+    }
+
+    @Override
+    public void close()
+    {
+        if (!closed)
+        {
+            closed = true;
+            ring.closeReader();
+        }
+    }
+
+    private void doSetTimeout(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value < 0)
+            throw new IllegalArgumentException("无效超时：" + arg);
+        timeout = value;
+    }
+
+    private void doSetConvert(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            packetReader.setConvert((boolean) arg);
+        else if (arg instanceof String)
+            packetReader.setConvert(Boolean.parseBoolean((String) arg));
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
+}
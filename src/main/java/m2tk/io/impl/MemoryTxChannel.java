@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.TxChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 内存管道的发送端，可以按码率限速（默认不限速）。
+ */
+final class MemoryTxChannel implements TxChannel
+{
+    private static final int BURST_PACKETS = 100;
+
+    private final MemoryRing ring;
+    private final RatePacer pacer;
+    private final StatsCounters stats = new StatsCounters();
+    private int bitrate;
+    private boolean closed;
+
+    MemoryTxChannel(MemoryRing ring)
+    {
+        this.ring = ring;
+        pacer = new RatePacer(188 * BURST_PACKETS);
+        bitrate = -1;
+        closed = false;
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "target name".equals(property) ||
+               "bitrate".equals(property) ||
+               "measured bitrate".equals(property) ||
+               "burst".equals(property) ||
+               "capacity".equals(property) ||
+               "available".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"target name", "bitrate", "measured bitrate", "burst", "capacity", "available"},
+                                       StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("target name".equals(property))
+            return "mem://" + ring.name();
+        if ("bitrate".equals(property))
+            return bitrate;
+        if ("measured bitrate".equals(property))
+            return pacer.getMeasuredBitrate();
+        if ("burst".equals(property))
+            return (int) (pacer.getBurstBytes() / 188);
+        if ("capacity".equals(property))
+            return ring.capacity();
+        if ("available".equals(property))
+            return ring.available();
+        return stats.query(property, 0);
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return "bitrate".equals(command) || "burst".equals(command) || StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"bitrate", "burst"}, StatsCounters.RESET_COMMAND);
+    }
+
+    @Override
+    public void control(String command, Object... arguments)
+    {
+        if ("bitrate".equals(command))
+            doSetBitrate(arguments);
+        if ("burst".equals(command))
+            doSetBurst(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(0);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (offset < 0 || bytes.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        if (src.remaining() % 188 != 0)
+            throw new IllegalArgumentException("数据长度必须为188字节的整数倍");
+        stats.transfer(src.remaining());
+
+        if (bitrate <= 0)
+        {
+            pace(src.remaining()); // 只统计实测码率
+            write0(src);
+            return;
+        }
+
+        // 按突发量分批写入，由令牌桶控制输出速率。
+        int srcLimit = src.limit();
+        while (src.hasRemaining())
+        {
+            int chunk = (int) Math.min(pacer.getBurstBytes(), src.remaining());
+            pace(chunk);
+            src.limit(src.position() + chunk);
+            write0(src);
+            src.limit(srcLimit);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (!closed)
+        {
+            closed = true;
+            ring.closeWriter();
+        }
+    }
+
+    private void write0(ByteBuffer src) throws IOException
+    {
+        stats.blocked(ring.write(src));
+    }
+
+    private void doSetBitrate(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value <= 0)
+            throw new IllegalArgumentException("无效比特率：" + arg);
+        bitrate = value;
+        pacer.setBitrate(value);
+    }
+
+    private void doSetBurst(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        // 突发量以TS包为单位，最小为1（逐包均匀输出）。
+        if (value < 1 || (long) value * 188 > ring.capacity())
+            throw new IllegalArgumentException("无效突发量：" + arg);
+        pacer.setBurstBytes((long) value * 188);
+    }
+
+    private void pace(int bytes)
+    {
+        stats.blocked(pacer.acquire(bytes));
+        stats.lag(pacer.getLagNanos());
+    }
+}
@@ -20,55 +20,154 @@ import m2tk.io.RxChannel;
 import m2tk.io.TxChannel;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.URI;
-import java.net.UnknownHostException;
 
 public class MulticastProtocol implements Protocol
 {
+    @Override
+    public String[] getSchemes()
+    {
+        return new String[]{"udp", "rtp"};
+    }
+
     @Override
     public boolean accepts(String resource)
     {
-        URI uri = URI.create(resource);
-        String scheme = uri.getScheme();
-        if (!"udp".equalsIgnoreCase(uri.getScheme()))
-            return false;
-        String host = uri.getHost();
-        int port = uri.getPort();
-        if (host == null || port == -1)
-            return false;
+        return MulticastResource.parse(resource) != null;
+    }
 
-        try
-        {
-            InetAddress inetAddress = InetAddress.getByName(host);
-            if (!inetAddress.isMulticastAddress())
-                return false;
-        } catch (UnknownHostException ex)
+    @Override
+    public RxChannel openRxChannel(String resource) throws IOException
+    {
+        MulticastResource target = MulticastResource.parse(resource);
+        if (target == null)
+            throw new IllegalArgumentException("Unsupported resource: " + resource);
+
+        UriParameters params = target.params();
+
+        // 共享接收：udp://239.0.0.1:1234?share&policy=drop&backlog=1024 ，
+        // 同一组播地址的多个订阅者共用一个底层通道，各自独立读取。
+        if (params.getBoolean("share", false))
         {
-            return false;
+            String policy = params.get("policy", SharedRxChannel.POLICY_DROP);
+            if (!SharedRxChannel.isPolicy(policy))
+                throw new IllegalArgumentException("未知的慢速策略：" + policy);
+            int backlog = params.getInt("backlog", SharedRxSource.DEFAULT_BACKLOG);
+            if (backlog < 2)
+                throw new IllegalArgumentException("无效的共享缓存长度：" + backlog);
+            return SharedRxSource.subscribe(shareKey(target), backlog, policy, () -> openRxChannel(target));
         }
 
-        return true;
+        return openRxChannel(target);
     }
 
-    @Override
-    public RxChannel openRxChannel(String resource) throws IOException
+    /**
+     * 共享键值：包括所有影响底层通道的参数，参数不同的订阅者不会共用同一个底层通道。
+     */
+    private static String shareKey(MulticastResource target)
     {
-        if (!accepts(resource))
-            throw new IllegalArgumentException("Unsupported resource: " + resource);
+        UriParameters params = target.params();
+        String key = target.scheme() + "://" + target.group().getHostAddress() + ":" + target.port() +
+                     "?source=" + ((target.source() == null) ? "" : target.source().getHostAddress()) +
+                     "&nif=" + params.get("nif", "");
+        if (!"rtp".equals(target.scheme()))
+            return key + "&engine=" + engineOf(params) + "&ring=" + params.getInt("ring", 0);
+
+        key += "&fec=" + params.getBoolean("fec", false) +
+               "&jitter=" + params.getInt("jitter", RtpRxChannel.DEFAULT_JITTER) +
+               "&maxrate=" + params.getInt("maxrate", RtpRxChannel.DEFAULT_MAX_RATE);
+        if (target.leg2Group() != null)
+            key += "&leg2=" + target.leg2Group().getHostAddress() + ":" + target.leg2Port() +
+                   "&source2=" + ((target.leg2Source() == null) ? "" : target.leg2Source().getHostAddress()) +
+                   "&nif2=" + params.get("nif2", "") +
+                   "&skew=" + params.getInt("skew", RtpRxChannel.DEFAULT_SKEW);
+        return key;
+    }
 
-        URI uri = URI.create(resource);
-        return new MulticastRxChannel(uri.getHost(), uri.getPort());
+    private static RxChannel openRxChannel(MulticastResource target) throws IOException
+    {
+        UriParameters params = target.params();
+
+        // RTP：rtp://239.0.0.1:5000?fec&jitter=50 ，FEC包在端口+2（列）与端口+4（行）上接收。
+        // 双路无缝切换（2022-7）：rtp://239.0.0.1:5000?nif=eth0&leg2=239.0.1.1:5000&nif2=eth1&skew=150&maxrate=100
+        // skew为两路之间允许的时延差（毫秒），maxrate为最大码率（Mbit/s），两者决定重排缓存的大小。
+        if ("rtp".equals(target.scheme()))
+        {
+            int jitter = params.getInt("jitter", RtpRxChannel.DEFAULT_JITTER);
+            if (jitter < 0)
+                throw new IllegalArgumentException("无效的抖动窗口：" + jitter);
+            int skew = (target.leg2Group() == null) ? 0 : params.getInt("skew", RtpRxChannel.DEFAULT_SKEW);
+            if (skew < 0)
+                throw new IllegalArgumentException("无效的时延差：" + skew);
+            int maxRate = params.getInt("maxrate", RtpRxChannel.DEFAULT_MAX_RATE);
+            if (maxRate < 1)
+                throw new IllegalArgumentException("无效的最大码率：" + maxRate);
+            return new RtpRxChannel(target.group(), target.port(), target.source(), params.get("nif"),
+                                    params.getBoolean("fec", false), jitter,
+                                    target.leg2Group(), target.leg2Port(), target.leg2Source(), params.get("nif2"),
+                                    skew, maxRate);
+        }
+
+        // NIO引擎：udp://239.0.0.1:1234?engine=nio&source=10.0.0.1&nif=eth0
+        // 指定源地址（SSM）时只能使用NIO引擎。
+        // 事件循环引擎：udp://239.0.0.1:1234?engine=reactor&ring=128 ，大量组播组共用少数接收线程。
+        String engine = engineOf(params);
+        if ("nio".equals(engine))
+            return new NioMulticastRxChannel(target.group(), target.port(), target.source(), params.get("nif"));
+        if ("reactor".equals(engine))
+            return new ReactorRxChannel(target.group(), target.port(), target.source(), params.get("nif"),
+                                        params.getInt("ring", ReactorRxChannel.DEFAULT_RING_SIZE));
+
+        // 接收队列：udp://239.0.0.1:1234?ring=4096 （报文数），由独立线程接收报文。
+        int ringSize = params.getInt("ring", 0);
+        if (ringSize < 0)
+            throw new IllegalArgumentException("无效的队列长度：" + ringSize);
+
+        return new MulticastRxChannel(target.group(), target.port(), ringSize);
     }
 
     @Override
     public TxChannel openTxChannel(String resource) throws IOException
     {
-        if (!accepts(resource))
+        MulticastResource target = MulticastResource.parse(resource);
+        if (target == null)
             throw new IllegalArgumentException("Unsupported resource: " + resource);
 
-        URI uri = URI.create(resource);
-        return new MulticastTxChannel(uri.getHost(), uri.getPort());
+        if ("rtp".equals(target.scheme()))
+            throw new IllegalArgumentException("RTP协议只支持输入通道：" + resource);
+
+        UriParameters params = target.params();
+        TxChannel channel = "socket".equals(engineOf(params))
+                            ? new MulticastTxChannel(target.group(), target.port())
+                            : new NioMulticastTxChannel(target.group(), target.port(), params.get("nif"));
+
+        // 每个UDP报文的包数与填充：udp://239.0.0.1:5000?packets=4&padding=false
+        try
+        {
+            if (params.contains("packets"))
+                channel.control("frame packets", params.get("packets"));
+            if (params.contains("padding"))
+                channel.control("padding", params.getBoolean("padding", true));
+        } catch (IOException | RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    private static String engineOf(UriParameters params)
+    {
+        String engine = params.get("engine", "socket");
+        switch (engine)
+        {
+            case "nio":
+            case "reactor":
+                return engine;
+            case "socket":
+                return (params.contains("source") || params.contains("nif")) ? "nio" : engine;
+            default:
+                throw new IllegalArgumentException("未知的组播引擎：" + engine);
+        }
     }
 
     @Override
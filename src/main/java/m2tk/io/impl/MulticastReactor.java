@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 组播接收事件循环。
+ * <p>
+ * 少量事件循环线程（默认1个，可通过系统属性{@code m2tk.io.reactor.threads}设置）各持有一个Selector，
+ * 负责大量组播组的报文接收。每个组播组对应一个{@link ReactorRxChannel}，报文由事件循环线程收进该通道的
+ * 报文队列，调用者线程从队列中读取。新的组播组分配给当前成员最少的事件循环。
+ * <p>
+ * 单个组播组的接收异常只影响该组（通知该通道接收失败），事件循环继续运行。Selector本身失效时事件循环退出：
+ * 通知全部成员接收失败，之后不再向其分配新的组播组。
+ */
+final class MulticastReactor
+{
+    private static final int DRAIN_BATCH = 16; // 每次就绪时单个组播组最多接收的报文数，避免饿死其他组。
+    private static volatile MulticastReactor shared;
+
+    private final EventLoop[] loops;
+
+    private MulticastReactor(int threads) throws IOException
+    {
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            loops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(loops[i], "m2tk-reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    static MulticastReactor shared() throws IOException
+    {
+        MulticastReactor reactor = shared;
+        if (reactor == null)
+        {
+            synchronized (MulticastReactor.class)
+            {
+                reactor = shared;
+                if (reactor == null)
+                {
+                    int threads = Integer.getInteger("m2tk.io.reactor.threads", 1);
+                    if (threads < 1)
+                        throw new IllegalArgumentException("无效的事件循环线程数：" + threads);
+                    reactor = new MulticastReactor(threads);
+                    shared = reactor;
+                }
+            }
+        }
+        return reactor;
+    }
+
+    int threads()
+    {
+        return loops.length;
+    }
+
+    /**
+     * 注册组播接收通道，由成员最少的事件循环负责接收。
+     *
+     * @param member 组播接收通道
+     * @return 负责接收的事件循环
+     */
+    EventLoop register(ReactorRxChannel member) throws IOException
+    {
+        EventLoop target = null;
+        for (EventLoop loop : loops)
+        {
+            if (!loop.stopped && (target == null || loop.members.size() < target.members.size()))
+                target = loop;
+        }
+        if (target == null)
+            throw new IOException("组播事件循环已全部停止");
+        target.add(member);
+        return target;
+    }
+
+    static final class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<ReactorRxChannel> pending;
+        private final Set<ReactorRxChannel> members;
+        private final ByteBuffer discard; // 队列满时用于接收并丢弃报文
+        private volatile boolean stopped;
+
+        private EventLoop(Selector selector)
+        {
+            this.selector = selector;
+            this.pending = new ConcurrentLinkedQueue<>();
+            this.members = ConcurrentHashMap.newKeySet();
+            this.discard = ByteBuffer.allocateDirect(ReactorRxChannel.BUFFER_SIZE);
+        }
+
+        private void add(ReactorRxChannel member)
+        {
+            members.add(member);
+            pending.add(member);
+            selector.wakeup();
+            if (stopped)
+            {
+                pending.remove(member);
+                member.fail(new IOException("组播事件循环已停止")); // 事件循环恰好在此期间退出
+            }
+        }
+
+        void remove(ReactorRxChannel member)
+        {
+            members.remove(member);
+            selector.wakeup(); // 让Selector尽快注销已关闭的通道
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    selector.select();
+                } catch (IOException | RuntimeException ex)
+                {
+                    System.err.printf("Multicast event loop stopped: %s%n", ex);
+                    stop(ex);
+                    return;
+                }
+
+                ReactorRxChannel member;
+                while ((member = pending.poll()) != null)
+                {
+                    try
+                    {
+                        member.channel().register(selector, SelectionKey.OP_READ, member);
+                    } catch (ClosedChannelException ignored)
+                    {
+                        // 通道在注册前已关闭
+                    } catch (RuntimeException ex)
+                    {
+                        member.fail(new IOException("注册组播接收通道失败", ex));
+                    }
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext())
+                {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    ReactorRxChannel channel = (ReactorRxChannel) key.attachment();
+                    try
+                    {
+                        if (key.isValid() && key.isReadable())
+                            channel.receiveAvailable(discard, DRAIN_BATCH);
+                    } catch (CancelledKeyException ignored)
+                    {
+                        // 通道已在其他线程关闭
+                    } catch (IOException | RuntimeException ex)
+                    {
+                        key.cancel();
+                        channel.fail((ex instanceof IOException) ? (IOException) ex : new IOException("接收失败", ex));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Selector失效，事件循环退出：通知全部成员接收失败，之后不再分配新的组播组。
+         */
+        private void stop(Exception cause)
+        {
+            stopped = true;
+            IOException failure = new IOException("组播事件循环已停止", cause);
+            pending.clear();
+            for (ReactorRxChannel member : members)
+                member.fail(failure);
+            try
+            {
+                selector.close();
+            } catch (IOException ignored)
+            {
+            }
+        }
+    }
+}
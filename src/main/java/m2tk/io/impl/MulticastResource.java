@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 解析后的组播资源描述（udp://group:port?params 或 rtp://group:port?params）。
+ * <p>
+ * 地址解析只在首次解析资源描述时进行一次，结果按资源描述缓存；解析失败（或解析结果不是组播地址）的资源描述
+ * 也缓存一段时间（{@value #REJECT_TTL_SECONDS}秒），避免accepts与openRxChannel各等待一次域名解析超时；
+ * 数字形式的地址（如：239.0.0.1）直接转换，不经过域名解析。
+ */
+final class MulticastResource
+{
+    private static final int MAX_CACHED = 256;
+    private static final long REJECT_TTL_SECONDS = 30;
+    private static final Map<String, MulticastResource> CACHE = new ConcurrentHashMap<>();
+    private static final Map<String, Long> REJECTED = new ConcurrentHashMap<>(); // 资源描述 -> 解析失败的时刻
+
+    private final String scheme;
+    private final InetAddress group;
+    private final int port;
+    private final InetAddress source;
+    private final UriParameters params;
+    private InetAddress leg2Group;
+    private int leg2Port;
+    private InetAddress leg2Source;
+
+    private MulticastResource(String scheme, InetAddress group, int port, InetAddress source, UriParameters params)
+    {
+        this.scheme = scheme;
+        this.group = group;
+        this.port = port;
+        this.source = source;
+        this.params = params;
+    }
+
+    /**
+     * 解析组播资源描述。
+     *
+     * @param resource 资源描述
+     * @return 解析结果，资源描述不是有效的组播地址时返回null。
+     */
+    static MulticastResource parse(String resource)
+    {
+        MulticastResource cached = CACHE.get(resource);
+        if (cached != null)
+            return cached;
+        Long rejectedAt = REJECTED.get(resource);
+        if (rejectedAt != null)
+        {
+            if (System.nanoTime() - rejectedAt < REJECT_TTL_SECONDS * 1000_000_000L)
+                return null;
+            REJECTED.remove(resource);
+        }
+
+        URI uri;
+        try
+        {
+            uri = URI.create(resource);
+        } catch (IllegalArgumentException ex)
+        {
+            return null;
+        }
+
+        String scheme = (uri.getScheme() == null) ? null : uri.getScheme().toLowerCase();
+        if (!"udp".equals(scheme) && !"rtp".equals(scheme))
+            return null;
+        String host = uri.getHost();
+        int port = uri.getPort();
+        if (host == null || port == -1)
+            return null;
+
+        InetAddress group = resolve(host);
+        if (group == null || !group.isMulticastAddress())
+        {
+            if (REJECTED.size() >= MAX_CACHED)
+                REJECTED.clear();
+            REJECTED.put(resource, System.nanoTime());
+            return null;
+        }
+
+        UriParameters params = UriParameters.of(uri);
+        InetAddress source = null;
+        if (params.contains("source"))
+        {
+            source = resolve(params.get("source"));
+            if (source == null)
+                throw new IllegalArgumentException("无效的源地址：" + params.get("source"));
+        }
+
+        MulticastResource parsed = new MulticastResource(scheme, group, port, source, params);
+        if (params.contains("leg2"))
+            parsed.parseLeg2(params.get("leg2"), params.get("source2"));
+
+        if (CACHE.size() >= MAX_CACHED)
+            CACHE.clear(); // 缓存只为避免重复解析，满了直接清空即可。
+        CACHE.put(resource, parsed);
+        return parsed;
+    }
+
+    /**
+     * 解析第二路（冗余）输入：leg2=group[:port]&source2=address ，端口缺省时与第一路相同。
+     */
+    private void parseLeg2(String address, String sourceAddress)
+    {
+        String host = address;
+        int idx = address.lastIndexOf(':');
+        leg2Port = port;
+        if (idx > 0)
+        {
+            host = address.substring(0, idx);
+            try
+            {
+                leg2Port = Integer.parseInt(address.substring(idx + 1));
+            } catch (NumberFormatException ex)
+            {
+                throw new IllegalArgumentException("无效的第二路地址：" + address);
+            }
+        }
+
+        leg2Group = resolve(host);
+        if (leg2Group == null || !leg2Group.isMulticastAddress())
+            throw new IllegalArgumentException("无效的第二路地址：" + address);
+        if (sourceAddress != null)
+        {
+            leg2Source = resolve(sourceAddress);
+            if (leg2Source == null)
+                throw new IllegalArgumentException("无效的源地址：" + sourceAddress);
+        }
+    }
+
+    private static InetAddress resolve(String host)
+    {
+        try
+        {
+            // IPv6地址在URI中带方括号，InetAddress可以直接识别；数字地址不会触发域名解析。
+            return InetAddress.getByName(host);
+        } catch (UnknownHostException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return 协议名：udp（TS over UDP）或rtp（TS over RTP）
+     */
+    String scheme()
+    {
+        return scheme;
+    }
+
+    InetAddress group()
+    {
+        return group;
+    }
+
+    int port()
+    {
+        return port;
+    }
+
+    InetAddress source()
+    {
+        return source;
+    }
+
+    UriParameters params()
+    {
+        return params;
+    }
+
+    /**
+     * @return 第二路（冗余）输入的组播地址，未指定时返回null。
+     */
+    InetAddress leg2Group()
+    {
+        return leg2Group;
+    }
+
+    int leg2Port()
+    {
+        return leg2Port;
+    }
+
+    InetAddress leg2Source()
+    {
+        return leg2Source;
+    }
+}
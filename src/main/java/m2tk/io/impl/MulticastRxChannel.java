@@ -18,7 +18,9 @@ package m2tk.io.impl;
 import m2tk.io.RxChannel;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 
 final class MulticastRxChannel implements RxChannel
@@ -26,21 +28,46 @@ final class MulticastRxChannel implements RxChannel
     private final String uri;
     private final MulticastSocket socket;
     private final DatagramPacket packet;
+    private final ByteBuffer packetBuffer;
     private final SocketAddress socketAddress;
     private final NetworkInterface networkInterface;
+    private final DatagramRing ring;
+    private final PacketReader packetReader = new PacketReader(dst -> read(dst, false));
+    private final StatsCounters stats = new StatsCounters(packetReader::packetSize);
+    private final Thread receiver;
+    private volatile IOException receiverFailure;
     private int timeout;
+
+    // 当前正在读取的报文（直接接收模式下为packet的缓存，队列模式下为队首的报文槽）
+    private byte[] current;
+    private ByteBuffer currentBuffer;
+    private int currentLength;
     private int packetReadOffset;
+    private boolean holdingSlot;
 
     private static final int BUFFER_SIZE = 1500; // TSOverIP规定一个UDP包里最多放7个TS包，所以这里将缓存设成一个以太MTU大小就够了。
+    private static final int SYNC_COUNT = 5;
+    private final DatagramSync sync = new DatagramSync(SYNC_COUNT);
+
+    MulticastRxChannel(InetAddress group, int port) throws IOException
+    {
+        this(group, port, 0);
+    }
 
-    MulticastRxChannel(String address, int port) throws IOException
+    /**
+     * @param group 组播地址
+     * @param port 端口
+     * @param ringSize 接收队列长度（报文数），大于0时由独立的接收线程把报文收进队列，read从队列中读取；
+     *                 等于0时在read中直接接收。
+     */
+    MulticastRxChannel(InetAddress group, int port, int ringSize) throws IOException
     {
-        uri = "udp://" + address + ":" + port;
+        uri = "udp://" + group.getHostAddress() + ":" + port;
         timeout = 30000; // 30s
         socket = new MulticastSocket(port);
         socket.setSoTimeout(timeout);
         socket.setReceiveBufferSize(10 * 1024 * 1024); // 10MB缓存，以应对高码率输入，减少丢包概率。
-        socketAddress = new InetSocketAddress(address, port);
+        socketAddress = new InetSocketAddress(group, port);
 
         NetworkInterface usableInterface = null;
         Enumeration<NetworkInterface> enumeration = NetworkInterface.getNetworkInterfaces();
@@ -70,19 +97,47 @@ final class MulticastRxChannel implements RxChannel
 
         networkInterface = usableInterface;
         packet = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
-        packetReadOffset = BUFFER_SIZE;
+        packetBuffer = ByteBuffer.wrap(packet.getData());
+        current = packet.getData();
+        currentBuffer = packetBuffer;
+        currentLength = 0;
+        packetReadOffset = 0;
+
+        if (ringSize > 0)
+        {
+            ring = new DatagramRing(ringSize, BUFFER_SIZE);
+            receiver = new Thread(this::receiveLoop, "m2tk-rx-" + uri);
+            receiver.setDaemon(true);
+            receiver.start();
+        } else
+        {
+            ring = null;
+            receiver = null;
+        }
     }
 
     @Override
     public boolean hasProperty(String property)
     {
-        return "source name".equals(property) || "timeout".equals(property);
+        return "source name".equals(property) ||
+               "timeout".equals(property) ||
+               "nif".equals(property) ||
+               "ring size".equals(property) ||
+               "ring used".equals(property) ||
+               "ring overflow".equals(property) ||
+               "packet size".equals(property) ||
+               "convert".equals(property) ||
+               "sync losses".equals(property) ||
+               "pidFilter".equals(property) ||
+               "pidFilter.drops".equals(property) ||
+               "skipped bytes".equals(property) ||
+               StatsCounters.isProperty(property);
     }
 
     @Override
     public String[] getPropertyList()
     {
-        return new String[]{"source name", "timeout", "nif"};
+        return StatsCounters.withStats(new String[]{"source name", "timeout", "nif", "ring size", "ring used", "ring overflow", "packet size", "convert", "sync losses", "skipped bytes", "pidFilter", "pidFilter.drops"}, StatsCounters.PROPERTIES);
     }
 
     @Override
@@ -94,19 +149,39 @@ final class MulticastRxChannel implements RxChannel
             return timeout;
         if ("nif".equals(property))
             return networkInterface.getDisplayName();
-        return null;
+        if ("ring size".equals(property))
+            return (ring == null) ? 0 : ring.capacity();
+        if ("ring used".equals(property))
+            return (ring == null) ? 0 : ring.size();
+        if ("ring overflow".equals(property))
+            return (ring == null) ? 0L : ring.overflows();
+        if ("packet size".equals(property))
+            return packetReader.packetSize();
+        if ("convert".equals(property))
+            return packetReader.isConvert();
+        if ("pidFilter".equals(property))
+            return packetReader.filter().selected();
+        if ("pidFilter.drops".equals(property))
+            return packetReader.filter().drops();
+        if ("sync losses".equals(property))
+            return packetReader.syncLosses();
+        if ("skipped bytes".equals(property))
+            return packetReader.skippedBytes();
+        return stats.query(property, (ring == null) ? 0 : ring.overflows());
     }
 
     @Override
     public boolean hasCommand(String command)
     {
-        return "timeout".equals(command);
+        return "timeout".equals(command) || "sync".equals(command) ||
+               "packet size".equals(command) || "convert".equals(command) || "pidFilter".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
     }
 
     @Override
     public String[] getCommandList()
     {
-        return new String[]{"timeout"};
+        return StatsCounters.withStats(new String[]{"timeout", "sync", "packet size", "convert", "pidFilter"}, StatsCounters.RESET_COMMAND);
     }
 
     @Override
@@ -114,6 +189,41 @@ final class MulticastRxChannel implements RxChannel
     {
         if ("timeout".equals(command))
             doSetTimeout(arguments);
+        if ("sync".equals(command))
+        {
+            packetReader.reset();
+            doSync();
+        }
+        if ("packet size".equals(command))
+            packetReader.setPacketSize(PacketFormat.parse(arguments, true));
+        if ("convert".equals(command))
+            doSetConvert(arguments);
+        if ("pidFilter".equals(command))
+            packetReader.filter().set(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset((ring == null) ? 0 : ring.overflows());
+    }
+
+    private void doSync() throws IOException
+    {
+        if (socket.isClosed())
+            throw new IOException("通道已关闭");
+
+        // 在当前报文的剩余数据中查找同步位置，找不到（或小报文尚未确认足够的包）则丢弃该报文，继续接收下一个。
+        sync.reset();
+        while (true)
+        {
+            receive();
+
+            int length = currentLength;
+            int found = sync.locate(currentBuffer, packetReadOffset, length, 188);
+            if (found >= 0)
+            {
+                packetReadOffset = found;
+                return;
+            }
+            packetReadOffset = length;
+        }
     }
 
     private void doSetTimeout(Object[] arguments) throws IOException
@@ -134,7 +244,8 @@ final class MulticastRxChannel implements RxChannel
         if (value < 0)
             throw new IllegalArgumentException("无效超时：" + arg);
         timeout = value;
-        socket.setSoTimeout(timeout);
+        if (ring == null)
+            socket.setSoTimeout(timeout); // 队列模式下由read自行计时
     }
 
     @Override
@@ -158,29 +269,176 @@ final class MulticastRxChannel implements RxChannel
             received += n;
         }
 
+        stats.transfer(received);
+        return received;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return read(dst, true);
+    }
+
+    /**
+     * @param fill 是否读满dst；为false时只等待第一个报文，之后只读取已经到达的数据（按包读取时使用，
+     *             避免低码率输入为凑满缓冲区而长时间等待）。
+     */
+    private int read(ByteBuffer dst, boolean fill) throws IOException
+    {
+        if (socket.isClosed())
+            throw new IOException("通道已关闭");
+
+        int received = 0;
+        while (dst.hasRemaining())
+        {
+            if (!fill && received > 0 && !hasReceived())
+                break;
+            receive();
+            received += read0(dst);
+        }
+
+        stats.transfer(received);
+        return received;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        if (socket.isClosed())
+            throw new IOException("通道已关闭");
+
+        if (offset < 0 || length < 0 || dsts.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        long received = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            ByteBuffer dst = dsts[i];
+            while (dst.hasRemaining())
+            {
+                receive();
+                received += read0(dst);
+            }
+        }
+
+        stats.transfer(received);
         return received;
     }
 
+    private int read0(ByteBuffer dst)
+    {
+        // 直接从报文缓存拷贝到调用者缓冲区，不经过中间数组。
+        int available = Math.min(dst.remaining(), currentLength - packetReadOffset);
+        if (available > 0)
+        {
+            dst.put(current, packetReadOffset, available);
+            packetReadOffset += available;
+        }
+        return available;
+    }
+
     private int read0(byte[] buffer, int offset, int length)
     {
-        int available = Math.min(length, packet.getLength() - packetReadOffset);
+        int available = Math.min(length, currentLength - packetReadOffset);
         if (available > 0)
         {
-            System.arraycopy(packet.getData(), packetReadOffset, buffer, offset, available);
+            System.arraycopy(current, packetReadOffset, buffer, offset, available);
             packetReadOffset += available;
         }
         return available;
     }
 
+    /**
+     * 是否有已经接收、尚未读取的数据（直接接收时只考虑当前报文）。
+     */
+    private boolean hasReceived()
+    {
+        return currentLength > packetReadOffset || (ring != null && ring.size() > (holdingSlot ? 1 : 0));
+    }
+
     private void receive() throws IOException
     {
-        if (packet.getLength() > packetReadOffset)
+        if (currentLength > packetReadOffset)
             return; // 还有缓存的数据，直接返回
 
+        if (ring != null)
+        {
+            receiveFromRing();
+            return;
+        }
+
+        long t0 = System.nanoTime();
         socket.receive(packet); // 这里是阻塞调用，除非超时或被中断。
+        stats.blocked(System.nanoTime() - t0);
+        currentLength = packet.getLength();
         packetReadOffset = 0;
     }
 
+    private void receiveFromRing() throws IOException
+    {
+        if (holdingSlot)
+        {
+            ring.release(); // 当前报文已读完，归还报文槽
+            holdingSlot = false;
+        }
+
+        long t0 = System.nanoTime();
+        int index = ring.await(timeout * 1000_000L);
+        stats.blocked(System.nanoTime() - t0);
+        if (index < 0)
+        {
+            if (receiverFailure != null)
+                throw receiverFailure;
+            if (socket.isClosed())
+                throw new IOException("通道已关闭");
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException("接收被中断");
+            throw new SocketTimeoutException("接收超时");
+        }
+
+        current = ring.slot(index);
+        currentBuffer = ring.view(index);
+        currentLength = ring.length(index);
+        packetReadOffset = 0;
+        holdingSlot = true;
+    }
+
+    private void receiveLoop()
+    {
+        DatagramPacket p = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+        byte[] discard = p.getData(); // 队列满时用于接收并丢弃报文，保证内核缓存不被占满
+        try
+        {
+            socket.setSoTimeout(0);
+            while (!socket.isClosed())
+            {
+                byte[] slot = ring.claim();
+                p.setData((slot == null) ? discard : slot);
+                socket.receive(p);
+                if (slot == null)
+                    ring.countOverflow();
+                else
+                    ring.publish(p.getLength());
+            }
+        } catch (IOException ex)
+        {
+            if (!socket.isClosed())
+                receiverFailure = ex;
+        } finally
+        {
+            ring.terminate();
+        }
+    }
+
+    @Override
+    public int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (socket.isClosed())
+            throw new IOException("通道已关闭");
+
+        return packetReader.readPackets(dst, maxPackets);
+    }
+
     @Override
     public void close() throws IOException
     {
@@ -188,6 +446,24 @@ final class MulticastRxChannel implements RxChannel
         {
             socket.leaveGroup(socketAddress, networkInterface);
             socket.close();
+            if (ring != null)
+                ring.terminate();
+            if (receiver != null)
+                receiver.interrupt();
         }
     }
+
+    private void doSetConvert(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            packetReader.setConvert((boolean) arg);
+        else if (arg instanceof String)
+            packetReader.setConvert(Boolean.parseBoolean((String) arg));
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
 }
@@ -19,40 +19,36 @@ import m2tk.io.TxChannel;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 
 final class MulticastTxChannel implements TxChannel
 {
-    private static final int FRAME_SIZE = 188 * 7; // 一个UDP报文里最多放7个TS包
+    private static final int MAX_FRAME_PACKETS = 7; // 一个UDP报文里最多放7个TS包
+    private static final int FRAME_BUFFERS = 10;
     private final String uri;
     private final MulticastSocket socket;
     private final DatagramPacket packet;
     private final SocketAddress socketAddress;
     private final NetworkInterface networkInterface;
     private int bitrate;
+    private final RatePacer pacer;
 
     private final byte[] buf;
+    private int bufferSize;
     private int buffered;
-    private long lastTimePoint;
-    private static final byte[] NULL_PACKET = new byte[188];
-
-    static
-    {
-        Arrays.fill(NULL_PACKET, (byte) 0xFF);
-        NULL_PACKET[0] = 0x47;
-        NULL_PACKET[1] = 0x1F;
-        NULL_PACKET[2] = (byte) 0xFF;
-        NULL_PACKET[3] = 0x1F;  // scrambling_control: 00
-                                // adaptation_field_control: 01
-                                // continuity_counter: 1111
-    }
-
-    MulticastTxChannel(String address, int port) throws IOException
+    private int packetSize;
+    private final StatsCounters stats = new StatsCounters(() -> packetSize);
+    private int framePackets;
+    private int frameSize;
+    private boolean padding;
+    private byte[] nullPacket;
+
+    MulticastTxChannel(InetAddress group, int port) throws IOException
     {
-        uri = "udp://" + address + ":" + port;
+        uri = "udp://" + group.getHostAddress() + ":" + port;
         socket = new MulticastSocket(port);
-        socketAddress = new InetSocketAddress(address, port);
+        socketAddress = new InetSocketAddress(group, port);
 
         NetworkInterface usableInterface = null;
         Enumeration<NetworkInterface> enumeration = NetworkInterface.getNetworkInterfaces();
@@ -81,22 +77,37 @@ final class MulticastTxChannel implements TxChannel
         System.out.printf("Join multicast group[%s] with NIF[%s].%n", uri, usableInterface.getDisplayName());
 
         networkInterface = usableInterface;
-        packet = new DatagramPacket(new byte[FRAME_SIZE], FRAME_SIZE, socketAddress);
+        packetSize = PacketFormat.TS_PACKET_SIZE;
+        framePackets = MAX_FRAME_PACKETS;
+        frameSize = packetSize * framePackets;
+        padding = true;
+        nullPacket = PacketFormat.nullPacket(packetSize);
         bitrate = -1;
-        buf = new byte[FRAME_SIZE * 10];
-        resetBuffer();
+        pacer = new RatePacer((long) frameSize * FRAME_BUFFERS); // 默认最多连续发送10个报文
+        buf = new byte[PacketFormat.MAX_PACKET_SIZE * MAX_FRAME_PACKETS * FRAME_BUFFERS];
+        packet = new DatagramPacket(buf, 0, frameSize, socketAddress); // 直接从缓存发送，不再拷贝
+        bufferSize = frameSize * FRAME_BUFFERS;
+        buffered = 0;
     }
 
     @Override
     public boolean hasProperty(String property)
     {
-        return "target name".equals(property) || "bitrate".equals(property);
+        return "target name".equals(property) ||
+               "bitrate".equals(property) ||
+               "measured bitrate".equals(property) ||
+               "burst".equals(property) ||
+               "nif".equals(property) ||
+               "packet size".equals(property) ||
+               "frame packets".equals(property) ||
+               "padding".equals(property) ||
+               StatsCounters.isProperty(property);
     }
 
     @Override
     public String[] getPropertyList()
     {
-        return new String[]{"target name", "bitrate", "nif"};
+        return StatsCounters.withStats(new String[]{"target name", "bitrate", "measured bitrate", "burst", "nif", "packet size", "frame packets", "padding"}, StatsCounters.PROPERTIES);
     }
 
     @Override
@@ -106,28 +117,50 @@ final class MulticastTxChannel implements TxChannel
             return uri;
         if ("bitrate".equals(property))
             return bitrate;
+        if ("measured bitrate".equals(property))
+            return pacer.getMeasuredBitrate();
+        if ("burst".equals(property))
+            return (int) (pacer.getBurstBytes() / frameSize);
         if ("nif".equals(property))
             return networkInterface.getDisplayName();
-        return null;
+        if ("packet size".equals(property))
+            return packetSize;
+        if ("frame packets".equals(property))
+            return framePackets;
+        if ("padding".equals(property))
+            return padding;
+        return stats.query(property, 0);
     }
 
     @Override
     public boolean hasCommand(String command)
     {
-        return "bitrate".equals(command);
+        return "bitrate".equals(command) || "burst".equals(command) ||
+               "packet size".equals(command) || "frame packets".equals(command) || "padding".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
     }
 
     @Override
     public String[] getCommandList()
     {
-        return new String[]{"bitrate"};
+        return StatsCounters.withStats(new String[]{"bitrate", "burst", "packet size", "frame packets", "padding"}, StatsCounters.RESET_COMMAND);
     }
 
     @Override
-    public void control(String command, Object... arguments)
+    public void control(String command, Object... arguments) throws IOException
     {
         if ("bitrate".equals(command))
             doSetBitrate(arguments);
+        if ("burst".equals(command))
+            doSetBurst(arguments);
+        if ("packet size".equals(command))
+            doSetPacketSize(arguments);
+        if ("frame packets".equals(command))
+            doSetFramePackets(arguments);
+        if ("padding".equals(command))
+            doSetPadding(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(0);
     }
 
     @Override
@@ -139,8 +172,9 @@ final class MulticastTxChannel implements TxChannel
         if (offset < 0 || bytes.length - offset < length)
             throw new IllegalArgumentException("无效的偏移量：" + offset);
 
-        if (length % 188 != 0)
-            throw new IllegalArgumentException("数据长度必须为188字节的整数倍");
+        if (length % packetSize != 0)
+            throw new IllegalArgumentException("数据长度必须为" + packetSize + "字节的整数倍");
+        stats.transfer(length);
 
         while (length > 0)
         {
@@ -151,12 +185,57 @@ final class MulticastTxChannel implements TxChannel
         }
     }
 
+    @Override
+    public void write(ByteBuffer src) throws IOException
+    {
+        if (socket.isClosed())
+            throw new IOException("通道已关闭");
+
+        if (src.remaining() % packetSize != 0)
+            throw new IllegalArgumentException("数据长度必须为" + packetSize + "字节的整数倍");
+        stats.transfer(src.remaining());
+
+        while (src.hasRemaining())
+        {
+            cache(src);
+            transmit(isCacheFull());
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        if (socket.isClosed())
+            throw new IOException("通道已关闭");
+
+        if (offset < 0 || length < 0 || srcs.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += srcs[i].remaining();
+        if (total % packetSize != 0)
+            throw new IllegalArgumentException("数据长度必须为" + packetSize + "字节的整数倍");
+        stats.transfer(total);
+
+        for (int i = offset; i < offset + length; i++)
+        {
+            ByteBuffer src = srcs[i];
+            while (src.hasRemaining())
+            {
+                cache(src);
+                transmit(isCacheFull());
+            }
+        }
+    }
+
     @Override
     public void close() throws IOException
     {
         if (!socket.isClosed())
         {
             bitrate = -1;
+            pacer.setBitrate(-1); // 取消限速，避免等待。
             transmit(true);
             socket.leaveGroup(socketAddress, networkInterface);
             socket.close();
@@ -180,79 +259,141 @@ final class MulticastTxChannel implements TxChannel
         if (value <= 0)
             throw new IllegalArgumentException("无效比特率：" + arg);
         bitrate = value;
+        pacer.setBitrate(value);
+    }
+
+    private void doSetBurst(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        // 突发量以UDP报文为单位，最小为1（逐个报文均匀发送）。
+        if (value < 1 || value > 1000)
+            throw new IllegalArgumentException("无效突发量：" + arg);
+        pacer.setBurstBytes((long) value * frameSize);
+    }
+
+    private void doSetPacketSize(Object[] arguments) throws IOException
+    {
+        int value = PacketFormat.parse(arguments, false);
+        if (value == packetSize)
+            return;
+
+        transmit(true); // 先按原有格式发出缓存的数据
+        nullPacket = PacketFormat.nullPacket(value);
+        reframe(value, framePackets);
+    }
+
+    private void doSetFramePackets(Object[] arguments) throws IOException
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value < 1 || value > MAX_FRAME_PACKETS)
+            throw new IllegalArgumentException("无效的报文包数：" + arg);
+        if (value == framePackets)
+            return;
+
+        transmit(true); // 先按原有报文长度发出缓存的数据
+        reframe(packetSize, value);
+    }
+
+    private void doSetPadding(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            padding = (boolean) arg;
+        else if (arg instanceof String)
+            padding = Boolean.parseBoolean((String) arg);
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
+
+    private void reframe(int newPacketSize, int newFramePackets)
+    {
+        long burst = pacer.getBurstBytes() / frameSize; // 突发量保持原有的报文数
+        packetSize = newPacketSize;
+        framePackets = newFramePackets;
+        frameSize = packetSize * framePackets;
+        pacer.setBurstBytes(burst * frameSize);
+        bufferSize = frameSize * FRAME_BUFFERS;
+        buffered = 0;
     }
 
     private int cache(byte[] bytes, int offset, int length)
     {
-        int count = Math.min(length, buf.length - buffered);
+        int count = Math.min(length, bufferSize - buffered);
         System.arraycopy(bytes, offset, buf, buffered, count);
         buffered += count;
         return count;
     }
 
+    private void cache(ByteBuffer src)
+    {
+        int count = Math.min(src.remaining(), bufferSize - buffered);
+        src.get(buf, buffered, count);
+        buffered += count;
+    }
+
     private boolean isCacheFull()
     {
-        return (buffered == buf.length);
+        return (buffered == bufferSize);
     }
 
     private void transmit(boolean immediately) throws IOException
     {
-        if (!immediately && buffered < buf.length)
+        if (!immediately && buffered < bufferSize)
             return;
 
-        // 批量输出，并按照带宽要求控制输出速率
-        long t0 = lastTimePoint;
+        // 逐个报文申请发送配额，由令牌桶控制突发量与输出速率。报文直接指向缓存中的数据，不再拷贝。
         int offset = 0;
-        int packetCount = 0;
         while (buffered > 0)
         {
-            int blockSize = Math.min(FRAME_SIZE, buffered);
+            int blockSize = Math.min(frameSize, buffered);
+            int length = blockSize;
 
-            // 保证每个UDP报文都是7个TS包（不够7个，用空包填充）
-            System.arraycopy(buf, offset, packet.getData(), 0, blockSize);
-            for (int i = blockSize; i < FRAME_SIZE; i += 188)
-                System.arraycopy(NULL_PACKET, 0, packet.getData(), i, 188);
-            packet.setLength(FRAME_SIZE);
+            // 开启填充时保证每个UDP报文包数固定（不够的用空包填充），否则按实际长度发送短报文。
+            if (padding)
+            {
+                for (int i = offset + blockSize; i < offset + frameSize; i += packetSize)
+                    System.arraycopy(nullPacket, 0, buf, i, packetSize);
+                length = frameSize;
+            }
+            packet.setData(buf, offset, length);
 
+            pace(length);
             socket.send(packet);
 
             offset += blockSize;
             buffered -= blockSize;
-            packetCount++;
-        }
-
-        resetBuffer();
-        long elapsedTimeNanos = System.nanoTime() - t0;
-        long expectedTimeNanos = packetCount * FRAME_SIZE * 8 * 1000_000_000L / bitrate; // 按照指定带宽输出需要的时间
-
-        // 当bitrate为负数时，表示不限速输出。
-        if (bitrate > 0)
-        {
-            if (elapsedTimeNanos < expectedTimeNanos)
-            {
-                // 实际输出速度高于额定速度，需要减速（等待）
-                long waitMillis = (expectedTimeNanos - elapsedTimeNanos) / 1000_000; // 1000_000 ns = 1 ms
-                sleep(waitMillis);
-            }
-            lastTimePoint = System.nanoTime();
-        }
-    }
-
-    private void sleep(long milliseconds)
-    {
-        try
-        {
-            Thread.sleep(milliseconds);
-        } catch (InterruptedException ex)
-        {
-            Thread.currentThread().interrupt();
         }
+        buffered = 0;
     }
 
-    private void resetBuffer()
+    private void pace(int bytes)
     {
-        for (int i = 0; i < buf.length; i += 188)
-            System.arraycopy(NULL_PACKET, 0, buf, i, 188);
-        buffered = 0;
+        stats.blocked(pacer.acquire(bytes));
+        stats.lag(pacer.getLagNanos());
     }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * 网络接口选择。
+ */
+final class NetworkInterfaces
+{
+    private NetworkInterfaces()
+    {
+    }
+
+    /**
+     * 获取可用于加入组播组的网络接口。
+     * <p>
+     * 指定接口名称时只返回该接口（允许使用回环接口）；否则返回所有已启用、支持组播且配有IPv4地址的物理接口。
+     *
+     * @param name 网络接口名称，可以为null
+     * @return 候选网络接口列表
+     * @throws IOException IO异常
+     */
+    static List<NetworkInterface> multicastCandidates(String name) throws IOException
+    {
+        List<NetworkInterface> candidates = new ArrayList<>();
+        if (name != null)
+        {
+            NetworkInterface nif = NetworkInterface.getByName(name);
+            if (nif == null)
+                throw new IllegalArgumentException("找不到网络接口：" + name);
+            candidates.add(nif);
+            return candidates;
+        }
+
+        Enumeration<NetworkInterface> enumeration = NetworkInterface.getNetworkInterfaces();
+        while (enumeration.hasMoreElements())
+        {
+            NetworkInterface nif = enumeration.nextElement();
+            if (nif.isLoopback() || nif.isVirtual() || nif.isPointToPoint())
+                continue;
+            if (nif.isUp() && nif.supportsMulticast() &&
+                nif.inetAddresses().anyMatch(addr -> addr instanceof Inet4Address))
+                candidates.add(nif);
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.RxChannel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * 基于NIO DatagramChannel的组播输入通道。
+ * <p>
+ * 通道工作在非阻塞模式，由Selector等待报文到达。报文接收到直接缓冲区中；当调用者缓冲区能容纳一个完整报文时，
+ * 直接接收到调用者缓冲区，不经过任何中间拷贝。指定源地址时使用源特定组播（SSM）方式加入组播组。
+ */
+final class NioMulticastRxChannel implements RxChannel
+{
+    private static final int BUFFER_SIZE = 1500;
+    private static final int SYNC_COUNT = 5;
+    private final DatagramSync sync = new DatagramSync(SYNC_COUNT);
+
+    private final String uri;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final MembershipKey membership;
+    private final ByteBuffer datagram;
+    private final PacketReader packetReader = new PacketReader(dst -> read(dst, false));
+    private final StatsCounters stats = new StatsCounters(packetReader::packetSize);
+    private int timeout;
+
+    NioMulticastRxChannel(InetAddress group, int port, InetAddress source, String nifName) throws IOException
+    {
+        uri = "udp://" + group.getHostAddress() + ":" + port;
+        timeout = 30000; // 30s
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try
+        {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 10 * 1024 * 1024); // 10MB缓存，以应对高码率输入，减少丢包概率。
+            channel.bind(new InetSocketAddress(port));
+
+            MembershipKey key = null;
+            for (NetworkInterface nif : NetworkInterfaces.multicastCandidates(nifName))
+            {
+                try
+                {
+                    key = (source == null) ? channel.join(group, nif) : channel.join(group, nif, source);
+                    break;
+                } catch (IOException ex)
+                {
+                    System.err.printf("Can not join multicast group with NIF[%s], pass.%n", nif.getDisplayName());
+                }
+            }
+            if (key == null)
+                throw new IllegalArgumentException("没有可用的网络接口");
+            membership = key;
+
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException | RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+
+        System.out.printf("Join multicast group[%s] with NIF[%s].%n", uri, membership.networkInterface().getDisplayName());
+
+        datagram = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        datagram.flip(); // 初始为空
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "source name".equals(property) ||
+               "timeout".equals(property) ||
+               "nif".equals(property) ||
+               "source address".equals(property) ||
+               "engine".equals(property) ||
+               "packet size".equals(property) ||
+               "convert".equals(property) ||
+               "sync losses".equals(property) ||
+               "pidFilter".equals(property) ||
+               "pidFilter.drops".equals(property) ||
+               "skipped bytes".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"source name", "timeout", "nif", "source address", "engine", "packet size", "convert", "sync losses", "skipped bytes", "pidFilter", "pidFilter.drops"}, StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("source name".equals(property))
+            return uri;
+        if ("timeout".equals(property))
+            return timeout;
+        if ("nif".equals(property))
+            return membership.networkInterface().getDisplayName();
+        if ("source address".equals(property))
+            return (membership.sourceAddress() == null) ? null : membership.sourceAddress().getHostAddress();
+        if ("engine".equals(property))
+            return "nio";
+        if ("packet size".equals(property))
+            return packetReader.packetSize();
+        if ("convert".equals(property))
+            return packetReader.isConvert();
+        if ("pidFilter".equals(property))
+            return packetReader.filter().selected();
+        if ("pidFilter.drops".equals(property))
+            return packetReader.filter().drops();
+        if ("sync losses".equals(property))
+            return packetReader.syncLosses();
+        if ("skipped bytes".equals(property))
+            return packetReader.skippedBytes();
+        return stats.query(property, 0);
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return "timeout".equals(command) || "sync".equals(command) ||
+               "packet size".equals(command) || "convert".equals(command) || "pidFilter".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"timeout", "sync", "packet size", "convert", "pidFilter"}, StatsCounters.RESET_COMMAND);
+    }
+
+    @Override
+    public void control(String command, Object... arguments) throws IOException
+    {
+        if ("timeout".equals(command))
+            doSetTimeout(arguments);
+        if ("sync".equals(command))
+        {
+            packetReader.reset();
+            doSync();
+        }
+        if ("packet size".equals(command))
+            packetReader.setPacketSize(PacketFormat.parse(arguments, true));
+        if ("convert".equals(command))
+            doSetConvert(arguments);
+        if ("pidFilter".equals(command))
+            packetReader.filter().set(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(0);
+    }
+
+    private void doSetTimeout(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value < 0)
+            throw new IllegalArgumentException("无效超时：" + arg);
+        timeout = value;
+    }
+
+    private void doSync() throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        // 在当前报文的剩余数据中查找同步位置，找不到（或小报文尚未确认足够的包）则丢弃该报文，继续接收下一个。
+        sync.reset();
+        while (true)
+        {
+            if (!datagram.hasRemaining())
+            {
+                datagram.clear();
+                receive(datagram);
+                datagram.flip();
+            }
+
+            int from = datagram.position();
+            int length = datagram.limit();
+            int found = sync.locate(datagram, from, length, 188);
+            if (found >= 0)
+            {
+                datagram.position(found);
+                return;
+            }
+            datagram.position(length);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (offset < 0 || buffer.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        return read(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return read(dst, true);
+    }
+
+    /**
+     * @param fill 是否读满dst；为false时只等待第一个报文，之后只读取已经到达的数据（按包读取时使用，
+     *             避免低码率输入为凑满缓冲区而长时间等待）。
+     */
+    private int read(ByteBuffer dst, boolean fill) throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        int received = 0;
+        while (dst.hasRemaining())
+        {
+            if (datagram.hasRemaining())
+            {
+                received += drain(dst);
+                continue;
+            }
+
+            boolean wait = fill || received == 0;
+            if (dst.remaining() >= BUFFER_SIZE)
+            {
+                // 调用者缓冲区足够容纳一个完整报文，直接接收，不经过中间缓存。
+                int position = dst.position();
+                if (wait)
+                    receive(dst);
+                else if (channel.receive(dst) == null)
+                    break; // 没有已到达的报文
+                received += dst.position() - position;
+                continue;
+            }
+
+            datagram.clear();
+            boolean arrived = true;
+            if (wait)
+                receive(datagram);
+            else
+                arrived = (channel.receive(datagram) != null);
+            datagram.flip();
+            if (!arrived)
+                break;
+        }
+
+        stats.transfer(received);
+        return received;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        if (offset < 0 || length < 0 || dsts.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        long received = 0;
+        for (int i = offset; i < offset + length; i++)
+            received += read(dsts[i]);
+        return received;
+    }
+
+    private int drain(ByteBuffer dst)
+    {
+        int count = Math.min(dst.remaining(), datagram.remaining());
+        int limit = datagram.limit();
+        datagram.limit(datagram.position() + count);
+        dst.put(datagram);
+        datagram.limit(limit);
+        return count;
+    }
+
+    private void receive(ByteBuffer dst) throws IOException
+    {
+        while (channel.receive(dst) == null)
+        {
+            // 非阻塞模式下暂无报文，由Selector等待报文到达。
+            long t0 = System.nanoTime();
+            int n = selector.select(timeout);
+            stats.blocked(System.nanoTime() - t0);
+            if (n == 0)
+            {
+                if (!channel.isOpen())
+                    throw new IOException("通道已关闭");
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("接收被中断");
+                if (timeout > 0)
+                    throw new SocketTimeoutException("接收超时");
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    @Override
+    public int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        return packetReader.readPackets(dst, maxPackets);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (channel.isOpen())
+        {
+            membership.drop();
+            channel.close();
+            selector.close();
+        }
+    }
+
+    private void doSetConvert(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            packetReader.setConvert((boolean) arg);
+        else if (arg instanceof String)
+            packetReader.setConvert(Boolean.parseBoolean((String) arg));
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
+}
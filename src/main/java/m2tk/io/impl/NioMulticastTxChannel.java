@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.TxChannel;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * 基于NIO DatagramChannel的组播输出通道。
+ * <p>
+ * 数据缓存在直接缓冲区中，按报文直接从缓存发送；缓存为空时，调用者数据中的完整报文直接发送，不经过缓存。
+ * 通道工作在非阻塞模式，发送缓冲区满时由Selector等待。
+ */
+final class NioMulticastTxChannel implements TxChannel
+{
+    private static final int MAX_FRAME_PACKETS = 7; // 一个UDP报文里最多放7个TS包
+    private static final int FRAME_BUFFERS = 10;
+
+    private final String uri;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final NetworkInterface networkInterface;
+    private final RatePacer pacer;
+    private final ByteBuffer buf;
+    private int bitrate;
+    private int packetSize;
+    private final StatsCounters stats = new StatsCounters(() -> packetSize);
+    private int framePackets;
+    private int frameSize;
+    private boolean padding;
+    private ByteBuffer nullPacket;
+
+    NioMulticastTxChannel(InetAddress group, int port, String nifName) throws IOException
+    {
+        uri = "udp://" + group.getHostAddress() + ":" + port;
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try
+        {
+            NetworkInterface usableInterface = null;
+            for (NetworkInterface nif : NetworkInterfaces.multicastCandidates(nifName))
+            {
+                try
+                {
+                    channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+                    usableInterface = nif;
+                    break;
+                } catch (IOException ex)
+                {
+                    System.err.printf("Can not send multicast with NIF[%s], pass.%n", nif.getDisplayName());
+                }
+            }
+            if (usableInterface == null)
+                throw new IllegalArgumentException("没有可用的网络接口");
+            networkInterface = usableInterface;
+
+            channel.connect(new InetSocketAddress(group, port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_WRITE);
+        } catch (IOException | RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+
+        System.out.printf("Send to multicast group[%s] with NIF[%s].%n", uri, networkInterface.getDisplayName());
+
+        bitrate = -1;
+        packetSize = PacketFormat.TS_PACKET_SIZE;
+        framePackets = MAX_FRAME_PACKETS;
+        frameSize = packetSize * framePackets;
+        padding = true;
+        nullPacket = ByteBuffer.wrap(PacketFormat.nullPacket(packetSize)).asReadOnlyBuffer();
+        pacer = new RatePacer((long) frameSize * FRAME_BUFFERS); // 默认最多连续发送10个报文
+        buf = ByteBuffer.allocateDirect(PacketFormat.MAX_PACKET_SIZE * MAX_FRAME_PACKETS * FRAME_BUFFERS);
+        buf.limit(frameSize * FRAME_BUFFERS); // 缓存按报文对齐
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "target name".equals(property) ||
+               "bitrate".equals(property) ||
+               "measured bitrate".equals(property) ||
+               "burst".equals(property) ||
+               "nif".equals(property) ||
+               "engine".equals(property) ||
+               "packet size".equals(property) ||
+               "frame packets".equals(property) ||
+               "padding".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"target name", "bitrate", "measured bitrate", "burst", "nif", "engine", "packet size", "frame packets", "padding"}, StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("target name".equals(property))
+            return uri;
+        if ("bitrate".equals(property))
+            return bitrate;
+        if ("measured bitrate".equals(property))
+            return pacer.getMeasuredBitrate();
+        if ("burst".equals(property))
+            return (int) (pacer.getBurstBytes() / frameSize);
+        if ("nif".equals(property))
+            return networkInterface.getDisplayName();
+        if ("engine".equals(property))
+            return "nio";
+        if ("packet size".equals(property))
+            return packetSize;
+        if ("frame packets".equals(property))
+            return framePackets;
+        if ("padding".equals(property))
+            return padding;
+        return stats.query(property, 0);
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return "bitrate".equals(command) || "burst".equals(command) ||
+               "packet size".equals(command) || "frame packets".equals(command) || "padding".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"bitrate", "burst", "packet size", "frame packets", "padding"}, StatsCounters.RESET_COMMAND);
+    }
+
+    @Override
+    public void control(String command, Object... arguments) throws IOException
+    {
+        if ("bitrate".equals(command))
+            doSetBitrate(arguments);
+        if ("burst".equals(command))
+            doSetBurst(arguments);
+        if ("packet size".equals(command))
+            doSetPacketSize(arguments);
+        if ("frame packets".equals(command))
+            doSetFramePackets(arguments);
+        if ("padding".equals(command))
+            doSetPadding(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(0);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (offset < 0 || bytes.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        if (src.remaining() % packetSize != 0)
+            throw new IllegalArgumentException("数据长度必须为" + packetSize + "字节的整数倍");
+        stats.transfer(src.remaining());
+
+        while (src.hasRemaining())
+        {
+            sendDirect(src);
+            cache(src);
+            transmit(!buf.hasRemaining());
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        if (offset < 0 || length < 0 || srcs.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += srcs[i].remaining();
+        if (total % packetSize != 0)
+            throw new IllegalArgumentException("数据长度必须为" + packetSize + "字节的整数倍");
+        stats.transfer(total);
+
+        for (int i = offset; i < offset + length; i++)
+        {
+            ByteBuffer src = srcs[i];
+            while (src.hasRemaining())
+            {
+                sendDirect(src);
+                cache(src);
+                transmit(!buf.hasRemaining());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (channel.isOpen())
+        {
+            bitrate = -1;
+            pacer.setBitrate(-1); // 取消限速，避免等待。
+            transmit(true);
+            channel.close();
+            selector.close();
+        }
+    }
+
+    private void doSetBitrate(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value <= 0)
+            throw new IllegalArgumentException("无效比特率：" + arg);
+        bitrate = value;
+        pacer.setBitrate(value);
+    }
+
+    private void doSetBurst(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        // 突发量以UDP报文为单位，最小为1（逐个报文均匀发送）。
+        if (value < 1 || value > 1000)
+            throw new IllegalArgumentException("无效突发量：" + arg);
+        pacer.setBurstBytes((long) value * frameSize);
+    }
+
+    private void doSetPacketSize(Object[] arguments) throws IOException
+    {
+        int value = PacketFormat.parse(arguments, false);
+        if (value == packetSize)
+            return;
+
+        transmit(true); // 先按原有格式发出缓存的数据
+        nullPacket = ByteBuffer.wrap(PacketFormat.nullPacket(value)).asReadOnlyBuffer();
+        reframe(value, framePackets);
+    }
+
+    private void doSetFramePackets(Object[] arguments) throws IOException
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value < 1 || value > MAX_FRAME_PACKETS)
+            throw new IllegalArgumentException("无效的报文包数：" + arg);
+        if (value == framePackets)
+            return;
+
+        transmit(true); // 先按原有报文长度发出缓存的数据
+        reframe(packetSize, value);
+    }
+
+    private void doSetPadding(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            padding = (boolean) arg;
+        else if (arg instanceof String)
+            padding = Boolean.parseBoolean((String) arg);
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
+
+    private void reframe(int newPacketSize, int newFramePackets)
+    {
+        long burst = pacer.getBurstBytes() / frameSize; // 突发量保持原有的报文数
+        packetSize = newPacketSize;
+        framePackets = newFramePackets;
+        frameSize = packetSize * framePackets;
+        pacer.setBurstBytes(burst * frameSize);
+        buf.clear().limit(frameSize * FRAME_BUFFERS);
+    }
+
+    /**
+     * 缓存为空时，直接从调用者的缓冲区发送完整报文，剩余不足一个报文的数据再进入缓存。
+     */
+    private void sendDirect(ByteBuffer src) throws IOException
+    {
+        if (buf.position() != 0)
+            return;
+
+        int srcLimit = src.limit();
+        while (src.remaining() >= frameSize)
+        {
+            src.limit(src.position() + frameSize);
+            pace(frameSize);
+            send(src);
+            src.limit(srcLimit);
+        }
+    }
+
+    private void cache(ByteBuffer src)
+    {
+        int count = Math.min(src.remaining(), buf.remaining());
+        int srcLimit = src.limit();
+        src.limit(src.position() + count);
+        buf.put(src);
+        src.limit(srcLimit);
+    }
+
+    private void transmit(boolean immediately) throws IOException
+    {
+        if (!immediately && buf.hasRemaining())
+            return;
+
+        // 开启填充时保证每个UDP报文包数固定（不够的用空包填充），否则最后一个报文按实际长度发送。
+        while (padding && buf.position() % frameSize != 0)
+            buf.put(nullPacket.duplicate());
+
+        // 逐个报文申请发送配额，由令牌桶控制突发量与输出速率。
+        buf.flip();
+        int end = buf.limit();
+        while (buf.position() < end)
+        {
+            int length = Math.min(frameSize, end - buf.position());
+            buf.limit(buf.position() + length);
+            pace(length);
+            send(buf);
+            buf.limit(end);
+        }
+        buf.clear().limit(frameSize * FRAME_BUFFERS);
+    }
+
+    private void send(ByteBuffer frame) throws IOException
+    {
+        while (channel.write(frame) == 0)
+        {
+            // 发送缓冲区已满，等待可写。
+            long t0 = System.nanoTime();
+            selector.select();
+            selector.selectedKeys().clear();
+            stats.blocked(System.nanoTime() - t0);
+        }
+    }
+
+    private void pace(int bytes)
+    {
+        stats.blocked(pacer.acquire(bytes));
+        stats.lag(pacer.getLagNanos());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * TS包格式：标准TS（188字节）、M2TS（192字节，包前带4字节时间码）、带RS校验的TS（204字节，包后带16字节校验）。
+ */
+final class PacketFormat
+{
+    static final int TS_PACKET_SIZE = 188;
+    static final int M2TS_PACKET_SIZE = 192;
+    static final int RS_PACKET_SIZE = 204;
+    static final int MAX_PACKET_SIZE = RS_PACKET_SIZE;
+
+    private static final int[] SIZES = {TS_PACKET_SIZE, RS_PACKET_SIZE, M2TS_PACKET_SIZE};
+
+    private PacketFormat()
+    {
+    }
+
+    static boolean isValid(int packetSize)
+    {
+        return packetSize == TS_PACKET_SIZE || packetSize == M2TS_PACKET_SIZE || packetSize == RS_PACKET_SIZE;
+    }
+
+    /**
+     * 同步字节在包内的偏移量，也是标准TS包在包内的起始位置。
+     */
+    static int syncOffset(int packetSize)
+    {
+        return (packetSize == M2TS_PACKET_SIZE) ? 4 : 0;
+    }
+
+    /**
+     * 在[from, to)区间内查找同步位置，同时识别包长度。
+     * <p>
+     * 依次尝试各种包长度，取包起始位置最靠前的一种。
+     *
+     * @return 识别出的包长度，找不到同步位置时返回0。包起始位置由{@link #find(ByteBuffer, int, int, int, int)}给出。
+     */
+    static int detect(ByteBuffer buf, int from, int to, int count)
+    {
+        int detected = 0;
+        int earliest = Integer.MAX_VALUE;
+        for (int size : SIZES)
+        {
+            int found = find(buf, from, to, size, count);
+            if (found >= 0 && found < earliest)
+            {
+                earliest = found;
+                detected = size;
+            }
+        }
+        return detected;
+    }
+
+    /**
+     * 按给定包长度在[from, to)区间内查找同步位置。
+     *
+     * @return 包起始位置（绝对索引，不是同步字节的位置），找不到时返回-1
+     */
+    static int find(ByteBuffer buf, int from, int to, int packetSize, int count)
+    {
+        int offset = syncOffset(packetSize);
+        int found = SyncScanner.find(buf, from + offset, to, packetSize, count);
+        return (found < 0) ? -1 : found - offset;
+    }
+
+    /**
+     * 构造指定格式的空包（PID = 0x1FFF），时间码与校验字节填0。
+     */
+    static byte[] nullPacket(int packetSize)
+    {
+        byte[] packet = new byte[packetSize];
+        int offset = syncOffset(packetSize);
+        Arrays.fill(packet, offset, offset + TS_PACKET_SIZE, (byte) 0xFF);
+        packet[offset] = 0x47;
+        packet[offset + 1] = 0x1F;
+        packet[offset + 2] = (byte) 0xFF;
+        packet[offset + 3] = 0x1F;  // scrambling_control: 00
+                                    // adaptation_field_control: 01
+                                    // continuity_counter: 1111
+        return packet;
+    }
+
+    /**
+     * 解析包长度命令参数。
+     *
+     * @param allowAuto 是否允许自动识别（参数为0或"auto"）
+     * @return 包长度，自动识别时返回0
+     */
+    static int parse(Object[] arguments, boolean allowAuto)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = "auto".equalsIgnoreCase((String) arg) ? 0 : Integer.parseInt((String) arg);
+
+        if ((value == 0 && allowAuto) || isValid(value))
+            return value;
+        throw new IllegalArgumentException("无效的包长度：" + arg);
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 按整包读取TS数据，并在丢失同步时自动重新同步。
+ * <p>
+ * 同步状态下数据直接读入调用者的缓冲区，逐包检查同步字节；发现同步字节缺失时记一次失步，
+ * 在已读数据中查找新的同步位置（连续{@value #SYNC_COUNT}个包以同步字节开头），后续的包依次前移。
+ * 未能交付的零头数据暂存在内部缓存中，下次读取时先交付。
+ * <p>
+ * 包长度（188/192/204）默认在同步时自动识别，也可以指定。开启转换后，192/204字节的包在前移的同时去掉时间码或校验字节，
+ * 交付给调用者的都是188字节的标准TS包，不需要额外的转换过程。
+ * <p>
+ * 设置PID过滤后，不需要的包在检查同步字节的同时被跳过，不会拷贝给调用者。
+ * <p>
+ * 包读取器内部有缓存，同一通道上不要与按字节读取混用；需要切换时先执行同步命令（{@link #reset()}）。
+ */
+final class PacketReader
+{
+    /**
+     * 数据源。读取时只应等待第一批数据，之后只返回已经到达的数据，不要为读满缓冲区而阻塞。
+     */
+    interface Source
+    {
+        int read(ByteBuffer dst) throws IOException;
+    }
+
+    private static final int SYNC_COUNT = 5;
+    private static final int PENDING_SIZE = PacketFormat.MAX_PACKET_SIZE * 64;
+
+    private final Source source;
+    private final ByteBuffer pending;
+    private final PidFilter filter;
+    private boolean autoDetect;
+    private int packetSize;
+    private boolean convert;
+    private boolean locked;
+    private boolean eof;
+    private long syncLosses;
+    private long skippedBytes;
+
+    PacketReader(Source source)
+    {
+        this.source = source;
+        pending = ByteBuffer.allocate(PENDING_SIZE);
+        pending.flip(); // 初始为空
+        filter = new PidFilter();
+        autoDetect = true;
+        packetSize = PacketFormat.TS_PACKET_SIZE;
+        convert = false;
+        locked = false;
+        eof = false;
+    }
+
+    /**
+     * 读取若干完整的TS包。
+     * <p>
+     * 至少读到一个包才返回，已经读到包以后不会再为凑满maxPackets而阻塞。
+     *
+     * @param dst 结果缓冲区，剩余空间至少能放下一个包
+     * @param maxPackets 最多读取的包数
+     * @return 实际读取的包数，-1表示通道数据已读完
+     */
+    int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (maxPackets <= 0 || dst.remaining() < outputSize())
+            throw new IllegalArgumentException("缓冲区剩余空间不足一个TS包");
+
+        int limit = dst.limit();
+        int count = 0;
+        try
+        {
+            while (count < maxPackets)
+            {
+                if (!locked && (count > 0 || !acquire()))
+                    break;
+
+                int size = packetSize;
+                int outSize = outputSize();
+                if (pending.remaining() >= size)
+                {
+                    int pos = pending.position();
+                    if (pending.get(pos + PacketFormat.syncOffset(size)) != SyncScanner.SYNC_BYTE)
+                    {
+                        lose();
+                        continue;
+                    }
+                    if (filter.isEnabled() && !filter.accept(pid(pending, pos + PacketFormat.syncOffset(size))))
+                    {
+                        pending.position(pos + size);
+                        continue;
+                    }
+                    if (limit - dst.position() < outSize)
+                    {
+                        if (count == 0)
+                            throw new IllegalArgumentException("缓冲区剩余空间不足一个TS包");
+                        break;
+                    }
+                    dst.put(pending.array(), pending.arrayOffset() + pos + outputOffset(), outSize);
+                    pending.position(pos + size);
+                    count++;
+                    continue;
+                }
+
+                if (count > 0 || eof)
+                    break; // 已有数据可交付，不再阻塞。
+
+                if (pending.hasRemaining())
+                {
+                    fillPending(size - pending.remaining());
+                    continue;
+                }
+
+                // 缓存已空，直接读入调用者的缓冲区（按原始包长度预留空间）。
+                int packets = Math.min(maxPackets, (limit - dst.position()) / size);
+                if (packets <= 0)
+                    throw new IllegalArgumentException("缓冲区剩余空间不足一个TS包");
+                int from = dst.position();
+                dst.limit(from + packets * size);
+                int nRead = source.read(dst);
+                dst.limit(limit);
+                if (nRead < 0)
+                {
+                    eof = true;
+                    break;
+                }
+                count += validate(dst, from);
+            }
+        } finally
+        {
+            dst.limit(limit);
+        }
+
+        if (count == 0 && eof)
+        {
+            skippedBytes += pending.remaining(); // 文件末尾不完整的包
+            pending.position(pending.limit());
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * 清空内部缓存，下次读取时重新同步。
+     */
+    void reset()
+    {
+        pending.clear().flip();
+        locked = false;
+        eof = false;
+    }
+
+    /**
+     * 设置包长度。
+     *
+     * @param size 包长度，0表示自动识别
+     */
+    void setPacketSize(int size)
+    {
+        autoDetect = (size == 0);
+        if (size != 0)
+            packetSize = size;
+        locked = false;
+    }
+
+    /**
+     * 记录外部同步过程识别出的包长度，不改变自动识别设置。
+     */
+    void detected(int size)
+    {
+        packetSize = size;
+    }
+
+    int packetSize()
+    {
+        return packetSize;
+    }
+
+    boolean isAutoDetect()
+    {
+        return autoDetect;
+    }
+
+    void setConvert(boolean enabled)
+    {
+        convert = enabled;
+    }
+
+    boolean isConvert()
+    {
+        return convert;
+    }
+
+    PidFilter filter()
+    {
+        return filter;
+    }
+
+    long syncLosses()
+    {
+        return syncLosses;
+    }
+
+    long skippedBytes()
+    {
+        return skippedBytes;
+    }
+
+    private int outputSize()
+    {
+        return convert ? PacketFormat.TS_PACKET_SIZE : packetSize;
+    }
+
+    private int outputOffset()
+    {
+        return convert ? PacketFormat.syncOffset(packetSize) : 0;
+    }
+
+    /**
+     * 检查刚读入[from, position)的数据，把其中有效（且未被过滤）的包依次排列到from开始的位置，返回有效包数。
+     * 失步后的数据重新同步后继续检查；末尾不完整的包或未能同步的数据转入内部缓存。
+     */
+    private int validate(ByteBuffer dst, int from)
+    {
+        int size = packetSize;
+        int syncOffset = PacketFormat.syncOffset(size);
+        int outSize = outputSize();
+        int outOffset = outputOffset();
+
+        int filled = dst.position();
+        int pos = from; // 读指针
+        int out = from; // 写指针
+        while (filled - pos >= size)
+        {
+            if (dst.get(pos + syncOffset) == SyncScanner.SYNC_BYTE)
+            {
+                if (filter.isEnabled() && !filter.accept(pid(dst, pos + syncOffset)))
+                {
+                    pos += size;
+                    continue;
+                }
+                if (out != pos + outOffset)
+                    move(dst, pos + outOffset, out, outSize);
+                out += outSize;
+                pos += size;
+                continue;
+            }
+
+            lose();
+            int found = PacketFormat.find(dst, pos, filled, size, SYNC_COUNT);
+            if (found < 0)
+                break;
+
+            skippedBytes += found - pos;
+            pos = found;
+            locked = true;
+        }
+
+        // 剩余数据（不完整的包或尚未同步的数据）转入内部缓存，最多保留一个缓存的容量。
+        int remains = filled - pos;
+        if (remains > 0)
+        {
+            int keep = Math.min(remains, PENDING_SIZE);
+            skippedBytes += remains - keep;
+            ByteBuffer tail = dst.duplicate();
+            tail.limit(filled).position(filled - keep);
+            pending.clear();
+            pending.put(tail);
+            pending.flip();
+        }
+        dst.position(out);
+        return (out - from) / outSize;
+    }
+
+    private static int pid(ByteBuffer buf, int syncPosition)
+    {
+        return ((buf.get(syncPosition + 1) & 0x1F) << 8) | (buf.get(syncPosition + 2) & 0xFF);
+    }
+
+    /**
+     * 在同一缓冲区内前移数据（目标位置在源位置之前）。
+     */
+    private static void move(ByteBuffer buf, int src, int dst, int length)
+    {
+        if (buf.hasArray())
+        {
+            byte[] array = buf.array();
+            System.arraycopy(array, buf.arrayOffset() + src, array, buf.arrayOffset() + dst, length);
+            return;
+        }
+
+        ByteBuffer from = buf.duplicate();
+        from.limit(src + length).position(src);
+        ByteBuffer to = buf.duplicate();
+        to.limit(dst + length).position(dst);
+        to.put(from);
+    }
+
+    /**
+     * 在内部缓存中查找同步位置，需要时识别包长度。
+     *
+     * @return 是否同步成功，数据读完仍未同步时返回false。
+     */
+    private boolean acquire() throws IOException
+    {
+        while (true)
+        {
+            int from = pending.position();
+            int to = pending.limit();
+            int found = locate(from, to, SYNC_COUNT);
+            if (found < 0 && eof)
+                found = locate(from, to - PacketFormat.TS_PACKET_SIZE + 1, 1); // 末尾数据不足以确认，退而求其次。
+            if (found >= 0)
+            {
+                skippedBytes += found - from;
+                pending.position(found);
+                locked = true;
+                return true;
+            }
+            if (eof)
+                return false;
+
+            // 只保留可能包含同步位置的尾部数据，其余丢弃。
+            int keep = Math.min(to - from, (SYNC_COUNT - 1) * PacketFormat.MAX_PACKET_SIZE + 4);
+            skippedBytes += (to - from) - keep;
+            pending.position(to - keep);
+            fillPending(SYNC_COUNT * PacketFormat.MAX_PACKET_SIZE + 4 - keep);
+        }
+    }
+
+    private int locate(int from, int to, int count)
+    {
+        if (to <= from)
+            return -1;
+        if (autoDetect)
+        {
+            int size = PacketFormat.detect(pending, from, to, count);
+            if (size == 0)
+                return -1;
+            packetSize = size;
+        }
+        return PacketFormat.find(pending, from, to, packetSize, count);
+    }
+
+    /**
+     * 向内部缓存补充数据。
+     * <p>
+     * 只读取需要的数据量：有些通道（如组播）的读取会等到缓冲区填满才返回，多读会增加等待时间。
+     *
+     * @param wanted 需要补充的字节数
+     */
+    private void fillPending(int wanted) throws IOException
+    {
+        pending.compact();
+        pending.limit(Math.min(pending.capacity(), pending.position() + Math.max(1, wanted)));
+        int nRead = source.read(pending);
+        if (nRead < 0)
+            eof = true;
+        pending.flip();
+    }
+
+    private void lose()
+    {
+        if (locked)
+            syncLosses++;
+        locked = false;
+    }
+}
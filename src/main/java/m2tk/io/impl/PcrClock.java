@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 基于PCR的播放时钟。
+ * <p>
+ * 锁定第一个携带PCR的PID，将相邻两个PCR之间的码率作为当前码率，按字节位置线性推算其后每个包的释放时刻；
+ * PCR包本身按PCR值换算释放时刻。遇到PCR不连续（不连续标志、回退或间隔过大）、通道回绕或消费者严重滞后时，
+ * 以当前时刻重新建立时间锚点。
+ */
+final class PcrClock
+{
+    private static final long PCR_CYCLE = (1L << 33) * 300; // PCR回绕周期（27MHz时钟）
+    private static final long MAX_PCR_GAP = 27_000_000L; // PCR间隔超过1秒视为不连续
+    private static final long MAX_LATENESS_NANOS = 500_000_000L; // 落后计划超过500ms时放弃追赶
+
+    private int pcrPid;
+    private boolean anchored;
+    private long anchorPcr;
+    private long anchorNanos;
+    private long bytesSinceAnchor;
+    private long byteRate;
+
+    PcrClock()
+    {
+        pcrPid = -1;
+    }
+
+    int pcrPid()
+    {
+        return pcrPid;
+    }
+
+    /**
+     * 丢弃时间锚点（保留已锁定的PCR PID），下一个PCR将重新建立锚点。
+     */
+    void reset()
+    {
+        anchored = false;
+        bytesSinceAnchor = 0;
+    }
+
+    /**
+     * 计算指定包的释放时刻，不改变时钟状态。
+     *
+     * @param buf 数据缓冲区
+     * @param offset 包的起始位置（绝对索引）
+     * @param now 当前时刻
+     * @return 释放时刻（System.nanoTime时间轴），未知时返回now
+     */
+    long releaseTime(ByteBuffer buf, int offset, long now)
+    {
+        if (!anchored)
+        {
+            // 尚未遇到PCR：已知码率（预估所得或回绕之前）时从第一个包起按码率推算，否则立即释放。
+            if (byteRate <= 0 || bytesSinceAnchor == 0)
+                return now;
+            return anchorNanos + bytesSinceAnchor * 1000_000_000L / byteRate;
+        }
+
+        long pcr = readPcr(buf, offset);
+        if (pcr >= 0 && readPid(buf, offset) == pcrPid)
+        {
+            if (isDiscontinuous(buf, offset))
+                return now;
+            long delta = Math.floorMod(pcr - anchorPcr, PCR_CYCLE);
+            return (delta <= MAX_PCR_GAP) ? anchorNanos + delta * 1000 / 27 : now;
+        }
+
+        if (byteRate <= 0)
+            return now;
+        return anchorNanos + bytesSinceAnchor * 1000_000_000L / byteRate;
+    }
+
+    /**
+     * 在包被释放后更新时钟状态。
+     *
+     * @param buf 数据缓冲区
+     * @param offset 包的起始位置（绝对索引）
+     * @param packetSize 包长度
+     * @param now 当前时刻
+     */
+    void update(ByteBuffer buf, int offset, int packetSize, long now)
+    {
+        if (!anchored && bytesSinceAnchor == 0)
+            anchorNanos = now; // 第一个PCR之前按码率推算的起点
+
+        long pcr = readPcr(buf, offset);
+        int pid = (pcr < 0) ? -1 : readPid(buf, offset);
+        if (pcr >= 0 && (pcrPid == -1 || pid == pcrPid))
+        {
+            pcrPid = pid;
+
+            long delta = Math.floorMod(pcr - anchorPcr, PCR_CYCLE);
+            if (anchored && !isDiscontinuous(buf, offset) && delta > 0 && delta <= MAX_PCR_GAP)
+            {
+                byteRate = bytesSinceAnchor * 27_000_000L / delta;
+                anchorNanos += delta * 1000 / 27;
+                if (now - anchorNanos > MAX_LATENESS_NANOS)
+                    anchorNanos = now;
+            } else
+            {
+                anchorNanos = now;
+                anchored = true;
+            }
+            anchorPcr = pcr;
+            bytesSinceAnchor = 0;
+        }
+
+        bytesSinceAnchor += packetSize;
+    }
+
+    /**
+     * 尚未得到码率时，根据预读数据中同一PID上相邻两个PCR之间的码率设置初始码率。
+     *
+     * @param buf 预读数据，从0开始按包对齐
+     * @param syncOffset 同步字节在包中的偏移
+     * @param length 预读数据长度
+     * @param packetSize 包长度
+     */
+    void estimate(ByteBuffer buf, int syncOffset, int length, int packetSize)
+    {
+        if (byteRate > 0)
+            return;
+
+        int firstPid = pcrPid;
+        long firstPcr = -1;
+        long firstOffset = 0;
+        for (int offset = syncOffset; offset + packetSize - syncOffset <= length; offset += packetSize)
+        {
+            long pcr = readPcr(buf, offset);
+            if (pcr < 0 || (firstPid != -1 && readPid(buf, offset) != firstPid))
+                continue;
+
+            long delta = Math.floorMod(pcr - firstPcr, PCR_CYCLE);
+            if (firstPcr >= 0 && !isDiscontinuous(buf, offset) && delta > 0 && delta <= MAX_PCR_GAP)
+            {
+                byteRate = (offset - firstOffset) * 27_000_000L / delta;
+                return;
+            }
+            firstPid = readPid(buf, offset);
+            firstPcr = pcr;
+            firstOffset = offset;
+        }
+    }
+
+    private static int readPid(ByteBuffer buf, int offset)
+    {
+        return ((buf.get(offset + 1) & 0x1F) << 8) | (buf.get(offset + 2) & 0xFF);
+    }
+
+    private static boolean isDiscontinuous(ByteBuffer buf, int offset)
+    {
+        return (buf.get(offset + 5) & 0x80) != 0; // discontinuity_indicator
+    }
+
+    /**
+     * 读取包中的PCR值（27MHz）。
+     *
+     * @return PCR值，不含PCR时返回-1
+     */
+    static long readPcr(ByteBuffer buf, int offset)
+    {
+        if (buf.get(offset) != SyncScanner.SYNC_BYTE)
+            return -1;
+
+        int adaptationFieldControl = (buf.get(offset + 3) >> 4) & 0x3;
+        if ((adaptationFieldControl & 0x2) == 0)
+            return -1; // 没有调整字段
+
+        int adaptationFieldLength = buf.get(offset + 4) & 0xFF;
+        if (adaptationFieldLength < 7 || (buf.get(offset + 5) & 0x10) == 0)
+            return -1; // 没有PCR字段
+
+        long base = ((buf.get(offset + 6) & 0xFFL) << 25) |
+                    ((buf.get(offset + 7) & 0xFFL) << 17) |
+                    ((buf.get(offset + 8) & 0xFFL) << 9) |
+                    ((buf.get(offset + 9) & 0xFFL) << 1) |
+                    ((buf.get(offset + 10) & 0x80L) >> 7);
+        long extension = ((buf.get(offset + 10) & 0x01L) << 8) | (buf.get(offset + 11) & 0xFFL);
+        return base * 300 + extension;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+/**
+ * PID过滤器：用8192位的位图记录需要保留的PID，并按PID统计被丢弃的包数。
+ * <p>
+ * 过滤器在读取线程中使用，不做同步；其他线程读取的统计值可能略有滞后。
+ */
+final class PidFilter
+{
+    static final int PID_COUNT = 8192;
+
+    private final long[] bitmap = new long[PID_COUNT / 64];
+    private final long[] drops = new long[PID_COUNT];
+    private boolean enabled;
+
+    /**
+     * 设置需要保留的PID，参数为空时关闭过滤。
+     * <p>
+     * 参数可以是Integer、Long、int[]，或者以逗号分隔的PID列表字符串（支持0x前缀的十六进制）。
+     */
+    void set(Object[] arguments)
+    {
+        long[] selected = new long[bitmap.length];
+        for (Object arg : arguments)
+        {
+            if (arg instanceof Integer)
+                select(selected, (int) arg, arg);
+            else if (arg instanceof Long)
+                select(selected, (int) (long) arg, arg);
+            else if (arg instanceof int[])
+            {
+                for (int pid : (int[]) arg)
+                    select(selected, pid, arg);
+            } else if (arg instanceof String)
+            {
+                for (String token : ((String) arg).split(","))
+                {
+                    if (token.trim().isEmpty())
+                        continue;
+                    try
+                    {
+                        select(selected, Integer.decode(token.trim()), arg);
+                    } catch (NumberFormatException ex)
+                    {
+                        throw new IllegalArgumentException("无效参数：" + arg);
+                    }
+                }
+            } else
+                throw new IllegalArgumentException("无效参数：" + arg);
+        }
+
+        boolean any = false;
+        for (long word : selected)
+            any |= (word != 0);
+        System.arraycopy(selected, 0, bitmap, 0, bitmap.length);
+        enabled = any;
+    }
+
+    private static void select(long[] selected, int pid, Object arg)
+    {
+        if (pid < 0 || pid >= PID_COUNT)
+            throw new IllegalArgumentException("无效的PID：" + arg);
+        selected[pid >>> 6] |= 1L << pid;
+    }
+
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * 判断包是否保留，不保留的包计入对应PID的丢弃数。
+     *
+     * @param pid 包的PID
+     * @return 是否保留
+     */
+    boolean accept(int pid)
+    {
+        if ((bitmap[pid >>> 6] & (1L << pid)) != 0)
+            return true;
+        drops[pid]++;
+        return false;
+    }
+
+    /**
+     * @return 需要保留的PID列表，未开启过滤时返回null。
+     */
+    int[] selected()
+    {
+        if (!enabled)
+            return null;
+
+        int count = 0;
+        for (long word : bitmap)
+            count += Long.bitCount(word);
+        int[] pids = new int[count];
+        int i = 0;
+        for (int pid = 0; pid < PID_COUNT; pid++)
+        {
+            if ((bitmap[pid >>> 6] & (1L << pid)) != 0)
+                pids[i++] = pid;
+        }
+        return pids;
+    }
+
+    /**
+     * @return 各PID的丢弃包数（按PID索引）
+     */
+    long[] drops()
+    {
+        return drops.clone();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 基于令牌桶的输出速率控制器。
+ * <p>
+ * 以纳秒为单位推算每批数据的理论发送时刻（GCRA算法），令牌桶深度即允许连续发送的最大数据量（突发量）。
+ * 发送时刻只由目标码率推算，与实际等待误差无关，短暂的延迟（不超过10ms）会在随后追回，因此长期输出码率不会漂移。
+ * 等待时先park，临近发送时刻再自旋，兼顾精度与CPU占用。
+ */
+final class RatePacer
+{
+    private static final long NANOS_PER_SECOND = 1000_000_000L;
+    private static final long SPIN_THRESHOLD_NANOS = 50_000; // 最后50µs自旋等待，避免park唤醒延迟。
+    private static final long MEASURE_PERIOD_NANOS = NANOS_PER_SECOND;
+    private static final long MAX_CATCH_UP_NANOS = 10_000_000; // 最多追赶10ms的发送延迟，超过则视为空闲，重新计时。
+
+    private long bitrate;
+    private long burstBytes;
+    private long tat; // 理论发送时刻（theoretical arrival time）
+    private long remainder; // 换算时间时舍去的余数（单位：bit·ns/bitrate），避免累积误差。
+
+    private long lagNanos;
+
+    private long measureStart;
+    private long measureBytes;
+    private volatile long measuredBitrate;
+    private volatile int generation; // 码率修改次数，供在锁外等待的调用者发现参数变化
+    private volatile Thread waiter;
+
+    /**
+     * @param burstBytes 令牌桶深度（字节）
+     */
+    RatePacer(long burstBytes)
+    {
+        this.bitrate = -1;
+        this.burstBytes = burstBytes;
+        this.measureStart = System.nanoTime();
+    }
+
+    /**
+     * 设置目标码率。
+     *
+     * @param bitrate 目标码率（bps），小于等于0时不限速。
+     */
+    void setBitrate(long bitrate)
+    {
+        this.bitrate = bitrate;
+        this.tat = System.nanoTime();
+        this.remainder = 0;
+        this.lagNanos = 0;
+        generation++;
+        Thread w = waiter;
+        if (w != null)
+            LockSupport.unpark(w);
+    }
+
+    int generation()
+    {
+        return generation;
+    }
+
+    long getBitrate()
+    {
+        return bitrate;
+    }
+
+    void setBurstBytes(long burstBytes)
+    {
+        if (burstBytes <= 0)
+            throw new IllegalArgumentException("无效突发量：" + burstBytes);
+        this.burstBytes = burstBytes;
+    }
+
+    long getBurstBytes()
+    {
+        return burstBytes;
+    }
+
+    /**
+     * 最近一个统计周期（约1秒）内实际输出的码率。
+     *
+     * @return 实测码率（bps）
+     */
+    long getMeasuredBitrate()
+    {
+        return measuredBitrate;
+    }
+
+    /**
+     * 最近一次申请发送时落后于计划的时间。
+     *
+     * @return 落后时间（纳秒），0表示按计划发送
+     */
+    long getLagNanos()
+    {
+        return lagNanos;
+    }
+
+    /**
+     * 申请发送指定数量的数据，必要时阻塞到允许发送的时刻。
+     *
+     * @param bytes 数据量（字节）
+     * @return 阻塞等待的时间（纳秒）
+     */
+    long acquire(int bytes)
+    {
+        long now = System.nanoTime();
+        long sendTime = reserve(bytes);
+        long waited = 0;
+        if (sendTime - now > 0)
+        {
+            waitUntil(sendTime);
+            waited = System.nanoTime() - now;
+        }
+        record(bytes);
+        return waited;
+    }
+
+    /**
+     * 登记发送指定数量的数据，只计算允许发送的时刻，不等待，也不计入实测码率。
+     * <p>
+     * 供需要在锁内登记、锁外等待的调用者使用：等待用{@link #await(long, int)}，发送后用{@link #record(int)}计数。
+     *
+     * @param bytes 数据量（字节）
+     * @return 允许发送的时刻（System.nanoTime时间轴）
+     */
+    long reserve(int bytes)
+    {
+        long now = System.nanoTime();
+        if (bitrate <= 0)
+            return now;
+
+        if (now - tat > MAX_CATCH_UP_NANOS)
+            tat = now; // 空闲过（或严重落后于计划），不补发积压的数据。
+
+        // 令牌桶还能容纳本批数据时立即发送，否则等到桶内腾出足够空间。
+        long tolerance = toNanos(Math.max(0, burstBytes - bytes));
+        long sendTime = tat - tolerance;
+        lagNanos = Math.max(0, now - sendTime);
+
+        long bits = bytes * 8L * NANOS_PER_SECOND + remainder;
+        tat += bits / bitrate;
+        remainder = bits % bitrate;
+        return Math.max(now, sendTime);
+    }
+
+    /**
+     * 等待到允许发送的时刻。等待期间码率被修改时提前返回，调用者应按新码率重新登记。
+     *
+     * @param sendTime {@link #reserve(int)}返回的发送时刻
+     * @param generation 登记时的{@link #generation()}
+     * @return 是否已到发送时刻（线程被中断时也返回true），码率被修改时返回false
+     */
+    boolean await(long sendTime, int generation)
+    {
+        waiter = Thread.currentThread();
+        try
+        {
+            while (this.generation == generation)
+            {
+                long remaining = sendTime - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                    return true;
+
+                if (remaining > SPIN_THRESHOLD_NANOS)
+                    LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD_NANOS);
+                else
+                    Thread.onSpinWait();
+            }
+            return false;
+        } finally
+        {
+            waiter = null;
+        }
+    }
+
+    /**
+     * 计入已发送的数据量（用于实测码率）。
+     */
+    void record(int bytes)
+    {
+        long now = System.nanoTime();
+        measureBytes += bytes;
+        long elapsed = now - measureStart;
+        if (elapsed >= MEASURE_PERIOD_NANOS)
+        {
+            measuredBitrate = (long) (measureBytes * 8.0 * NANOS_PER_SECOND / elapsed); // 不限速时一个统计周期的数据量可能很大，用浮点运算避免溢出
+            measureBytes = 0;
+            measureStart = now;
+        }
+    }
+
+    private long toNanos(long bytes)
+    {
+        return bytes * 8 * NANOS_PER_SECOND / bitrate;
+    }
+
+    /**
+     * 等待到指定时刻（System.nanoTime时间轴）。线程被中断时提前返回，并保留中断状态。
+     *
+     * @param deadline 目标时刻
+     */
+    static void waitUntil(long deadline)
+    {
+        while (true)
+        {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                return;
+
+            if (remaining > SPIN_THRESHOLD_NANOS)
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            else
+                Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.RxChannel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+
+/**
+ * 由{@link MulticastReactor}事件循环负责接收的组播输入通道。
+ * <p>
+ * 每个组播组仍是一个独立的输入通道，但不再需要独立的接收线程：事件循环把报文收进通道的报文队列，
+ * read从队列中读取。
+ */
+final class ReactorRxChannel implements RxChannel
+{
+    static final int BUFFER_SIZE = 1500;
+    static final int DEFAULT_RING_SIZE = 128;
+    private static final int SYNC_COUNT = 5;
+    private final DatagramSync sync = new DatagramSync(SYNC_COUNT);
+
+    private final String uri;
+    private final DatagramChannel channel;
+    private final MembershipKey membership;
+    private final DatagramRing ring;
+    private final PacketReader packetReader = new PacketReader(dst -> read(dst, false));
+    private final StatsCounters stats = new StatsCounters(packetReader::packetSize);
+    private final MulticastReactor.EventLoop loop;
+    private volatile IOException failure;
+    private int timeout;
+
+    private byte[] current;
+    private ByteBuffer currentBuffer;
+    private int currentLength;
+    private int packetReadOffset;
+    private boolean holdingSlot;
+
+    ReactorRxChannel(InetAddress group, int port, InetAddress source, String nifName, int ringSize) throws IOException
+    {
+        uri = "udp://" + group.getHostAddress() + ":" + port;
+        timeout = 30000; // 30s
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try
+        {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 2 * 1024 * 1024); // 事件循环及时接收，不需要很大的内核缓存。
+            channel.bind(new InetSocketAddress(port));
+
+            MembershipKey key = null;
+            for (NetworkInterface nif : NetworkInterfaces.multicastCandidates(nifName))
+            {
+                try
+                {
+                    key = (source == null) ? channel.join(group, nif) : channel.join(group, nif, source);
+                    break;
+                } catch (IOException ex)
+                {
+                    System.err.printf("Can not join multicast group with NIF[%s], pass.%n", nif.getDisplayName());
+                }
+            }
+            if (key == null)
+                throw new IllegalArgumentException("没有可用的网络接口");
+            membership = key;
+
+            channel.configureBlocking(false);
+        } catch (IOException | RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+
+        System.out.printf("Join multicast group[%s] with NIF[%s].%n", uri, membership.networkInterface().getDisplayName());
+
+        ring = new DatagramRing(ringSize, BUFFER_SIZE);
+        currentLength = 0;
+        packetReadOffset = 0;
+        try
+        {
+            loop = MulticastReactor.shared().register(this);
+        } catch (IOException | RuntimeException ex)
+        {
+            membership.drop();
+            channel.close();
+            throw ex;
+        }
+    }
+
+    DatagramChannel channel()
+    {
+        return channel;
+    }
+
+    /**
+     * 由事件循环线程调用，接收已到达的报文。
+     */
+    void receiveAvailable(ByteBuffer discard, int batch) throws IOException
+    {
+        for (int i = 0; i < batch; i++)
+        {
+            ByteBuffer slot = ring.claimView();
+            if (slot == null)
+            {
+                discard.clear();
+                if (channel.receive(discard) == null)
+                    return;
+                ring.countOverflow();
+                continue;
+            }
+
+            if (channel.receive(slot) == null)
+                return;
+            ring.publish(slot.position());
+        }
+    }
+
+    /**
+     * 由事件循环线程调用，通知接收失败。
+     */
+    void fail(IOException ex)
+    {
+        if (channel.isOpen())
+            failure = ex;
+        ring.terminate();
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "source name".equals(property) ||
+               "timeout".equals(property) ||
+               "nif".equals(property) ||
+               "source address".equals(property) ||
+               "engine".equals(property) ||
+               "ring size".equals(property) ||
+               "ring used".equals(property) ||
+               "ring overflow".equals(property) ||
+               "packet size".equals(property) ||
+               "convert".equals(property) ||
+               "sync losses".equals(property) ||
+               "pidFilter".equals(property) ||
+               "pidFilter.drops".equals(property) ||
+               "skipped bytes".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"source name", "timeout", "nif", "source address", "engine",
+                            "ring size", "ring used", "ring overflow", "packet size", "convert", "sync losses", "skipped bytes", "pidFilter", "pidFilter.drops"}, StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("source name".equals(property))
+            return uri;
+        if ("timeout".equals(property))
+            return timeout;
+        if ("nif".equals(property))
+            return membership.networkInterface().getDisplayName();
+        if ("source address".equals(property))
+            return (membership.sourceAddress() == null) ? null : membership.sourceAddress().getHostAddress();
+        if ("engine".equals(property))
+            return "reactor";
+        if ("ring size".equals(property))
+            return ring.capacity();
+        if ("ring used".equals(property))
+            return ring.size();
+        if ("ring overflow".equals(property))
+            return ring.overflows();
+        if ("packet size".equals(property))
+            return packetReader.packetSize();
+        if ("convert".equals(property))
+            return packetReader.isConvert();
+        if ("pidFilter".equals(property))
+            return packetReader.filter().selected();
+        if ("pidFilter.drops".equals(property))
+            return packetReader.filter().drops();
+        if ("sync losses".equals(property))
+            return packetReader.syncLosses();
+        if ("skipped bytes".equals(property))
+            return packetReader.skippedBytes();
+        return stats.query(property, ring.overflows());
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return "timeout".equals(command) || "sync".equals(command) ||
+               "packet size".equals(command) || "convert".equals(command) || "pidFilter".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"timeout", "sync", "packet size", "convert", "pidFilter"}, StatsCounters.RESET_COMMAND);
+    }
+
+    @Override
+    public void control(String command, Object... arguments) throws IOException
+    {
+        if ("timeout".equals(command))
+            doSetTimeout(arguments);
+        if ("sync".equals(command))
+        {
+            packetReader.reset();
+            doSync();
+        }
+        if ("packet size".equals(command))
+            packetReader.setPacketSize(PacketFormat.parse(arguments, true));
+        if ("convert".equals(command))
+            doSetConvert(arguments);
+        if ("pidFilter".equals(command))
+            packetReader.filter().set(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(ring.overflows());
+    }
+
+    private void doSetTimeout(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value < 0)
+            throw new IllegalArgumentException("无效超时：" + arg);
+        timeout = value;
+    }
+
+    private void doSync() throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        // 在当前报文的剩余数据中查找同步位置，找不到（或小报文尚未确认足够的包）则丢弃该报文，继续接收下一个。
+        sync.reset();
+        while (true)
+        {
+            receive();
+
+            int length = currentLength;
+            int found = sync.locate(currentBuffer, packetReadOffset, length, 188);
+            if (found >= 0)
+            {
+                packetReadOffset = found;
+                return;
+            }
+            packetReadOffset = length;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        if (offset < 0 || buffer.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        int received = 0;
+        while (received < length)
+        {
+            receive();
+
+            int n = Math.min(length - received, currentLength - packetReadOffset);
+            System.arraycopy(current, packetReadOffset, buffer, offset + received, n);
+            packetReadOffset += n;
+            received += n;
+        }
+        stats.transfer(received);
+        return received;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return read(dst, true);
+    }
+
+    /**
+     * @param fill 是否读满dst；为false时只等待第一个报文，之后只读取已经到达的数据（按包读取时使用，
+     *             避免低码率输入为凑满缓冲区而长时间等待）。
+     */
+    private int read(ByteBuffer dst, boolean fill) throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        int received = 0;
+        while (dst.hasRemaining())
+        {
+            if (!fill && received > 0 && currentLength <= packetReadOffset && ring.size() <= (holdingSlot ? 1 : 0))
+                break;
+            receive();
+
+            int n = Math.min(dst.remaining(), currentLength - packetReadOffset);
+            dst.put(current, packetReadOffset, n);
+            packetReadOffset += n;
+            received += n;
+        }
+        stats.transfer(received);
+        return received;
+    }
+
+    private void receive() throws IOException
+    {
+        if (currentLength > packetReadOffset)
+            return; // 还有缓存的数据，直接返回
+
+        if (holdingSlot)
+        {
+            ring.release(); // 当前报文已读完，归还报文槽
+            holdingSlot = false;
+        }
+
+        long t0 = System.nanoTime();
+        int index = ring.await(timeout * 1000_000L);
+        stats.blocked(System.nanoTime() - t0);
+        if (index < 0)
+        {
+            if (failure != null)
+                throw failure;
+            if (!channel.isOpen())
+                throw new IOException("通道已关闭");
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException("接收被中断");
+            throw new SocketTimeoutException("接收超时");
+        }
+
+        current = ring.slot(index);
+        currentBuffer = ring.view(index);
+        currentLength = ring.length(index);
+        packetReadOffset = 0;
+        holdingSlot = true;
+    }
+
+    @Override
+    public int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (!channel.isOpen())
+            throw new IOException("通道已关闭");
+
+        return packetReader.readPackets(dst, maxPackets);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (channel.isOpen())
+        {
+            membership.drop();
+            channel.close();
+            loop.remove(this);
+            ring.terminate();
+        }
+    }
+
+    private void doSetConvert(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            packetReader.setConvert((boolean) arg);
+        else if (arg instanceof String)
+            packetReader.setConvert(Boolean.parseBoolean((String) arg));
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 预读文件数据源，适合网络存储（NFS等）上的文件。
+ * <p>
+ * 文件按固定大小的对齐块划分，后台线程按位置读取（pread），使读位置所在的块及其后的若干块常驻缓存，
+ * 读取时直接从缓存拷贝，不必每次都等待一次网络往返。开启回绕时，文件末尾之后预读文件开头的块。
+ * 读位置上的块不在缓存中（例如跳转之后）时同步读取，并把预读窗口移到新位置。
+ * <p>
+ * 缓存使用堆内存，关闭时停止后台线程并释放全部缓存。
+ */
+final class ReadAheadFileSource implements FileSource
+{
+    static final int DEFAULT_BLOCKS = 3;
+    static final int MAX_BLOCKS = 16;
+    static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final int EMPTY = 0;
+    private static final int LOADING = 1;
+    private static final int READY = 2;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final Slot[] slots;
+    private final Thread prefetcher;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long position;
+    private long cachedSize;
+    private boolean wrap;
+    private boolean closed;
+    private long failedBlock = -1;
+    private volatile long hits;
+    private volatile long misses;
+
+    private static final class Slot
+    {
+        ByteBuffer buffer;
+        long block = -1;
+        int length;
+        int state = EMPTY;
+    }
+
+    /**
+     * @param channel 文件通道
+     * @param blocks 预读块数（包括读位置所在的块），2为双缓冲，3为三缓冲
+     * @param blockSize 块大小（字节，按4KB对齐）
+     */
+    ReadAheadFileSource(FileChannel channel, int blocks, int blockSize) throws IOException
+    {
+        if (blocks < 2 || blocks > MAX_BLOCKS)
+            throw new IllegalArgumentException("无效的预读块数：" + blocks);
+        if (blockSize < 4096 || blockSize % 4096 != 0)
+            throw new IllegalArgumentException("无效的预读块大小：" + blockSize);
+
+        this.channel = channel;
+        this.blockSize = blockSize;
+        slots = new Slot[blocks];
+        for (int i = 0; i < blocks; i++)
+        {
+            slots[i] = new Slot();
+            slots[i].buffer = ByteBuffer.allocate(blockSize);
+        }
+        cachedSize = channel.size();
+
+        prefetcher = new Thread(this::prefetchLoop, "m2tk-read-ahead");
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+    }
+
+    int blocks()
+    {
+        return slots.length;
+    }
+
+    int blockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * @return 直接从缓存读取的次数占全部读取次数的比例，尚未读取时为0
+     */
+    double hitRatio()
+    {
+        long h = hits;
+        long total = h + misses;
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    /**
+     * 设置是否回绕：开启时在文件末尾之后预读文件开头的块。
+     */
+    void setWrap(boolean enabled)
+    {
+        lock.lock();
+        try
+        {
+            wrap = enabled;
+            changed.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (!dst.hasRemaining())
+            return 0;
+
+        long current;
+        lock.lock();
+        try
+        {
+            if (closed)
+                throw new IOException("数据源已关闭");
+
+            current = position;
+            if (current >= cachedSize)
+            {
+                cachedSize = channel.size(); // 文件可能仍在增长
+                if (current >= cachedSize)
+                    return -1;
+            }
+
+            long block = current / blockSize;
+            int offset = (int) (current % blockSize);
+            Slot slot = find(block);
+            boolean waited = false;
+            while (slot != null && slot.state == LOADING && !closed)
+            {
+                waited = true;
+                changed.awaitUninterruptibly();
+                slot = find(block);
+            }
+
+            if (slot != null && slot.state == READY)
+            {
+                if (offset < slot.length)
+                {
+                    int n = Math.min(dst.remaining(), slot.length - offset);
+                    ByteBuffer view = slot.buffer.duplicate();
+                    view.limit(offset + n).position(offset);
+                    dst.put(view);
+                    position = current + n;
+                    if (waited)
+                        misses++;
+                    else
+                        hits++;
+                    if (offset + n == slot.length)
+                        changed.signalAll(); // 读完一个块，预读窗口前移
+                    return n;
+                }
+                slot.state = EMPTY; // 读取时文件还没有这么长，块已过期
+            }
+        } finally
+        {
+            lock.unlock();
+        }
+
+        // 缓存未命中：同步读取，同时把预读窗口移到当前位置。
+        misses++;
+        int n = channel.read(dst, current);
+        lock.lock();
+        try
+        {
+            if (n > 0 && position == current)
+                position = current + n;
+            changed.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+        return n;
+    }
+
+    @Override
+    public long position()
+    {
+        lock.lock();
+        try
+        {
+            return position;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void position(long newPosition)
+    {
+        lock.lock();
+        try
+        {
+            position = newPosition;
+            failedBlock = -1;
+            changed.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (closed)
+                return;
+            closed = true;
+            changed.signalAll();
+        } finally
+        {
+            lock.unlock();
+        }
+
+        boolean interrupted = false;
+        while (prefetcher.isAlive())
+        {
+            try
+            {
+                prefetcher.join();
+            } catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        for (Slot slot : slots)
+            slot.buffer = null; // 释放缓存
+        channel.close();
+    }
+
+    private Slot find(long block)
+    {
+        for (Slot slot : slots)
+        {
+            if (slot.block == block && slot.state != EMPTY)
+                return slot;
+        }
+        return null;
+    }
+
+    /**
+     * 预读窗口中的第i个块，超出文件末尾时按回绕设置返回文件开头的块或-1。
+     */
+    private long windowBlock(long first, int i)
+    {
+        long lastBlock = (cachedSize == 0) ? -1 : (cachedSize - 1) / blockSize;
+        long block = first + i;
+        if (block <= lastBlock)
+            return block;
+        if (!wrap || lastBlock < 0)
+            return -1;
+        return (block - lastBlock - 1) % (lastBlock + 1);
+    }
+
+    private boolean inWindow(long block, long first)
+    {
+        for (int i = 0; i < slots.length; i++)
+        {
+            if (windowBlock(first, i) == block)
+                return true;
+        }
+        return false;
+    }
+
+    private void prefetchLoop()
+    {
+        while (true)
+        {
+            Slot target = null;
+            long block = -1;
+            lock.lock();
+            try
+            {
+                while (!closed)
+                {
+                    long first = position / blockSize;
+                    for (int i = 0; i < slots.length && target == null; i++)
+                    {
+                        long candidate = windowBlock(first, i);
+                        if (candidate < 0 || candidate == failedBlock || find(candidate) != null)
+                            continue;
+                        for (Slot slot : slots)
+                        {
+                            if (slot.state == EMPTY || (slot.state == READY && !inWindow(slot.block, first)))
+                            {
+                                target = slot;
+                                block = candidate;
+                                break;
+                            }
+                        }
+                    }
+                    if (target != null)
+                        break;
+                    changed.awaitUninterruptibly();
+                }
+                if (closed)
+                    return;
+
+                target.block = block;
+                target.state = LOADING;
+            } finally
+            {
+                lock.unlock();
+            }
+
+            boolean loaded = load(target, block);
+
+            lock.lock();
+            try
+            {
+                target.state = loaded ? READY : EMPTY;
+                if (!loaded)
+                    failedBlock = block; // 由读者同步读取时报告错误
+                changed.signalAll();
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean load(Slot slot, long block)
+    {
+        ByteBuffer buffer = slot.buffer.duplicate();
+        buffer.clear();
+        long base = block * blockSize;
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                int n = channel.read(buffer, base + buffer.position());
+                if (n <= 0)
+                    break;
+            }
+        } catch (IOException ex)
+        {
+            return false;
+        }
+        slot.length = buffer.position();
+        return slot.length > 0;
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * RTP重排缓存与SMPTE 2022-1 FEC恢复。
+ * <p>
+ * 媒体包按扩展序号（32位以上不回绕）存放在预分配的环形槽中，接收时通过交换备用槽与目标槽完成放置，不拷贝、不分配内存。
+ * 已交付的包在被覆盖之前仍然保留，供FEC恢复使用。FEC包（列FEC与行FEC）存放在另一组预分配的槽中。
+ * <p>
+ * 下一个待交付的包缺失时，先尝试用FEC恢复（按2022-1，恢复数据为FEC载荷与其余受保护包载荷的异或），
+ * 无法恢复时等待至抖动窗口结束，再判定丢失并跳过。
+ * <p>
+ * 按2022-1的要求，媒体包不带CSRC与扩展头，FEC按固定头（12字节）之后的数据计算。
+ * <p>
+ * 2022-7双路输入时两路共用一个缓存，序号早于交付位置的包（另一路的重复包或迟到的包）直接丢弃。
+ * 序号向前跳出缓存范围时立即重新开始；远远落后于交付位置的包只有在同一路连续出现、且另一路也没有正常数据时，
+ * 才视为发送端序号回退而重新开始，以免时延差较大的两路交替重置缓存。
+ */
+final class RtpReorderBuffer
+{
+    static final int SLOT_SIZE = 1500;
+    static final int RTP_HEADER_SIZE = 12;
+    private static final int FEC_HEADER_SIZE = 16;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int LEGS = 2;
+    private static final int RESYNC_COUNT = 16; // 同一路连续16个包远远落后才考虑重新开始
+    private static final long LEG_IDLE_NANOS = 500_000_000L; // 另一路超过500ms没有正常数据才算中断
+
+    // 媒体包
+    private final byte[][] slots;
+    private final ByteBuffer[] views;
+    private final long[] sequences;
+    private final int[] lengths;
+    private final int[] payloadOffsets;
+    private final int[] payloadLengths;
+    private final int mask;
+    private byte[] spare;
+    private ByteBuffer spareView;
+
+    // FEC包
+    private final byte[][] fecSlots;
+    private final ByteBuffer[] fecViews;
+    private final long[] fecBases;
+    private final int[] fecOffsets;
+    private final int[] fecCounts;
+    private final int[] fecLengthRecovery;
+    private final int[] fecPayloadOffsets;
+    private final int[] fecLengths;
+    private int fecNext;
+    private byte[] fecSpare;
+    private ByteBuffer fecSpareView;
+
+    private long next;     // 下一个待交付的扩展序号，-1表示尚未收到数据
+    private long highest;  // 已收到的最大扩展序号
+    private long gapSince; // 发现缺包的时刻（纳秒），-1表示当前没有缺包
+    private final int[] outside = new int[LEGS];  // 各路连续远远落后的包数
+    private final long[] activeAt = new long[LEGS]; // 各路最近一次收到正常包的时刻，-1表示没有
+
+    private long received;
+    private long duplicates;
+    private long late;
+    private long reordered;
+    private long recovered;
+    private long lost;
+
+    RtpReorderBuffer(int capacity, int fecCapacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new byte[size][SLOT_SIZE];
+        views = new ByteBuffer[size];
+        for (int i = 0; i < size; i++)
+            views[i] = ByteBuffer.wrap(slots[i]);
+        sequences = new long[size];
+        lengths = new int[size];
+        payloadOffsets = new int[size];
+        payloadLengths = new int[size];
+        mask = size - 1;
+        spare = new byte[SLOT_SIZE];
+        spareView = ByteBuffer.wrap(spare);
+
+        fecSlots = new byte[fecCapacity][SLOT_SIZE];
+        fecViews = new ByteBuffer[fecCapacity];
+        for (int i = 0; i < fecCapacity; i++)
+            fecViews[i] = ByteBuffer.wrap(fecSlots[i]);
+        fecBases = new long[fecCapacity];
+        fecOffsets = new int[fecCapacity];
+        fecCounts = new int[fecCapacity];
+        fecLengthRecovery = new int[fecCapacity];
+        fecPayloadOffsets = new int[fecCapacity];
+        fecLengths = new int[fecCapacity];
+        fecSpare = new byte[SLOT_SIZE];
+        fecSpareView = ByteBuffer.wrap(fecSpare);
+
+        reset();
+    }
+
+    void reset()
+    {
+        Arrays.fill(sequences, -1);
+        Arrays.fill(fecCounts, 0);
+        next = -1;
+        highest = -1;
+        gapSince = -1;
+        Arrays.fill(outside, 0);
+        Arrays.fill(activeAt, -1);
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * @return 用于接收媒体包的备用缓冲区（已清空），接收后调用{@link #acceptMedia(int, long)}。
+     */
+    ByteBuffer mediaSpare()
+    {
+        return spareView.clear();
+    }
+
+    /**
+     * @return 用于接收FEC包的备用缓冲区（已清空），接收后调用{@link #acceptFec()}。
+     */
+    ByteBuffer fecSpare()
+    {
+        return fecSpareView.clear();
+    }
+
+    /**
+     * 放置刚接收到备用缓冲区中的媒体包（缓冲区的position为报文长度）。
+     * <p>
+     * 重复的包（例如2022-7双路输入中另一路已经收到的包）与序号早于交付位置的包只计数，不放置。
+     *
+     * @param leg 输入路（0或1）
+     * @param now 当前时刻（纳秒）
+     * @return 包的扩展序号，不是有效的RTP包时返回-1
+     */
+    long acceptMedia(int leg, long now)
+    {
+        int length = spareView.position();
+        int headerLength = headerLength(spare, length);
+        if (headerLength < 0)
+            return -1; // 不是有效的RTP包
+
+        int padding = ((spare[0] & 0x20) != 0) ? (spare[length - 1] & 0xFF) : 0;
+        int payloadLength = length - headerLength - padding;
+        if (payloadLength < 0)
+            return -1;
+
+        long sequence = extend((spare[2] & 0xFF) << 8 | (spare[3] & 0xFF));
+        received++;
+
+        if (next < 0)
+        {
+            next = sequence;
+            highest = sequence;
+        } else if (sequence - next >= capacity())
+        {
+            restart(sequence); // 向前跳出缓存范围（发送端重启或长时间中断）
+        } else if (next - sequence > capacity())
+        {
+            // 远远落后：另一路正常时是时延差过大的一路，只丢弃；否则连续多个包如此才视为序号回退。
+            if (++outside[leg] < RESYNC_COUNT || isActive(1 - leg, now))
+            {
+                late++;
+                return sequence;
+            }
+            restart(sequence);
+        }
+        outside[leg] = 0;
+        activeAt[leg] = now;
+
+        int index = (int) (sequence & mask);
+        if (sequences[index] == sequence)
+        {
+            duplicates++;
+            return sequence;
+        }
+        if (sequence < next || sequences[index] > sequence)
+        {
+            late++; // 已交付或已判定丢失，或者槽已被更新的包占用
+            return sequence;
+        }
+        if (sequence < highest)
+            reordered++;
+        if (sequence > highest)
+            highest = sequence;
+
+        // 交换备用槽与目标槽
+        byte[] data = slots[index];
+        ByteBuffer view = views[index];
+        slots[index] = spare;
+        views[index] = spareView;
+        spare = data;
+        spareView = view;
+
+        sequences[index] = sequence;
+        lengths[index] = length;
+        payloadOffsets[index] = headerLength;
+        payloadLengths[index] = payloadLength;
+        return sequence;
+    }
+
+    private boolean isActive(int leg, long now)
+    {
+        return activeAt[leg] >= 0 && now - activeAt[leg] < LEG_IDLE_NANOS;
+    }
+
+    /**
+     * 从指定序号重新开始，尚未交付的包作废。
+     */
+    private void restart(long sequence)
+    {
+        lost += Math.max(0, highest - next + 1);
+        Arrays.fill(sequences, -1);
+        Arrays.fill(outside, 0);
+        next = sequence;
+        highest = sequence;
+        gapSince = -1;
+    }
+
+    /**
+     * 放置刚接收到备用缓冲区中的FEC包（缓冲区的position为报文长度）。
+     */
+    void acceptFec()
+    {
+        int length = fecSpareView.position();
+        int headerLength = headerLength(fecSpare, length);
+        if (headerLength < 0 || length < headerLength + FEC_HEADER_SIZE || next < 0)
+            return;
+
+        int h = headerLength;
+        int base = (fecSpare[h] & 0xFF) << 8 | (fecSpare[h + 1] & 0xFF);
+        int offset = fecSpare[h + 13] & 0xFF;
+        int count = fecSpare[h + 14] & 0xFF;
+        if (offset == 0 || count == 0)
+            return;
+
+        int slot = fecNext;
+        fecNext = (fecNext + 1) % fecSlots.length;
+
+        byte[] data = fecSlots[slot];
+        ByteBuffer view = fecViews[slot];
+        fecSlots[slot] = fecSpare;
+        fecViews[slot] = fecSpareView;
+        fecSpare = data;
+        fecSpareView = view;
+
+        fecBases[slot] = extend(base);
+        fecOffsets[slot] = offset;
+        fecCounts[slot] = count;
+        fecLengthRecovery[slot] = (fecSlots[slot][h + 2] & 0xFF) << 8 | (fecSlots[slot][h + 3] & 0xFF);
+        fecLengths[slot] = length;
+        fecPayloadOffsets[slot] = headerLength + FEC_HEADER_SIZE;
+    }
+
+    /**
+     * 取下一个可交付的包。
+     *
+     * @param now 当前时刻（纳秒）
+     * @param jitterNanos 抖动窗口，缺包等待超过此时长后判定丢失
+     * @return 槽索引，暂无可交付的包时返回-1
+     */
+    int poll(long now, long jitterNanos)
+    {
+        while (next >= 0)
+        {
+            int index = (int) (next & mask);
+            if (sequences[index] == next)
+            {
+                gapSince = -1;
+                return index;
+            }
+            if (highest < next)
+                return -1; // 后续数据尚未到达
+
+            if (recover(next, 2))
+            {
+                recovered++;
+                gapSince = -1;
+                return index;
+            }
+
+            if (gapSince < 0)
+                gapSince = now;
+            if (now - gapSince < jitterNanos && highest - next < capacity() / 2)
+                return -1;
+
+            lost++;
+            next++;
+            gapSince = -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return 距离当前缺包判定丢失的时长（纳秒），没有缺包时返回-1
+     */
+    long gapRemaining(long now, long jitterNanos)
+    {
+        return (gapSince < 0) ? -1 : Math.max(0, jitterNanos - (now - gapSince));
+    }
+
+    /**
+     * 交付完成，前进到下一个包。
+     */
+    void release()
+    {
+        next++;
+    }
+
+    byte[] data(int index)
+    {
+        return slots[index];
+    }
+
+    int payloadOffset(int index)
+    {
+        return payloadOffsets[index];
+    }
+
+    int payloadLength(int index)
+    {
+        return payloadLengths[index];
+    }
+
+    long received()
+    {
+        return received;
+    }
+
+    long duplicates()
+    {
+        return duplicates;
+    }
+
+    long late()
+    {
+        return late;
+    }
+
+    long reordered()
+    {
+        return reordered;
+    }
+
+    long recovered()
+    {
+        return recovered;
+    }
+
+    long lost()
+    {
+        return lost;
+    }
+
+    private boolean present(long sequence)
+    {
+        return sequences[(int) (sequence & mask)] == sequence;
+    }
+
+    /**
+     * 用FEC恢复指定的包。受保护的包中另有一个缺失时，先尝试递归恢复那一个（最多depth层）。
+     */
+    private boolean recover(long sequence, int depth)
+    {
+        for (int f = 0; f < fecSlots.length; f++)
+        {
+            int count = fecCounts[f];
+            if (count == 0)
+                continue;
+
+            long base = fecBases[f];
+            int offset = fecOffsets[f];
+            long distance = sequence - base;
+            if (distance < 0 || distance % offset != 0 || distance / offset >= count)
+                continue;
+
+            // 受保护的包都在缓存范围内，才能恢复。
+            if (highest - base >= capacity())
+                continue;
+
+            long missing = -1;
+            boolean recoverable = true;
+            for (int j = 0; j < count; j++)
+            {
+                long s = base + (long) j * offset;
+                if (s == sequence || present(s))
+                    continue;
+                if (missing >= 0)
+                {
+                    recoverable = false;
+                    break;
+                }
+                missing = s;
+            }
+            if (!recoverable)
+                continue;
+            if (missing >= 0 && (depth <= 1 || !recover(missing, depth - 1)))
+                continue;
+
+            rebuild(sequence, f);
+            return true;
+        }
+        return false;
+    }
+
+    private void rebuild(long sequence, int f)
+    {
+        int index = (int) (sequence & mask);
+        byte[] target = slots[index];
+        byte[] fec = fecSlots[f];
+        int fecPayload = fecPayloadOffsets[f];
+        int span = Math.min(fecLengths[f] - fecPayload, SLOT_SIZE - RTP_HEADER_SIZE);
+
+        // 固定头中只恢复版本号与序号，载荷类型等字段对交付没有影响。
+        target[0] = (byte) 0x80;
+        target[1] = 33; // MP2T
+        target[2] = (byte) (sequence >>> 8);
+        target[3] = (byte) sequence;
+        System.arraycopy(fec, fecPayload, target, RTP_HEADER_SIZE, span);
+
+        long base = fecBases[f];
+        int offset = fecOffsets[f];
+        int length = fecLengthRecovery[f];
+        for (int j = 0; j < fecCounts[f]; j++)
+        {
+            long s = base + (long) j * offset;
+            if (s == sequence)
+                continue;
+            int i = (int) (s & mask);
+            length ^= lengths[i] - RTP_HEADER_SIZE;
+            xor(slots[i], RTP_HEADER_SIZE, target, RTP_HEADER_SIZE, Math.min(span, lengths[i] - RTP_HEADER_SIZE));
+        }
+
+        length = Math.max(0, Math.min(length, span));
+        sequences[index] = sequence;
+        lengths[index] = RTP_HEADER_SIZE + length;
+        payloadOffsets[index] = RTP_HEADER_SIZE;
+        payloadLengths[index] = length;
+    }
+
+    private static void xor(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+    {
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+        {
+            long v = (long) LONGS.get(src, srcOffset + i) ^ (long) LONGS.get(dst, dstOffset + i);
+            LONGS.set(dst, dstOffset + i, v);
+        }
+        for (; i < length; i++)
+            dst[dstOffset + i] ^= src[srcOffset + i];
+    }
+
+    /**
+     * 把16位序号扩展为不回绕的序号（以已收到的最大序号为参照）。
+     */
+    private long extend(int sequence)
+    {
+        if (highest < 0)
+            return sequence;
+        long delta = (short) (sequence - (int) (highest & 0xFFFF));
+        return Math.max(0, highest + delta);
+    }
+
+    /**
+     * @return RTP头长度（包括CSRC与扩展头），不是有效的RTP包时返回-1
+     */
+    private static int headerLength(byte[] packet, int length)
+    {
+        if (length < RTP_HEADER_SIZE || (packet[0] & 0xC0) != 0x80)
+            return -1;
+
+        int headerLength = RTP_HEADER_SIZE + (packet[0] & 0x0F) * 4;
+        if ((packet[0] & 0x10) != 0)
+        {
+            if (length < headerLength + 4)
+                return -1;
+            headerLength += 4 + ((packet[headerLength + 2] & 0xFF) << 8 | (packet[headerLength + 3] & 0xFF)) * 4;
+        }
+        return (headerLength > length) ? -1 : headerLength;
+    }
+}
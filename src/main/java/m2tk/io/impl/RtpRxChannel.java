@@ -0,0 +1,581 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.RxChannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * RTP组播输入通道（RFC 2250，MP2T载荷）。
+ * <p>
+ * 去掉RTP头后按序号交付载荷；乱序到达的包在重排缓存中等待，缺包在抖动窗口内等待迟到的包或FEC恢复。
+ * 开启FEC时同时接收端口+2（列FEC）与端口+4（行FEC）上的SMPTE 2022-1 FEC包。
+ * <p>
+ * 指定第二路输入时按SMPTE 2022-7方式无缝合并：两路报文进入同一个重排缓存，按RTP序号去重，
+ * 任何一路的丢包只要另一路收到就不影响输出，附加延迟不超过抖动窗口。两路各自统计接收与丢包数。
+ * <p>
+ * 所有报文都接收到重排缓存的预分配槽中，接收与恢复过程不分配内存。
+ */
+final class RtpRxChannel implements RxChannel
+{
+    static final int DEFAULT_JITTER = 50; // ms
+    static final int DEFAULT_SKEW = 150; // ms，双路输入时两路之间允许的时延差
+    static final int DEFAULT_MAX_RATE = 100; // Mbit/s，用于按时长估算重排缓存的包数
+    private static final int REORDER_SLOTS = 1024;
+    private static final int MAX_REORDER_SLOTS = 16384; // 远小于16位序号空间的一半，保证序号扩展不出错
+    private static final int FEC_SLOTS = 64;
+    private static final int SYNC_COUNT = 5;
+    private final DatagramSync sync = new DatagramSync(SYNC_COUNT);
+
+    private final String uri;
+    private final DatagramChannel media;
+    private final DatagramChannel columnFec;
+    private final DatagramChannel rowFec;
+    private final MembershipKey membership;
+    private final DatagramChannel media2;
+    private final MembershipKey membership2;
+    private final long[] legReceived = new long[2];
+    private final long[] legHighest = {-1, -1};
+    private final long[] legLost = new long[2];
+    private final Selector selector;
+    private final RtpReorderBuffer buffer;
+    private final PacketReader packetReader = new PacketReader(dst -> read(dst, false));
+    private final StatsCounters stats = new StatsCounters(packetReader::packetSize);
+    private final int skew;
+    private int timeout;
+    private int jitter;
+
+    // 当前正在读取的包
+    private int current;
+    private int currentOffset;
+    private int currentEnd;
+
+    RtpRxChannel(InetAddress group, int port, InetAddress source, String nifName, boolean fec, int jitter) throws IOException
+    {
+        this(group, port, source, nifName, fec, jitter, null, 0, null, null, 0, DEFAULT_MAX_RATE);
+    }
+
+    /**
+     * @param group2 第二路组播地址，为null时只接收一路
+     * @param port2 第二路端口
+     * @param source2 第二路源地址（SSM），可以为null
+     * @param nifName2 第二路网络接口，可以为null
+     * @param skew 两路之间允许的时延差（毫秒），只接收一路时为0。缺包等待时长为抖动窗口加时延差，保证落后的一路有机会补上
+     * @param maxRate 输入的最大码率（Mbit/s），与抖动窗口、时延差一起决定重排缓存的大小
+     */
+    RtpRxChannel(InetAddress group, int port, InetAddress source, String nifName, boolean fec, int jitter,
+                 InetAddress group2, int port2, InetAddress source2, String nifName2, int skew, int maxRate) throws IOException
+    {
+        uri = "rtp://" + group.getHostAddress() + ":" + port;
+        timeout = 30000; // 30s
+        this.jitter = jitter;
+        this.skew = skew;
+
+        Selector s = Selector.open();
+        DatagramChannel m = null;
+        DatagramChannel col = null;
+        DatagramChannel row = null;
+        DatagramChannel m2 = null;
+        try
+        {
+            m = DatagramChannel.open(StandardProtocolFamily.INET);
+            membership = join(m, group, port, source, nifName, 10 * 1024 * 1024);
+            if (fec)
+            {
+                col = DatagramChannel.open(StandardProtocolFamily.INET);
+                join(col, group, port + 2, source, membership.networkInterface().getName(), 2 * 1024 * 1024);
+                row = DatagramChannel.open(StandardProtocolFamily.INET);
+                join(row, group, port + 4, source, membership.networkInterface().getName(), 2 * 1024 * 1024);
+            }
+            if (group2 != null)
+            {
+                m2 = DatagramChannel.open(StandardProtocolFamily.INET);
+                membership2 = join(m2, group2, port2, source2, nifName2, 10 * 1024 * 1024);
+                m2.register(s, SelectionKey.OP_READ);
+            } else
+            {
+                membership2 = null;
+            }
+
+            m.register(s, SelectionKey.OP_READ);
+            if (col != null)
+                col.register(s, SelectionKey.OP_READ);
+            if (row != null)
+                row.register(s, SelectionKey.OP_READ);
+        } catch (IOException | RuntimeException ex)
+        {
+            closeQuietly(m, ex);
+            closeQuietly(col, ex);
+            closeQuietly(row, ex);
+            closeQuietly(m2, ex);
+            closeQuietly(s, ex);
+            throw ex;
+        }
+
+        media = m;
+        columnFec = col;
+        rowFec = row;
+        media2 = m2;
+        selector = s;
+
+        System.out.printf("Join multicast group[%s] with NIF[%s]%s.%n", uri,
+                          membership.networkInterface().getDisplayName(), fec ? " (FEC)" : "");
+        if (membership2 != null)
+            System.out.printf("Join multicast group[rtp://%s:%d] with NIF[%s] as second leg.%n", group2.getHostAddress(), port2,
+                              membership2.networkInterface().getDisplayName());
+
+        buffer = new RtpReorderBuffer(reorderSlots(skew + jitter, maxRate), FEC_SLOTS);
+        current = -1;
+    }
+
+    /**
+     * 按时长估算重排缓存的包数：以每包7个TS包计，留出一倍余量（缓存超过一半未交付时即判定丢包）。
+     */
+    static int reorderSlots(int millis, int maxRate)
+    {
+        long packetsPerSecond = maxRate * 1000_000L / 8 / (7 * 188);
+        long slots = 2 * (packetsPerSecond * millis / 1000 + 1);
+        return (int) Math.min(MAX_REORDER_SLOTS, Math.max(REORDER_SLOTS, slots));
+    }
+
+    private static MembershipKey join(DatagramChannel channel, InetAddress group, int port, InetAddress source,
+                                      String nifName, int receiveBufferSize) throws IOException
+    {
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        channel.bind(new InetSocketAddress(port));
+
+        for (NetworkInterface nif : NetworkInterfaces.multicastCandidates(nifName))
+        {
+            try
+            {
+                MembershipKey key = (source == null) ? channel.join(group, nif) : channel.join(group, nif, source);
+                channel.configureBlocking(false);
+                return key;
+            } catch (IOException ex)
+            {
+                System.err.printf("Can not join multicast group with NIF[%s], pass.%n", nif.getDisplayName());
+            }
+        }
+        throw new IllegalArgumentException("没有可用的网络接口");
+    }
+
+    private static void closeQuietly(Closeable closeable, Exception cause)
+    {
+        if (closeable == null)
+            return;
+        try
+        {
+            closeable.close();
+        } catch (IOException ex)
+        {
+            cause.addSuppressed(ex);
+        }
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "source name".equals(property) ||
+               "timeout".equals(property) ||
+               "nif".equals(property) ||
+               "source address".equals(property) ||
+               "engine".equals(property) ||
+               "jitter".equals(property) ||
+               "fec".equals(property) ||
+               "skew".equals(property) ||
+               "reorder slots".equals(property) ||
+               "rtp received".equals(property) ||
+               "rtp reordered".equals(property) ||
+               "rtp duplicates".equals(property) ||
+               "rtp late".equals(property) ||
+               "rtp recovered".equals(property) ||
+               "rtp lost".equals(property) ||
+               "leg2".equals(property) ||
+               "leg1 received".equals(property) ||
+               "leg1 lost".equals(property) ||
+               "leg2 received".equals(property) ||
+               "leg2 lost".equals(property) ||
+               "packet size".equals(property) ||
+               "convert".equals(property) ||
+               "sync losses".equals(property) ||
+               "pidFilter".equals(property) ||
+               "pidFilter.drops".equals(property) ||
+               "skipped bytes".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"source name", "timeout", "nif", "source address", "engine", "jitter", "fec", "skew",
+                                                    "reorder slots", "rtp received", "rtp reordered", "rtp duplicates", "rtp late",
+                                                    "rtp recovered", "rtp lost",
+                                                    "leg2", "leg1 received", "leg1 lost", "leg2 received", "leg2 lost",
+                                                    "packet size", "convert", "sync losses", "skipped bytes", "pidFilter", "pidFilter.drops"},
+                                       StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("source name".equals(property))
+            return uri;
+        if ("timeout".equals(property))
+            return timeout;
+        if ("nif".equals(property))
+            return membership.networkInterface().getDisplayName();
+        if ("source address".equals(property))
+            return (membership.sourceAddress() == null) ? null : membership.sourceAddress().getHostAddress();
+        if ("engine".equals(property))
+            return "rtp";
+        if ("jitter".equals(property))
+            return jitter;
+        if ("fec".equals(property))
+            return columnFec != null;
+        if ("skew".equals(property))
+            return skew;
+        if ("reorder slots".equals(property))
+            return buffer.capacity();
+        if ("rtp received".equals(property))
+            return buffer.received();
+        if ("rtp reordered".equals(property))
+            return buffer.reordered();
+        if ("rtp duplicates".equals(property))
+            return buffer.duplicates();
+        if ("rtp late".equals(property))
+            return buffer.late();
+        if ("rtp recovered".equals(property))
+            return buffer.recovered();
+        if ("rtp lost".equals(property))
+            return buffer.lost();
+        if ("leg2".equals(property))
+            return (membership2 == null) ? null : "rtp://" + membership2.group().getHostAddress() + ":" + ((InetSocketAddress) media2.socket().getLocalSocketAddress()).getPort();
+        if ("leg1 received".equals(property))
+            return legReceived[0];
+        if ("leg1 lost".equals(property))
+            return legLost[0];
+        if ("leg2 received".equals(property))
+            return legReceived[1];
+        if ("leg2 lost".equals(property))
+            return legLost[1];
+        if ("packet size".equals(property))
+            return packetReader.packetSize();
+        if ("convert".equals(property))
+            return packetReader.isConvert();
+        if ("pidFilter".equals(property))
+            return packetReader.filter().selected();
+        if ("pidFilter.drops".equals(property))
+            return packetReader.filter().drops();
+        if ("sync losses".equals(property))
+            return packetReader.syncLosses();
+        if ("skipped bytes".equals(property))
+            return packetReader.skippedBytes();
+        return stats.query(property, buffer.lost());
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return "timeout".equals(command) || "jitter".equals(command) || "sync".equals(command) ||
+               "packet size".equals(command) || "convert".equals(command) || "pidFilter".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"timeout", "jitter", "sync", "packet size", "convert", "pidFilter"}, StatsCounters.RESET_COMMAND);
+    }
+
+    @Override
+    public void control(String command, Object... arguments) throws IOException
+    {
+        if ("timeout".equals(command))
+            timeout = parseMillis(arguments, "无效超时：");
+        if ("jitter".equals(command))
+            jitter = parseMillis(arguments, "无效的抖动窗口：");
+        if ("sync".equals(command))
+        {
+            packetReader.reset();
+            doSync();
+        }
+        if ("packet size".equals(command))
+            packetReader.setPacketSize(PacketFormat.parse(arguments, true));
+        if ("convert".equals(command))
+            doSetConvert(arguments);
+        if ("pidFilter".equals(command))
+            packetReader.filter().set(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(buffer.lost());
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (offset < 0 || buffer.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        return read(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return read(dst, true);
+    }
+
+    /**
+     * @param fill 是否读满dst；为false时只等待第一个报文，之后只读取已经到达的数据（按包读取时使用，
+     *             避免低码率输入为凑满缓冲区而长时间等待）。
+     */
+    private int read(ByteBuffer dst, boolean fill) throws IOException
+    {
+        if (!media.isOpen())
+            throw new IOException("通道已关闭");
+
+        int received = 0;
+        while (dst.hasRemaining())
+        {
+            if (current < 0 && !next(fill || received == 0))
+                break;
+
+            int count = Math.min(dst.remaining(), currentEnd - currentOffset);
+            dst.put(buffer.data(current), currentOffset, count);
+            currentOffset += count;
+            received += count;
+            if (currentOffset == currentEnd)
+            {
+                buffer.release();
+                current = -1;
+            }
+        }
+
+        stats.transfer(received);
+        return received;
+    }
+
+    @Override
+    public int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (!media.isOpen())
+            throw new IOException("通道已关闭");
+
+        return packetReader.readPackets(dst, maxPackets);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (media.isOpen())
+        {
+            membership.drop();
+            media.close();
+            if (media2 != null)
+            {
+                membership2.drop();
+                media2.close();
+            }
+            if (columnFec != null)
+                columnFec.close();
+            if (rowFec != null)
+                rowFec.close();
+            selector.close();
+        }
+    }
+
+    /**
+     * 取下一个可交付的包，设为当前包。
+     *
+     * @param block 暂无可交付的包时是否等待
+     * @return 是否取到，等待时总是返回true（超时抛出异常）
+     */
+    private boolean next(boolean block) throws IOException
+    {
+        long start = System.nanoTime();
+        long lossNanos = (jitter + skew) * 1000_000L; // 双路时领先的一路缺包，要等落后的一路（最多落后skew）也错过才判定丢失
+        while (true)
+        {
+            long now = System.nanoTime();
+            int index = buffer.poll(now, lossNanos);
+            if (index < 0 && receiveAll() > 0)
+                index = buffer.poll(now = System.nanoTime(), lossNanos);
+            if (index >= 0)
+            {
+                current = index;
+                currentOffset = buffer.payloadOffset(index);
+                currentEnd = currentOffset + buffer.payloadLength(index);
+                if (currentOffset == currentEnd)
+                {
+                    buffer.release(); // 空载荷
+                    current = -1;
+                    continue;
+                }
+                return true;
+            }
+            if (!block)
+                return false;
+
+            // 等待报文到达，或者缺包等待到期。
+            long wait = (timeout > 0) ? timeout * 1000_000L - (now - start) : Long.MAX_VALUE;
+            if (wait <= 0)
+                throw new SocketTimeoutException("接收超时");
+            long gap = buffer.gapRemaining(now, lossNanos);
+            if (gap >= 0)
+                wait = Math.min(wait, gap);
+
+            long millis = Math.max(1, (wait + 999_999) / 1000_000);
+            selector.select((wait == Long.MAX_VALUE) ? 0 : millis);
+            selector.selectedKeys().clear();
+            stats.blocked(System.nanoTime() - now);
+
+            if (!media.isOpen())
+                throw new IOException("通道已关闭");
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException("接收被中断");
+        }
+    }
+
+    /**
+     * 非阻塞地接收所有已到达的报文。
+     *
+     * @return 接收到的报文数
+     */
+    private int receiveAll() throws IOException
+    {
+        int count = 0;
+        if (columnFec != null)
+        {
+            // 先收FEC，恢复时可用的FEC越多越好。
+            while (columnFec.receive(buffer.fecSpare()) != null)
+                buffer.acceptFec();
+            while (rowFec.receive(buffer.fecSpare()) != null)
+                buffer.acceptFec();
+        }
+        long now = System.nanoTime();
+        while (media.receive(buffer.mediaSpare()) != null)
+        {
+            countLeg(0, buffer.acceptMedia(0, now));
+            count++;
+        }
+        if (media2 != null)
+        {
+            while (media2.receive(buffer.mediaSpare()) != null)
+            {
+                countLeg(1, buffer.acceptMedia(1, now));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 统计单路的接收与丢包数：序号向前跳跃时记为丢包，迟到的包到达后抵消。
+     */
+    private void countLeg(int leg, long sequence)
+    {
+        if (sequence < 0)
+            return;
+
+        legReceived[leg]++;
+        long highest = legHighest[leg];
+        if (highest < 0 || sequence - highest > buffer.capacity())
+        {
+            legHighest[leg] = sequence;
+            return;
+        }
+        if (sequence > highest)
+        {
+            legLost[leg] += sequence - highest - 1;
+            legHighest[leg] = sequence;
+        } else if (legLost[leg] > 0)
+        {
+            legLost[leg]--;
+        }
+    }
+
+    private void doSync() throws IOException
+    {
+        if (!media.isOpen())
+            throw new IOException("通道已关闭");
+
+        // 在当前包的剩余载荷中查找同步位置（需要时识别包长度），找不到（或小载荷尚未确认足够的包）则丢弃该包，继续下一个。
+        sync.reset();
+        while (true)
+        {
+            if (current < 0)
+                next(true);
+
+            ByteBuffer payload = ByteBuffer.wrap(buffer.data(current));
+            int packetSize = packetReader.isAutoDetect()
+                             ? PacketFormat.detect(payload, currentOffset, currentEnd, SYNC_COUNT)
+                             : packetReader.packetSize();
+            if (packetSize == 0)
+                packetSize = DatagramSync.tiledSize(payload, currentOffset, currentEnd); // 载荷不足SYNC_COUNT个包
+            int found = (packetSize == 0) ? -1 : sync.locate(payload, currentOffset, currentEnd, packetSize);
+            if (found >= 0)
+            {
+                packetReader.detected(packetSize);
+                currentOffset = found;
+                return;
+            }
+            buffer.release();
+            current = -1;
+        }
+    }
+
+    private static int parseMillis(Object[] arguments, String message)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value < 0)
+            throw new IllegalArgumentException(message + arg);
+        return value;
+    }
+
+    private void doSetConvert(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            packetReader.setConvert((boolean) arg);
+        else if (arg instanceof String)
+            packetReader.setConvert(Boolean.parseBoolean((String) arg));
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
+}
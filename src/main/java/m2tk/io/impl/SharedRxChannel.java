@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.RxChannel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 共享输入源的订阅者视图，每个订阅者有独立的读位置。
+ * <p>
+ * 订阅者只能读到订阅之后接收的数据。读取时只等待第一个数据块，之后只读取已经到达的数据。
+ * 未识别的属性转交底层通道查询。
+ */
+final class SharedRxChannel implements RxChannel
+{
+    static final String POLICY_DROP = "drop";
+    static final String POLICY_BLOCK = "block";
+    static final String POLICY_DISCONNECT = "disconnect";
+
+    private static final long SPIN_NANOS = 20_000L;
+    private static final int SYNC_COUNT = 5; // 连续5个包都以同步字节开头才算同步成功
+
+    private final SharedRxSource source;
+    private final String policy;
+    private final PacketReader packetReader = new PacketReader(this::read);
+    private final StatsCounters stats = new StatsCounters(packetReader::packetSize);
+    private volatile long cursor;
+    private volatile Thread waiter;
+    private volatile boolean disconnected;
+    private volatile long dropped; // 只由读者线程改写
+    private int chunkOffset;
+    private int timeout;
+    private boolean closed;
+
+    SharedRxChannel(SharedRxSource source, String policy, long cursor)
+    {
+        this.source = source;
+        this.policy = policy;
+        this.cursor = cursor;
+        timeout = 30000; // 30s
+        chunkOffset = 0;
+        closed = false;
+    }
+
+    static boolean isPolicy(String policy)
+    {
+        return POLICY_DROP.equals(policy) || POLICY_BLOCK.equals(policy) || POLICY_DISCONNECT.equals(policy);
+    }
+
+    long cursor()
+    {
+        return cursor;
+    }
+
+    String policy()
+    {
+        return policy;
+    }
+
+    void disconnect()
+    {
+        disconnected = true;
+        wakeUp();
+    }
+
+    void wakeUp()
+    {
+        Thread t = waiter;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "policy".equals(property) ||
+               "lag".equals(property) ||
+               "lag bytes".equals(property) ||
+               "dropped".equals(property) ||
+               "disconnected".equals(property) ||
+               "subscribers".equals(property) ||
+               "backlog".equals(property) ||
+               "timeout".equals(property) ||
+               "packet size".equals(property) ||
+               "convert".equals(property) ||
+               "sync losses".equals(property) ||
+               "skipped bytes".equals(property) ||
+               "pidFilter".equals(property) ||
+               "pidFilter.drops".equals(property) ||
+               StatsCounters.isProperty(property) ||
+               source.upstream().hasProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        String[] own = StatsCounters.withStats(new String[]{"policy", "lag", "lag bytes", "dropped", "disconnected",
+                                                            "subscribers", "backlog", "timeout", "packet size", "convert",
+                                                            "sync losses", "skipped bytes", "pidFilter", "pidFilter.drops"},
+                                               StatsCounters.PROPERTIES);
+        String[] upstream = source.upstream().getPropertyList();
+        String[] all = new String[own.length + upstream.length];
+        System.arraycopy(own, 0, all, 0, own.length);
+        System.arraycopy(upstream, 0, all, own.length, upstream.length);
+        return all;
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("policy".equals(property))
+            return policy;
+        if ("lag".equals(property))
+            return source.published() - cursor; // 尚未读取的数据块数
+        if ("lag bytes".equals(property))
+            return (source.published() - cursor) * SharedRxSource.CHUNK_SIZE - chunkOffset; // 按数据块的最大长度估算
+        if ("dropped".equals(property))
+            return dropped;
+        if ("disconnected".equals(property))
+            return disconnected;
+        if ("subscribers".equals(property))
+            return source.subscriberCount();
+        if ("backlog".equals(property))
+            return source.capacity();
+        if ("timeout".equals(property))
+            return timeout;
+        if ("packet size".equals(property))
+            return packetReader.packetSize();
+        if ("convert".equals(property))
+            return packetReader.isConvert();
+        if ("sync losses".equals(property))
+            return packetReader.syncLosses();
+        if ("skipped bytes".equals(property))
+            return packetReader.skippedBytes();
+        if ("pidFilter".equals(property))
+            return packetReader.filter().selected();
+        if ("pidFilter.drops".equals(property))
+            return packetReader.filter().drops();
+        if (StatsCounters.isProperty(property))
+            return stats.query(property, dropped);
+        return source.upstream().query(property);
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return "timeout".equals(command) || "sync".equals(command) ||
+               "packet size".equals(command) || "convert".equals(command) || "pidFilter".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"timeout", "sync", "packet size", "convert", "pidFilter"}, StatsCounters.RESET_COMMAND);
+    }
+
+    @Override
+    public void control(String command, Object... arguments) throws IOException
+    {
+        if ("timeout".equals(command))
+            doSetTimeout(arguments);
+        if ("sync".equals(command))
+        {
+            packetReader.reset();
+            doSync();
+        }
+        if ("packet size".equals(command))
+            packetReader.setPacketSize(PacketFormat.parse(arguments, true));
+        if ("convert".equals(command))
+            doSetConvert(arguments);
+        if ("pidFilter".equals(command))
+            packetReader.filter().set(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(dropped);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (offset < 0 || buffer.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        return read(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        // 只等待第一个数据块，之后只读取已经到达的数据。
+        int received = 0;
+        while (dst.hasRemaining())
+        {
+            if (received > 0 && cursor >= source.published())
+                break;
+            if (!awaitChunk())
+                break; // 底层通道数据已读完
+
+            long sequence = cursor;
+            int start = dst.position();
+            int n = source.copy(sequence, chunkOffset, dst);
+            if (!source.isIntact(sequence))
+            {
+                dst.position(start); // 拷贝期间数据块被覆盖，本次拷贝作废。
+                lapped();
+                continue;
+            }
+
+            received += n;
+            chunkOffset += n;
+            if (chunkOffset == source.length(sequence))
+                advance();
+        }
+
+        if (received == 0 && dst.hasRemaining())
+            return -1;
+        stats.transfer(received);
+        return received;
+    }
+
+    @Override
+    public int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        return packetReader.readPackets(dst, maxPackets);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!closed)
+        {
+            closed = true;
+            source.unsubscribe(this);
+        }
+    }
+
+    private void advance()
+    {
+        cursor = cursor + 1;
+        chunkOffset = 0;
+        source.wakeProducer();
+    }
+
+    /**
+     * 读位置已被写者超过一圈：按策略跳到最新位置，或者断开。
+     */
+    private void lapped() throws IOException
+    {
+        if (POLICY_DISCONNECT.equals(policy))
+            disconnected = true;
+        checkDisconnected();
+
+        long latest = source.published();
+        dropped = dropped + (latest - cursor);
+        cursor = latest;
+        chunkOffset = 0;
+        source.wakeProducer();
+    }
+
+    private void checkDisconnected() throws IOException
+    {
+        if (disconnected)
+            throw new IOException("读取速度过慢，已从共享源断开");
+    }
+
+    /**
+     * 等待当前读位置上的数据块。
+     *
+     * @return 是否有数据可读，底层通道数据读完时返回false。
+     */
+    private boolean awaitChunk() throws IOException
+    {
+        long t0 = System.nanoTime();
+        try
+        {
+            long spinDeadline = t0 + SPIN_NANOS;
+            long deadline = t0 + timeout * 1000_000L;
+            while (true)
+            {
+                checkDisconnected();
+                long published = source.published();
+                if (cursor < published)
+                {
+                    if (published - cursor > source.capacity())
+                        lapped();
+                    return true;
+                }
+
+                if (source.failure() != null)
+                    throw source.failure();
+                if (source.isEnded())
+                    return false;
+
+                long now = System.nanoTime();
+                if (now - spinDeadline < 0)
+                {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("接收被中断");
+                if (timeout > 0 && now - deadline >= 0)
+                    throw new SocketTimeoutException("接收超时");
+
+                waiter = Thread.currentThread();
+                if (cursor >= source.published() && source.failure() == null && !source.isEnded() && !disconnected)
+                {
+                    if (timeout > 0)
+                        LockSupport.parkNanos(this, deadline - now);
+                    else
+                        LockSupport.park(this);
+                }
+                waiter = null;
+            }
+        } finally
+        {
+            stats.blocked(System.nanoTime() - t0);
+        }
+    }
+
+    private void doSync() throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        // 在当前数据块的剩余数据中查找同步位置（需要时识别包长度），找不到则丢弃该数据块，继续下一个。
+        ByteBuffer block = ByteBuffer.allocate(SharedRxSource.CHUNK_SIZE);
+        while (awaitChunk())
+        {
+            long sequence = cursor;
+            block.clear();
+            source.copy(sequence, chunkOffset, block);
+            if (!source.isIntact(sequence))
+            {
+                lapped();
+                continue;
+            }
+
+            int length = block.position();
+            int packetSize = packetReader.isAutoDetect()
+                             ? PacketFormat.detect(block, 0, length, SYNC_COUNT)
+                             : packetReader.packetSize();
+            int count = (packetSize == 0) ? 0 : Math.min(SYNC_COUNT, length / packetSize);
+            int found = (count == 0) ? -1 : PacketFormat.find(block, 0, length, packetSize, count);
+            if (found >= 0)
+            {
+                packetReader.detected(packetSize);
+                chunkOffset += found;
+                return;
+            }
+            advance();
+        }
+    }
+
+    private void doSetTimeout(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value < 0)
+            throw new IllegalArgumentException("无效超时：" + arg);
+        timeout = value;
+    }
+
+    private void doSetConvert(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            packetReader.setConvert((boolean) arg);
+        else if (arg instanceof String)
+            packetReader.setConvert(Boolean.parseBoolean((String) arg));
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.RxChannel;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 共享输入源：一个接收线程从底层通道读取数据，放入共享的环形缓存，多个订阅者各自按自己的读位置读取。
+ * <p>
+ * 环形缓存只有一个写者，读者不加锁：读者直接从缓存槽拷贝数据，拷贝完成后检查该槽是否已被写者占用（类似seqlock），
+ * 被占用则说明读者落后超过一圈，本次拷贝作废。写者在覆盖某个槽之前，按各订阅者的慢速策略处理尚未读取该槽的订阅者：
+ * <ul>
+ *     <li>drop：不等待，订阅者下次读取时跳到最新位置，并记录丢弃的数据块数；</li>
+ *     <li>block：等待该订阅者读完，此时所有订阅者（以及底层通道）都会被拖慢；</li>
+ *     <li>disconnect：断开该订阅者，之后的读取抛出异常。</li>
+ * </ul>
+ * 同一资源的共享源按键值登记，第一个订阅者打开底层通道，最后一个订阅者关闭时关闭底层通道。
+ */
+final class SharedRxSource
+{
+    interface Opener
+    {
+        RxChannel open() throws IOException;
+    }
+
+    static final int DEFAULT_BACKLOG = 1024;
+    static final int CHUNK_SIZE = 188 * 7;
+    private static final Map<String, SharedRxSource> SOURCES = new HashMap<>();
+
+    private final String key;
+    private final RxChannel upstream;
+    private final byte[][] slots;
+    private final ByteBuffer[] views;
+    private final int[] lengths;
+    private final int mask;
+    private final AtomicLong published;
+    private final List<SharedRxChannel> subscribers;
+    private final Thread pump;
+    private volatile long claimed;
+    private volatile Thread producerWaiting;
+    private volatile IOException failure;
+    private volatile boolean ended;
+    private volatile boolean closing;
+    private int references; // 由SOURCES保护
+
+    private SharedRxSource(String key, RxChannel upstream, int backlog)
+    {
+        int capacity = Integer.highestOneBit(Math.max(2, backlog - 1)) << 1;
+        this.key = key;
+        this.upstream = upstream;
+        slots = new byte[capacity][CHUNK_SIZE];
+        views = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++)
+            views[i] = ByteBuffer.wrap(slots[i]);
+        lengths = new int[capacity];
+        mask = capacity - 1;
+        published = new AtomicLong();
+        subscribers = new CopyOnWriteArrayList<>();
+        claimed = -1;
+        pump = new Thread(this::pumpLoop, "m2tk-tee-" + key);
+        pump.setDaemon(true);
+    }
+
+    /**
+     * 订阅共享源，共享源不存在时创建。
+     *
+     * @param key 共享源键值（同一键值共享同一底层通道）
+     * @param backlog 环形缓存长度（数据块数），只在创建共享源时生效
+     * @param policy 慢速策略：drop、block或disconnect
+     * @param opener 打开底层通道
+     */
+    static SharedRxChannel subscribe(String key, int backlog, String policy, Opener opener) throws IOException
+    {
+        synchronized (SOURCES)
+        {
+            SharedRxSource source = SOURCES.get(key);
+            if (source != null)
+                return source.attach(policy);
+        }
+
+        // 在锁外打开底层通道（创建套接字、加入组播组可能很慢），不阻塞其他共享源的订阅与退订。
+        RxChannel upstream = opener.open();
+        SharedRxChannel subscriber;
+        synchronized (SOURCES)
+        {
+            SharedRxSource source = SOURCES.get(key);
+            if (source == null)
+            {
+                source = new SharedRxSource(key, upstream, backlog);
+                SOURCES.put(key, source);
+                source.pump.start();
+                return source.attach(policy);
+            }
+            subscriber = source.attach(policy); // 其他线程已经先打开了同一个共享源，放弃本次打开的底层通道
+        }
+
+        try
+        {
+            upstream.close();
+        } catch (IOException ex)
+        {
+            System.err.printf("Can not close upstream[%s], pass.%n", key);
+        }
+        return subscriber;
+    }
+
+    /**
+     * 登记新的订阅者（由SOURCES保护）。
+     */
+    private SharedRxChannel attach(String policy)
+    {
+        references++;
+        SharedRxChannel subscriber = new SharedRxChannel(this, policy, published.get());
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    void unsubscribe(SharedRxChannel subscriber) throws IOException
+    {
+        subscribers.remove(subscriber);
+        wakeProducer();
+
+        synchronized (SOURCES)
+        {
+            if (--references > 0)
+                return;
+            SOURCES.remove(key);
+        }
+
+        closing = true;
+        upstream.close();
+        pump.interrupt();
+    }
+
+    RxChannel upstream()
+    {
+        return upstream;
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    int subscriberCount()
+    {
+        return subscribers.size();
+    }
+
+    long published()
+    {
+        return published.get();
+    }
+
+    IOException failure()
+    {
+        return failure;
+    }
+
+    boolean isEnded()
+    {
+        return ended;
+    }
+
+    /**
+     * 从指定数据块的offset处拷贝数据。调用者拷贝完成后须用{@link #isIntact(long)}确认数据有效。
+     *
+     * @return 拷贝的字节数
+     */
+    int copy(long sequence, int offset, ByteBuffer dst)
+    {
+        int index = (int) (sequence & mask);
+        int count = Math.min(lengths[index] - offset, dst.remaining());
+        dst.put(slots[index], offset, count);
+        return count;
+    }
+
+    int length(long sequence)
+    {
+        return lengths[(int) (sequence & mask)];
+    }
+
+    /**
+     * 检查指定数据块在读取期间是否未被覆盖。
+     */
+    boolean isIntact(long sequence)
+    {
+        VarHandle.loadLoadFence(); // 先完成数据读取，再读取写者位置。
+        return claimed - sequence < capacity();
+    }
+
+    void wakeProducer()
+    {
+        Thread waiting = producerWaiting;
+        if (waiting != null)
+            LockSupport.unpark(waiting);
+    }
+
+    private void pumpLoop()
+    {
+        long sequence = 0;
+        try
+        {
+            while (!closing)
+            {
+                if (!makeRoom(sequence))
+                    continue;
+
+                int index = (int) (sequence & mask);
+                claimed = sequence;
+                VarHandle.storeStoreFence(); // 先公布占用，再改写数据。
+
+                ByteBuffer view = views[index];
+                view.clear();
+                int n;
+                try
+                {
+                    n = upstream.read(view);
+                } catch (SocketTimeoutException ex)
+                {
+                    n = view.position(); // 超时前已经读到的数据照常交付
+                    if (n == 0)
+                        continue; // 暂时没有数据，继续等待。
+                }
+                if (n < 0)
+                {
+                    ended = true;
+                    break;
+                }
+                if (n == 0)
+                    continue;
+
+                lengths[index] = n;
+                published.set(sequence + 1);
+                sequence++;
+
+                for (SharedRxChannel subscriber : subscribers)
+                    subscriber.wakeUp();
+            }
+        } catch (IOException ex)
+        {
+            if (!closing)
+                failure = ex;
+        } finally
+        {
+            for (SharedRxChannel subscriber : subscribers)
+                subscriber.wakeUp();
+        }
+    }
+
+    /**
+     * 覆盖sequence所在的槽之前，按订阅者的慢速策略处理尚未读完该槽的订阅者。
+     *
+     * @return 是否可以写入，被中断时返回false。
+     */
+    private boolean makeRoom(long sequence)
+    {
+        long overwritten = sequence - capacity();
+        if (overwritten < 0)
+            return true;
+
+        for (SharedRxChannel subscriber : subscribers)
+        {
+            if (subscriber.cursor() > overwritten)
+                continue;
+
+            switch (subscriber.policy())
+            {
+                case SharedRxChannel.POLICY_BLOCK:
+                    producerWaiting = Thread.currentThread();
+                    try
+                    {
+                        while (subscriber.cursor() <= overwritten && subscribers.contains(subscriber))
+                        {
+                            if (closing || Thread.currentThread().isInterrupted())
+                                return false;
+                            LockSupport.parkNanos(this, 100_000L);
+                        }
+                    } finally
+                    {
+                        producerWaiting = null;
+                    }
+                    break;
+                case SharedRxChannel.POLICY_DISCONNECT:
+                    subscriber.disconnect();
+                    break;
+                default:
+                    break; // drop：由订阅者读取时处理
+            }
+        }
+        return true;
+    }
+}
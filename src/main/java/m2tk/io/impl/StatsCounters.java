@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.ChannelStatistics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.IntSupplier;
+
+/**
+ * 通道统计计数器。
+ * <p>
+ * 计数器只由通道的读/写线程更新（单写者），更新时使用opaque访问，不加锁也不插入内存屏障，可以常开。
+ * 其他线程随时可以读取快照；重置时只记录当前值作为基线，不修改计数器本身，因此不会与写线程冲突。
+ * <p>
+ * 包数按通道当前的包长度（188/192/204）由字节数换算。
+ */
+final class StatsCounters
+{
+    static final String[] PROPERTIES = {
+        "stats", "stats.bytes", "stats.packets", "stats.calls", "stats.blocked",
+        "stats.wraps", "stats.drops", "stats.lag"
+    };
+    static final String RESET_COMMAND = "stats.reset";
+
+    private static final VarHandle BYTES;
+    private static final VarHandle CALLS;
+    private static final VarHandle BLOCKED;
+    private static final VarHandle WRAPS;
+    private static final VarHandle DROPS;
+    private static final VarHandle LAG;
+
+    static
+    {
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            BYTES = lookup.findVarHandle(StatsCounters.class, "bytes", long.class);
+            CALLS = lookup.findVarHandle(StatsCounters.class, "calls", long.class);
+            BLOCKED = lookup.findVarHandle(StatsCounters.class, "blockedNanos", long.class);
+            WRAPS = lookup.findVarHandle(StatsCounters.class, "wraps", long.class);
+            DROPS = lookup.findVarHandle(StatsCounters.class, "drops", long.class);
+            LAG = lookup.findVarHandle(StatsCounters.class, "lagNanos", long.class);
+        } catch (ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private long bytes;
+    private long calls;
+    private long blockedNanos;
+    private long wraps;
+    private long drops;
+    private long lagNanos;
+    private final IntSupplier packetSize;
+    private volatile Baseline baseline;
+
+    StatsCounters()
+    {
+        this(() -> PacketFormat.TS_PACKET_SIZE);
+    }
+
+    /**
+     * @param packetSize 通道当前的包长度（读写的原始包长度），用于由字节数换算包数
+     */
+    StatsCounters(IntSupplier packetSize)
+    {
+        this.packetSize = packetSize;
+        baseline = new Baseline(System.nanoTime(), 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * 记录一次read/write调用。
+     *
+     * @param n 本次读取或写入的字节数
+     */
+    void transfer(long n)
+    {
+        CALLS.setOpaque(this, (long) CALLS.getOpaque(this) + 1);
+        if (n > 0)
+            BYTES.setOpaque(this, (long) BYTES.getOpaque(this) + n);
+    }
+
+    void blocked(long nanos)
+    {
+        if (nanos > 0)
+            BLOCKED.setOpaque(this, (long) BLOCKED.getOpaque(this) + nanos);
+    }
+
+    void wrap()
+    {
+        WRAPS.setOpaque(this, (long) WRAPS.getOpaque(this) + 1);
+    }
+
+    void drop(long n)
+    {
+        DROPS.setOpaque(this, (long) DROPS.getOpaque(this) + n);
+    }
+
+    void lag(long nanos)
+    {
+        LAG.setOpaque(this, nanos);
+    }
+
+    /**
+     * 重置统计。
+     *
+     * @param externalDrops 由其他组件（如接收队列）累计的丢弃数
+     */
+    void reset(long externalDrops)
+    {
+        baseline = new Baseline(System.nanoTime(),
+                                (long) BYTES.getOpaque(this),
+                                (long) CALLS.getOpaque(this),
+                                (long) BLOCKED.getOpaque(this),
+                                (long) WRAPS.getOpaque(this),
+                                (long) DROPS.getOpaque(this) + externalDrops);
+    }
+
+    /**
+     * 获取统计快照。
+     *
+     * @param externalDrops 由其他组件（如接收队列）累计的丢弃数，与内部计数合并
+     * @return 统计快照
+     */
+    ChannelStatistics snapshot(long externalDrops)
+    {
+        Baseline base = baseline;
+        long nBytes = (long) BYTES.getOpaque(this) - base.bytes;
+        return new ChannelStatistics(System.nanoTime() - base.time,
+                                     nBytes,
+                                     nBytes / packetSize.getAsInt(),
+                                     (long) CALLS.getOpaque(this) - base.calls,
+                                     (long) BLOCKED.getOpaque(this) - base.blockedNanos,
+                                     (long) WRAPS.getOpaque(this) - base.wraps,
+                                     (long) DROPS.getOpaque(this) + externalDrops - base.drops,
+                                     (long) LAG.getOpaque(this));
+    }
+
+    /**
+     * 查询统计属性。
+     *
+     * @param property 属性名称
+     * @param externalDrops 由其他组件累计的丢弃数
+     * @return 属性值，不是统计属性时返回null
+     */
+    Object query(String property, long externalDrops)
+    {
+        if (!property.startsWith("stats"))
+            return null;
+
+        ChannelStatistics s = snapshot(externalDrops);
+        switch (property)
+        {
+            case "stats":
+                return s;
+            case "stats.bytes":
+                return s.getBytes();
+            case "stats.packets":
+                return s.getPackets();
+            case "stats.calls":
+                return s.getCalls();
+            case "stats.blocked":
+                return s.getBlockedNanos();
+            case "stats.wraps":
+                return s.getWraps();
+            case "stats.drops":
+                return s.getDrops();
+            case "stats.lag":
+                return s.getPacingLagNanos();
+            default:
+                return null;
+        }
+    }
+
+    static boolean isProperty(String property)
+    {
+        for (String p : PROPERTIES)
+        {
+            if (p.equals(property))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 合并通道自身的属性（或指令）列表与统计属性列表。
+     */
+    static String[] withStats(String[] own, String... stats)
+    {
+        String[] all = new String[own.length + stats.length];
+        System.arraycopy(own, 0, all, 0, own.length);
+        System.arraycopy(stats, 0, all, own.length, stats.length);
+        return all;
+    }
+
+    private static final class Baseline
+    {
+        final long time;
+        final long bytes;
+        final long calls;
+        final long blockedNanos;
+        final long wraps;
+        final long drops;
+
+        Baseline(long time, long bytes, long calls, long blockedNanos, long wraps, long drops)
+        {
+            this.time = time;
+            this.bytes = bytes;
+            this.calls = calls;
+            this.blockedNanos = blockedNanos;
+            this.wraps = wraps;
+            this.drops = drops;
+        }
+    }
+}
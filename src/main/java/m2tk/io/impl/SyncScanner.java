@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * TS包同步查找。
+ * <p>
+ * 在一段数据中查找第一个连续若干个包都以同步字节（0x47）开头的位置。查找过程只做绝对位置读取，不分配内存，
+ * 也不改变缓冲区的position和limit，可以直接用于映射区、直接缓冲区或包装后的数组。
+ */
+final class SyncScanner
+{
+    static final int SYNC_BYTE = 0x47;
+
+    private SyncScanner()
+    {
+    }
+
+    /**
+     * 在[from, to)区间内查找同步位置。
+     * <p>
+     * 只要求各包的同步字节落在区间内，调用者需要自行保证区间末尾的包是否完整。
+     *
+     * @param buf 数据缓冲区
+     * @param from 起始位置（绝对索引，包含）
+     * @param to 结束位置（绝对索引，不包含）
+     * @param packetSize 包长度
+     * @param count 要求连续命中同步字节的包数
+     * @return 同步位置（绝对索引），找不到时返回-1
+     */
+    static int find(ByteBuffer buf, int from, int to, int packetSize, int count)
+    {
+        int span = (count - 1) * packetSize;
+        for (int p = from; p + span < to; p++)
+        {
+            if (buf.get(p) != SYNC_BYTE)
+                continue;
+
+            int k = 1;
+            while (k < count && buf.get(p + k * packetSize) == SYNC_BYTE)
+                k++;
+            if (k == count)
+                return p;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * TS文件的时间索引，记录PCR时间与随机访问点（random_access_indicator）所在包的文件位置，用于按时间定位。
+ * <p>
+ * 只跟踪第一个携带PCR的PID：该PID上的随机访问点全部记录，PCR约每秒记录一次。时间从第一个PCR开始累计
+ * （27MHz），PCR回绕时连续累加，不连续（回退或间隔超过1秒）时保持不变。
+ * <p>
+ * 索引可以边录制边生成，也可以在第一次定位时扫描文件生成，保存为同目录下的“文件名.idx”。
+ * 索引文件由定长文件头和依次追加的索引项组成，文件头记录已索引的长度与扫描状态，文件增长后可以接着扫描。
+ * 文件头同时记录最后一个已索引包的位置与校验和，加载时与媒体文件比对，媒体文件被截断重写后原有索引作废。
+ */
+final class TimeIndex
+{
+    static final String SUFFIX = ".idx";
+    static final long CLOCK_RATE = 27_000_000L;
+
+    private static final int MAGIC = 0x4D325449; // "M2TI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 17;
+    private static final long PCR_CYCLE = (1L << 33) * 300;
+    private static final long MAX_PCR_GAP = CLOCK_RATE; // PCR间隔超过1秒视为不连续
+    private static final long SAMPLE_INTERVAL = CLOCK_RATE; // PCR每秒记录一次
+    private static final byte FLAG_RAP = 0x01;
+
+    private final int packetSize;
+    private final int syncOffset;
+    private final byte[] carry = new byte[PacketFormat.MAX_PACKET_SIZE];
+    private final byte[] tail = new byte[PacketFormat.MAX_PACKET_SIZE]; // 最后一个已索引的包，用于校验媒体文件
+    private long[] offsets = new long[1024];
+    private long[] times = new long[1024];
+    private byte[] flags = new byte[1024];
+    private int size;
+    private int saved;
+    private int pcrPid;
+    private long lastPcr;
+    private long time;
+    private long lastSampleTime;
+    private long end;
+    private int carried;
+    private long tailPosition;
+
+    TimeIndex(int packetSize)
+    {
+        this.packetSize = packetSize;
+        this.syncOffset = PacketFormat.syncOffset(packetSize);
+        reset(0);
+    }
+
+    /**
+     * 清空索引，从指定的文件位置重新开始。
+     */
+    void reset(long position)
+    {
+        size = 0;
+        saved = 0;
+        pcrPid = -1;
+        lastPcr = -1;
+        time = 0;
+        lastSampleTime = -SAMPLE_INTERVAL;
+        end = position;
+        carried = 0;
+        tailPosition = -1;
+    }
+
+    int packetSize()
+    {
+        return packetSize;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return 已经索引的文件长度（下一个包的起始位置）
+     */
+    long covered()
+    {
+        return end - carried;
+    }
+
+    /**
+     * @return 索引覆盖的时长（27MHz），没有索引项时返回-1
+     */
+    long duration()
+    {
+        return (size == 0) ? -1 : times[size - 1];
+    }
+
+    /**
+     * 扫描一段文件数据（不改变缓冲区状态）。数据须紧接上次扫描的位置，否则丢弃跨段的半个包。
+     *
+     * @param data 数据，有效区间为[position, limit)
+     * @param position 数据在文件中的起始位置
+     */
+    void scan(ByteBuffer data, long position)
+    {
+        int i = data.position();
+        int limit = data.limit();
+        long base = position - i; // 缓冲区索引0对应的文件位置
+        if (position != end)
+            carried = 0;
+
+        if (carried > 0)
+        {
+            int count = Math.min(packetSize - carried, limit - i);
+            for (int k = 0; k < count; k++)
+                carry[carried + k] = data.get(i + k);
+            carried += count;
+            i += count;
+            if (carried == packetSize)
+            {
+                long packetStart = base + i - packetSize;
+                if (carry[syncOffset] == SyncScanner.SYNC_BYTE)
+                {
+                    inspect(ByteBuffer.wrap(carry), 0, packetStart);
+                    System.arraycopy(carry, 0, tail, 0, packetSize);
+                    tailPosition = packetStart;
+                }
+                carried = 0;
+            }
+        }
+
+        int last = -1;
+        while (limit - i >= packetSize)
+        {
+            if (data.get(i + syncOffset) != SyncScanner.SYNC_BYTE)
+            {
+                i++; // 失步，逐字节查找下一个包
+                continue;
+            }
+            inspect(data, i, base + i);
+            last = i;
+            i += packetSize;
+        }
+        if (last >= 0)
+        {
+            for (int k = 0; k < packetSize; k++)
+                tail[k] = data.get(last + k);
+            tailPosition = base + last;
+        }
+
+        for (int k = i; k < limit; k++)
+            carry[carried++] = data.get(k);
+        end = base + limit;
+    }
+
+    /**
+     * 查找不晚于指定时刻的最后一个随机访问点，没有随机访问点时取不晚于该时刻的最后一个PCR。
+     *
+     * @param target 距离第一个PCR的时间（27MHz）
+     * @return 包的文件位置，没有索引项时返回-1
+     */
+    long seek(long target)
+    {
+        if (size == 0)
+            return -1;
+
+        int lo = 0;
+        int hi = size - 1;
+        if (times[0] > target)
+            return offsets[0];
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (times[mid] <= target)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        for (int k = lo; k >= 0; k--)
+        {
+            if ((flags[k] & FLAG_RAP) != 0)
+                return offsets[k];
+        }
+        return offsets[lo];
+    }
+
+    private void inspect(ByteBuffer buf, int offset, long position)
+    {
+        int p = offset + syncOffset;
+        int pid = ((buf.get(p + 1) & 0x1F) << 8) | (buf.get(p + 2) & 0xFF);
+        if (pcrPid != -1 && pid != pcrPid)
+            return;
+        if ((buf.get(p + 3) & 0x20) == 0 || buf.get(p + 4) == 0)
+            return; // 没有调整字段
+
+        int afFlags = buf.get(p + 5) & 0xFF;
+        long pcr = PcrClock.readPcr(buf, p);
+        if (pcr >= 0)
+        {
+            pcrPid = pid;
+            if (lastPcr >= 0 && (afFlags & 0x80) == 0)
+            {
+                long delta = Math.floorMod(pcr - lastPcr, PCR_CYCLE);
+                if (delta <= MAX_PCR_GAP)
+                    time += delta;
+            }
+            lastPcr = pcr;
+        }
+        if (pcrPid == -1)
+            return; // 第一个PCR之前没有时间
+
+        boolean rap = (afFlags & 0x40) != 0;
+        if (rap || (pcr >= 0 && time - lastSampleTime >= SAMPLE_INTERVAL))
+        {
+            add(position, time, rap ? FLAG_RAP : 0);
+            if (pcr >= 0)
+                lastSampleTime = time;
+        }
+    }
+
+    private void add(long offset, long t, byte flag)
+    {
+        if (size == offsets.length)
+        {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            times = Arrays.copyOf(times, size * 2);
+            flags = Arrays.copyOf(flags, size * 2);
+        }
+        offsets[size] = offset;
+        times[size] = t;
+        flags[size] = flag;
+        size++;
+    }
+
+    /**
+     * 保存索引：索引文件与已保存的部分一致时只追加新的索引项，否则重写。
+     */
+    void save(File file) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            int from = (saved > 0 && raf.length() == HEADER_SIZE + (long) saved * ENTRY_SIZE) ? saved : 0;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((size - from) * ENTRY_SIZE);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int k = from; k < size; k++)
+            {
+                out.writeLong(offsets[k]);
+                out.writeLong(times[k]);
+                out.writeByte(flags[k]);
+            }
+            raf.setLength(HEADER_SIZE + (long) from * ENTRY_SIZE);
+            raf.seek(raf.length());
+            raf.write(bytes.toByteArray());
+
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(packetSize);
+            raf.writeInt(pcrPid);
+            raf.writeLong(lastPcr);
+            raf.writeLong(time);
+            raf.writeLong(lastSampleTime);
+            raf.writeLong(covered());
+            raf.writeLong(tailPosition);
+            raf.writeLong(checksum(tail, packetSize));
+        }
+        saved = size;
+    }
+
+    /**
+     * 读取索引文件。
+     *
+     * @param media 媒体文件（只按位置读取，不改变读位置）
+     * @return 索引，文件不存在、格式不符或与媒体文件不匹配（比媒体文件长，或最后一个已索引的包内容不同）时返回null
+     */
+    static TimeIndex load(File file, FileChannel media)
+    {
+        if (!file.isFile() || file.length() < HEADER_SIZE)
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            int packetSize = in.readInt();
+            if (!PacketFormat.isValid(packetSize))
+                return null;
+
+            TimeIndex index = new TimeIndex(packetSize);
+            index.pcrPid = in.readInt();
+            index.lastPcr = in.readLong();
+            index.time = in.readLong();
+            index.lastSampleTime = in.readLong();
+            index.end = in.readLong();
+            index.tailPosition = in.readLong();
+            long checksum = in.readLong();
+            if (index.end > media.size() || !index.matches(media, checksum))
+                return null; // 媒体文件已被改写
+
+            long count = (file.length() - HEADER_SIZE) / ENTRY_SIZE;
+            for (long k = 0; k < count; k++)
+                index.add(in.readLong(), in.readLong(), in.readByte());
+            index.saved = index.size;
+            return index;
+        } catch (IOException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * 检查媒体文件中最后一个已索引的包与保存索引时是否一致。
+     */
+    private boolean matches(FileChannel media, long checksum) throws IOException
+    {
+        if (tailPosition < 0)
+            return true; // 尚未索引任何包
+
+        ByteBuffer packet = ByteBuffer.wrap(tail, 0, packetSize);
+        while (packet.hasRemaining())
+        {
+            if (media.read(packet, tailPosition + packet.position()) < 0)
+                return false;
+        }
+        return checksum(tail, packetSize) == checksum;
+    }
+
+    private static long checksum(byte[] data, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+}
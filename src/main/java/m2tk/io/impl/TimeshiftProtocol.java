@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.Protocol;
+import m2tk.io.RxChannel;
+import m2tk.io.TxChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * 时移协议：timeshift://name 。
+ * <p>
+ * 输出通道创建时移缓存并录制：timeshift://svc1?size=256&amp;file=/var/tmp/svc1.buf&amp;packet=188
+ * （大小单位为MB，指定文件时使用内存映射文件，packet为包长度188/192/204，默认188）；
+ * 输入通道读取同名缓存：timeshift://svc1?from=live ，from可以是live（直播点）、start（最早的数据）或者回看的秒数。
+ */
+public final class TimeshiftProtocol implements Protocol
+{
+    @Override
+    public String[] getSchemes()
+    {
+        return new String[]{"timeshift"};
+    }
+
+    @Override
+    public boolean accepts(String resource)
+    {
+        try
+        {
+            URI uri = URI.create(resource);
+            return "timeshift".equalsIgnoreCase(uri.getScheme()) && uri.getAuthority() != null;
+        } catch (IllegalArgumentException ex)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public RxChannel openRxChannel(String resource) throws IOException
+    {
+        URI uri = URI.create(resource);
+        UriParameters params = UriParameters.of(uri);
+
+        TimeshiftRxChannel channel = new TimeshiftRxChannel(TimeshiftStore.open(nameOf(uri)));
+        try
+        {
+            String from = params.get("from", "live");
+            if ("start".equals(from))
+                channel.seekOffset(0);
+            else if (!"live".equals(from))
+                channel.seekBack(Long.parseLong(from));
+        } catch (RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    @Override
+    public TxChannel openTxChannel(String resource) throws IOException
+    {
+        URI uri = URI.create(resource);
+        UriParameters params = UriParameters.of(uri);
+
+        int sizeMB = params.getInt("size", TimeshiftStore.DEFAULT_SIZE_MB);
+        if (sizeMB < 1 || sizeMB > TimeshiftStore.MAX_SIZE_MB)
+            throw new IllegalArgumentException("无效的时移缓存大小：" + sizeMB);
+        int packetSize = params.getInt("packet", PacketFormat.TS_PACKET_SIZE);
+        if (!PacketFormat.isValid(packetSize))
+            throw new IllegalArgumentException("无效的包长度：" + packetSize);
+        String path = params.get("file");
+        File backing = (path == null || path.isEmpty()) ? null : new File(path);
+
+        return new TimeshiftTxChannel(TimeshiftStore.create(nameOf(uri), sizeMB * 1024 * 1024, packetSize, backing));
+    }
+
+    private static String nameOf(URI uri)
+    {
+        String name = uri.getAuthority();
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("缺少时移缓存名称：" + uri);
+        return name;
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        switch (property)
+        {
+            case "name":
+            case "version":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return new String[]{"name", "version"};
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        switch (property)
+        {
+            case "name":
+                return "Timeshift Protocol";
+            case "version":
+                return "1.0.0";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.RxChannel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 时移缓存的读者，有独立的读位置，可以按时间或字节位置定位，读到直播点后等待新数据。
+ * <p>
+ * 读取时只等待第一批数据，之后只读取已经写入的数据。读位置被写者超过（数据已被覆盖）时跳到最早的可用位置，并记录超越次数。
+ * <p>
+ * 包长度由写者创建缓存时指定，读位置始终按包对齐。
+ */
+final class TimeshiftRxChannel implements RxChannel
+{
+    private static final long SPIN_NANOS = 20_000L;
+
+    private final TimeshiftStore store;
+    private final ByteBuffer view;
+    private final PacketReader packetReader = new PacketReader(this::read);
+    private final StatsCounters stats = new StatsCounters(packetReader::packetSize);
+    private final int packetSize;
+    private volatile long position;
+    private volatile Thread waiter;
+    private long overruns;
+    private long overrunBytes;
+    private int timeout;
+    private boolean closed;
+
+    TimeshiftRxChannel(TimeshiftStore store)
+    {
+        this.store = store;
+        view = store.view();
+        packetSize = store.packetSize();
+        packetReader.setPacketSize(packetSize);
+        position = store.written(); // 默认从直播点开始
+        timeout = 30000; // 30s
+        closed = false;
+        store.register(this);
+    }
+
+    void wakeUp()
+    {
+        Thread t = waiter;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "source name".equals(property) ||
+               "position".equals(property) ||
+               "start position".equals(property) ||
+               "live position".equals(property) ||
+               "delay".equals(property) ||
+               "capacity".equals(property) ||
+               "overruns".equals(property) ||
+               "timeout".equals(property) ||
+               "packet size".equals(property) ||
+               "convert".equals(property) ||
+               "sync losses".equals(property) ||
+               "skipped bytes".equals(property) ||
+               "pidFilter".equals(property) ||
+               "pidFilter.drops".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"source name", "position", "start position", "live position", "delay",
+                                                    "capacity", "overruns", "timeout", "packet size", "convert",
+                                                    "sync losses", "skipped bytes", "pidFilter", "pidFilter.drops"},
+                                       StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("source name".equals(property))
+            return "timeshift://" + store.name();
+        if ("position".equals(property))
+            return position;
+        if ("start position".equals(property))
+            return store.start();
+        if ("live position".equals(property))
+            return store.written();
+        if ("delay".equals(property))
+            return (position >= store.written()) ? 0L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - store.timeAt(position));
+        if ("capacity".equals(property))
+            return store.capacity();
+        if ("overruns".equals(property))
+            return overruns;
+        if ("timeout".equals(property))
+            return timeout;
+        if ("packet size".equals(property))
+            return packetSize;
+        if ("convert".equals(property))
+            return packetReader.isConvert();
+        if ("sync losses".equals(property))
+            return packetReader.syncLosses();
+        if ("skipped bytes".equals(property))
+            return packetReader.skippedBytes();
+        if ("pidFilter".equals(property))
+            return packetReader.filter().selected();
+        if ("pidFilter.drops".equals(property))
+            return packetReader.filter().drops();
+        return stats.query(property, overrunBytes / packetSize);
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return "seek".equals(command) || "seek offset".equals(command) || "timeout".equals(command) ||
+               "sync".equals(command) || "convert".equals(command) || "pidFilter".equals(command) ||
+               StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return StatsCounters.withStats(new String[]{"seek", "seek offset", "timeout", "sync", "convert", "pidFilter"}, StatsCounters.RESET_COMMAND);
+    }
+
+    @Override
+    public void control(String command, Object... arguments) throws IOException
+    {
+        if ("seek".equals(command))
+            seekBack(toLong(arguments));
+        if ("seek offset".equals(command))
+            seekOffset(toLong(arguments));
+        if ("timeout".equals(command))
+            doSetTimeout(arguments);
+        if ("sync".equals(command))
+            seekOffset(position); // 对齐到包边界，丢弃包读取器中的残留数据
+        if ("convert".equals(command))
+            doSetConvert(arguments);
+        if ("pidFilter".equals(command))
+            packetReader.filter().set(arguments);
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(overrunBytes / packetSize);
+    }
+
+    /**
+     * 跳到指定秒数之前写入的位置，0表示直播点。
+     */
+    void seekBack(long seconds)
+    {
+        if (seconds < 0)
+            throw new IllegalArgumentException("无效的时移时间：" + seconds);
+
+        position = (seconds == 0) ? store.written() : store.offsetAt(System.nanoTime() - TimeUnit.SECONDS.toNanos(seconds));
+        packetReader.reset();
+    }
+
+    /**
+     * 跳到指定的字节位置（按包对齐，并限制在可用范围内），负数表示直播点之前的字节数。
+     */
+    void seekOffset(long offset)
+    {
+        long live = store.written();
+        long target = (offset < 0) ? live + offset : offset;
+        target = Math.min(live, Math.max(store.start(), target));
+        position = align(target);
+        packetReader.reset();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (offset < 0 || buffer.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        return read(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        // 只等待第一批数据，之后只读取已经写入的数据。
+        int received = 0;
+        while (dst.hasRemaining())
+        {
+            if (received > 0 && position >= store.written())
+                break;
+            if (!awaitData())
+                break; // 录制已结束，数据已读完
+
+            long begin = position;
+            int start = dst.position();
+            int n = copy(begin, dst);
+            if (!store.isIntact(begin))
+            {
+                dst.position(start); // 拷贝期间数据被覆盖，本次拷贝作废。
+                overrun();
+                continue;
+            }
+
+            received += n;
+            position = begin + n;
+        }
+
+        if (received == 0 && dst.hasRemaining())
+            return -1;
+        stats.transfer(received);
+        return received;
+    }
+
+    @Override
+    public int readPackets(ByteBuffer dst, int maxPackets) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        return packetReader.readPackets(dst, maxPackets);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!closed)
+        {
+            closed = true;
+            store.unregister(this);
+            store.release();
+        }
+    }
+
+    private int copy(long begin, ByteBuffer dst)
+    {
+        int capacity = store.capacity();
+        int count = (int) Math.min(dst.remaining(), store.written() - begin);
+        int index = (int) (begin % capacity);
+        int first = Math.min(count, capacity - index);
+        view.limit(index + first).position(index);
+        dst.put(view);
+        if (first < count)
+        {
+            view.limit(count - first).position(0);
+            dst.put(view);
+        }
+        return count;
+    }
+
+    /**
+     * 读位置已被写者超过：跳到最早的可用位置。
+     */
+    private void overrun()
+    {
+        long target = align(store.start());
+        overruns++;
+        overrunBytes += Math.max(0, target - position);
+        position = target;
+        packetReader.reset();
+    }
+
+    /**
+     * 等待读位置上的数据。
+     *
+     * @return 是否有数据可读，录制结束且数据读完时返回false。
+     */
+    private boolean awaitData() throws IOException
+    {
+        long t0 = System.nanoTime();
+        try
+        {
+            long spinDeadline = t0 + SPIN_NANOS;
+            long deadline = t0 + timeout * 1000_000L;
+            while (true)
+            {
+                if (position < store.written())
+                {
+                    if (position < store.start())
+                        overrun();
+                    return true;
+                }
+                if (store.isEnded())
+                    return false;
+
+                long now = System.nanoTime();
+                if (now - spinDeadline < 0)
+                {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("接收被中断");
+                if (timeout > 0 && now - deadline >= 0)
+                    throw new SocketTimeoutException("接收超时");
+
+                waiter = Thread.currentThread();
+                if (position >= store.written() && !store.isEnded())
+                {
+                    if (timeout > 0)
+                        LockSupport.parkNanos(this, deadline - now);
+                    else
+                        LockSupport.park(this);
+                }
+                waiter = null;
+            }
+        } finally
+        {
+            stats.blocked(System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * 按包长度向后对齐（不早于给定位置，避免落到已被覆盖的数据上）。
+     */
+    private long align(long offset)
+    {
+        return (offset + packetSize - 1) / packetSize * packetSize;
+    }
+
+    private static long toLong(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Integer)
+            return (int) arg;
+        if (arg instanceof Long)
+            return (long) arg;
+        if (arg instanceof String)
+            return Long.parseLong((String) arg);
+        throw new IllegalArgumentException("无效参数：" + arg);
+    }
+
+    private void doSetTimeout(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        int value = -1;
+        if (arg instanceof Integer)
+            value = (int) arg;
+        if (arg instanceof Long)
+            value = (int) (long) arg;
+        if (arg instanceof String)
+            value = Integer.parseInt((String) arg);
+
+        if (value < 0)
+            throw new IllegalArgumentException("无效超时：" + arg);
+        timeout = value;
+    }
+
+    private void doSetConvert(Object[] arguments)
+    {
+        if (arguments.length == 0)
+            throw new IllegalArgumentException("缺少必要参数");
+
+        Object arg = arguments[0];
+        if (arg instanceof Boolean)
+            packetReader.setConvert((boolean) arg);
+        else if (arg instanceof String)
+            packetReader.setConvert(Boolean.parseBoolean((String) arg));
+        else
+            throw new IllegalArgumentException("无效参数：" + arguments[0]);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 时移缓存：一个写者循环追加数据，任意多个读者各自按时间或字节位置定位，并跟随直播点读取。
+ * <p>
+ * 缓存为定长的环形存储（直接内存或内存映射文件），所有位置都是从录制开始累计的字节数。
+ * 包长度（188/192/204）在创建时指定，缓存大小、写入数据和每次占用的区域都按包对齐，因此回绕位置和索引位置总在包边界上。
+ * 写者先公布将要占用的区域（claimed），再写入数据，最后公布写入位置（written），从不等待读者；
+ * 读者不加锁，直接从缓存拷贝数据，拷贝完成后检查该区域是否已被写者占用（类似seqlock），被占用则本次拷贝作废。
+ * <p>
+ * 写者每隔约10ms记录一次（时间，位置）索引，供读者按时间定位。索引同样是单写者环形数组，读者读取后校验。
+ * <p>
+ * 同名的时移缓存按名称登记，写者和读者都持有引用，最后一个引用释放时注销。
+ */
+final class TimeshiftStore
+{
+    static final int DEFAULT_SIZE_MB = 64;
+    static final int MAX_SIZE_MB = 1024;
+
+    private static final int INDEX_SIZE = 1 << 16; // 约11分钟（按10ms间隔），超出时按缓存起点定位
+    private static final int INDEX_MASK = INDEX_SIZE - 1;
+    private static final long INDEX_INTERVAL_NANOS = 10_000_000L;
+    private static final int CHUNK_PACKETS = 7 * 64; // 单次写入占用的最大区域（包数），避免读者整块作废
+    private static final Map<String, TimeshiftStore> STORES = new HashMap<>();
+
+    private final String name;
+    private final ByteBuffer data; // 写者视图，读者各自使用duplicate
+    private final int capacity;
+    private final int packetSize;
+    private final int maxChunk;
+    private final RandomAccessFile file;
+    private final long[] indexTimes = new long[INDEX_SIZE];
+    private final long[] indexOffsets = new long[INDEX_SIZE];
+    private final List<TimeshiftRxChannel> readers = new CopyOnWriteArrayList<>();
+    private volatile long indexCount;
+    private volatile long claimed;
+    private volatile long written;
+    private volatile boolean ended;
+    private long lastIndexTime;
+    private int references; // 由STORES保护
+
+    private TimeshiftStore(String name, int capacity, int packetSize, File backing) throws IOException
+    {
+        this.name = name;
+        this.packetSize = packetSize;
+        this.capacity = capacity / packetSize * packetSize; // 按包对齐，回绕位置总在包边界上
+        this.maxChunk = packetSize * CHUNK_PACKETS;
+        if (backing == null)
+        {
+            file = null;
+            data = ByteBuffer.allocateDirect(this.capacity);
+        } else
+        {
+            file = new RandomAccessFile(backing, "rw");
+            try
+            {
+                file.setLength(this.capacity);
+                data = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+            } catch (IOException ex)
+            {
+                file.close();
+                throw ex;
+            }
+        }
+        lastIndexTime = System.nanoTime() - INDEX_INTERVAL_NANOS;
+    }
+
+    /**
+     * 创建时移缓存并登记为写者。同名的缓存正在录制时抛出异常；已结束的同名缓存由新缓存替换，原有读者不受影响。
+     *
+     * @param name 名称
+     * @param capacity 缓存大小（字节）
+     * @param packetSize 包长度
+     * @param backing 缓存文件，为null时使用直接内存
+     */
+    static TimeshiftStore create(String name, int capacity, int packetSize, File backing) throws IOException
+    {
+        synchronized (STORES)
+        {
+            TimeshiftStore existing = STORES.get(name);
+            if (existing != null && !existing.ended)
+                throw new IOException("时移缓存正在录制：" + name);
+
+            TimeshiftStore store = new TimeshiftStore(name, capacity, packetSize, backing);
+            store.references = 1;
+            STORES.put(name, store);
+            return store;
+        }
+    }
+
+    /**
+     * 打开已有的时移缓存。
+     */
+    static TimeshiftStore open(String name) throws IOException
+    {
+        synchronized (STORES)
+        {
+            TimeshiftStore store = STORES.get(name);
+            if (store == null)
+                throw new IOException("时移缓存不存在：" + name);
+            store.references++;
+            return store;
+        }
+    }
+
+    void release() throws IOException
+    {
+        synchronized (STORES)
+        {
+            if (--references > 0)
+                return;
+            if (STORES.get(name) == this)
+                STORES.remove(name);
+        }
+        if (file != null)
+            file.close();
+    }
+
+    String name()
+    {
+        return name;
+    }
+
+    int capacity()
+    {
+        return capacity;
+    }
+
+    int packetSize()
+    {
+        return packetSize;
+    }
+
+    long written()
+    {
+        return written;
+    }
+
+    boolean isEnded()
+    {
+        return ended;
+    }
+
+    ByteBuffer view()
+    {
+        return data.duplicate();
+    }
+
+    void register(TimeshiftRxChannel reader)
+    {
+        readers.add(reader);
+    }
+
+    void unregister(TimeshiftRxChannel reader)
+    {
+        readers.remove(reader);
+    }
+
+    /**
+     * 当前仍可读取的最早位置（尚未被写者占用）。
+     */
+    long start()
+    {
+        return Math.max(0, claimed - capacity);
+    }
+
+    /**
+     * 检查从position开始的数据在读取期间是否未被覆盖。
+     */
+    boolean isIntact(long position)
+    {
+        VarHandle.loadLoadFence(); // 先完成数据读取，再读取写者位置。
+        return claimed - capacity <= position;
+    }
+
+    /**
+     * 追加数据（只由写者调用），不等待读者。
+     */
+    void append(ByteBuffer src)
+    {
+        int srcLimit = src.limit();
+        while (src.hasRemaining())
+        {
+            int n = Math.min(src.remaining(), maxChunk);
+            long begin = written;
+            long end = begin + n;
+            claimed = end;
+            VarHandle.storeStoreFence(); // 先公布占用，再改写数据。
+
+            int index = (int) (begin % capacity);
+            int first = Math.min(n, capacity - index);
+            src.limit(src.position() + first);
+            data.position(index);
+            data.put(src);
+            if (first < n)
+            {
+                src.limit(src.position() + (n - first));
+                data.position(0);
+                data.put(src);
+            }
+            src.limit(srcLimit);
+            written = end;
+
+            long now = System.nanoTime();
+            if (now - lastIndexTime >= INDEX_INTERVAL_NANOS)
+            {
+                long count = indexCount;
+                int slot = (int) (count & INDEX_MASK);
+                indexTimes[slot] = now;
+                indexOffsets[slot] = begin;
+                indexCount = count + 1;
+                lastIndexTime = now;
+            }
+        }
+
+        for (TimeshiftRxChannel reader : readers)
+            reader.wakeUp();
+    }
+
+    /**
+     * 结束录制，读者读完剩余数据后得到流结束。
+     */
+    void end()
+    {
+        ended = true;
+        for (TimeshiftRxChannel reader : readers)
+            reader.wakeUp();
+    }
+
+    /**
+     * 按时间定位：返回不晚于指定时刻写入的最后一个索引位置，早于全部可用数据时返回最早位置。
+     *
+     * @param time System.nanoTime时间轴上的时刻
+     */
+    long offsetAt(long time)
+    {
+        while (true)
+        {
+            long count = indexCount;
+            long first = Math.max(0, count - INDEX_SIZE + 1); // 留出正在改写的槽
+            if (first >= count)
+                return start();
+
+            long lo = first;
+            long hi = count - 1;
+            if (indexTimes[(int) (lo & INDEX_MASK)] - time > 0)
+                return start();
+            while (lo < hi)
+            {
+                long mid = (lo + hi + 1) >>> 1;
+                if (indexTimes[(int) (mid & INDEX_MASK)] - time <= 0)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            long offset = indexOffsets[(int) (lo & INDEX_MASK)];
+
+            VarHandle.loadLoadFence();
+            if (first >= indexCount - INDEX_SIZE + 1)
+                return Math.max(offset, start());
+            // 查找期间最早的索引被改写，重新查找。
+        }
+    }
+
+    /**
+     * 按位置查找写入时刻。
+     *
+     * @return 不晚于该位置的最后一个索引的时刻，没有可用索引时返回当前时刻
+     */
+    long timeAt(long position)
+    {
+        while (true)
+        {
+            long count = indexCount;
+            long first = Math.max(0, count - INDEX_SIZE + 1);
+            if (first >= count || indexOffsets[(int) (first & INDEX_MASK)] > position)
+                return System.nanoTime();
+
+            long lo = first;
+            long hi = count - 1;
+            while (lo < hi)
+            {
+                long mid = (lo + hi + 1) >>> 1;
+                if (indexOffsets[(int) (mid & INDEX_MASK)] <= position)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            long time = indexTimes[(int) (lo & INDEX_MASK)];
+
+            VarHandle.loadLoadFence();
+            if (first >= indexCount - INDEX_SIZE + 1)
+                return time;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.TxChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 时移缓存的写者。写入从不等待读者，缓存写满后覆盖最早的数据。
+ */
+final class TimeshiftTxChannel implements TxChannel
+{
+    private final TimeshiftStore store;
+    private final StatsCounters stats;
+    private boolean closed;
+
+    TimeshiftTxChannel(TimeshiftStore store)
+    {
+        this.store = store;
+        stats = new StatsCounters(store::packetSize);
+        closed = false;
+    }
+
+    @Override
+    public boolean hasProperty(String property)
+    {
+        return "target name".equals(property) ||
+               "capacity".equals(property) ||
+               "packet size".equals(property) ||
+               "start position".equals(property) ||
+               "live position".equals(property) ||
+               StatsCounters.isProperty(property);
+    }
+
+    @Override
+    public String[] getPropertyList()
+    {
+        return StatsCounters.withStats(new String[]{"target name", "capacity", "packet size", "start position", "live position"}, StatsCounters.PROPERTIES);
+    }
+
+    @Override
+    public Object query(String property)
+    {
+        if ("target name".equals(property))
+            return "timeshift://" + store.name();
+        if ("capacity".equals(property))
+            return store.capacity();
+        if ("packet size".equals(property))
+            return store.packetSize();
+        if ("start position".equals(property))
+            return store.start();
+        if ("live position".equals(property))
+            return store.written();
+        return stats.query(property, 0);
+    }
+
+    @Override
+    public boolean hasCommand(String command)
+    {
+        return StatsCounters.RESET_COMMAND.equals(command);
+    }
+
+    @Override
+    public String[] getCommandList()
+    {
+        return new String[]{StatsCounters.RESET_COMMAND};
+    }
+
+    @Override
+    public void control(String command, Object... arguments)
+    {
+        if (StatsCounters.RESET_COMMAND.equals(command))
+            stats.reset(0);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        if (offset < 0 || bytes.length - offset < length)
+            throw new IllegalArgumentException("无效的偏移量：" + offset);
+
+        write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException
+    {
+        if (closed)
+            throw new IOException("通道已关闭");
+
+        int packetSize = store.packetSize();
+        if (src.remaining() % packetSize != 0)
+            throw new IllegalArgumentException("数据长度必须为" + packetSize + "字节的整数倍");
+        stats.transfer(src.remaining());
+        store.append(src);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!closed)
+        {
+            closed = true;
+            store.end();
+            store.release();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 资源描述（URI）中的查询参数，格式为：{@code ?name1=value1&name2=value2}。
+ */
+final class UriParameters
+{
+    private final Map<String, String> values;
+
+    private UriParameters(Map<String, String> values)
+    {
+        this.values = values;
+    }
+
+    static UriParameters of(URI uri)
+    {
+        Map<String, String> values = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (query != null && !query.isEmpty())
+        {
+            for (String pair : query.split("&"))
+            {
+                if (pair.isEmpty())
+                    continue;
+
+                int idx = pair.indexOf('=');
+                String name = (idx < 0) ? pair : pair.substring(0, idx);
+                String value = (idx < 0) ? "" : pair.substring(idx + 1);
+                values.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                           URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+        return new UriParameters(values);
+    }
+
+    boolean contains(String name)
+    {
+        return values.containsKey(name);
+    }
+
+    String get(String name)
+    {
+        return values.get(name);
+    }
+
+    String get(String name, String defaultValue)
+    {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    boolean getBoolean(String name, boolean defaultValue)
+    {
+        String value = values.get(name);
+        if (value == null)
+            return defaultValue;
+        if (value.isEmpty())
+            return true; // 只给出参数名（如：?mmap），视为开启。
+        return Boolean.parseBoolean(value) || "1".equals(value) || "yes".equalsIgnoreCase(value);
+    }
+
+    int getInt(String name, int defaultValue)
+    {
+        String value = values.get(name);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+
+        try
+        {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("无效参数：" + name + "=" + value);
+        }
+    }
+}
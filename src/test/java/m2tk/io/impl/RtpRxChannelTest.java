@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) M2TK Project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package m2tk.io.impl;
+
+import m2tk.io.ProtocolManager;
+import m2tk.io.RxChannel;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 双路（2022-7）接收：领先的一路丢包时，应等到落后的一路补上，而不是按抖动窗口判定丢失。
+ */
+public class RtpRxChannelTest
+{
+    private static final String LEG1 = "239.8.8.20";
+    private static final String LEG2 = "239.8.8.21";
+    private static final int PORT = 17300;
+    private static final int DATAGRAMS = 200;
+    private static final int DROPPED = 50;
+    private static final int LEG2_DELAY_MILLIS = 100; // 大于抖动窗口（20ms），小于抖动窗口加时延差（220ms）
+
+    @Test
+    public void recoversPacketDroppedOnLeadingLegFromLaggingLeg() throws Exception
+    {
+        NetworkInterface lo = NetworkInterface.getByName("lo");
+        Assume.assumeTrue("需要本地环回接口", lo != null);
+
+        RxChannel rx = ProtocolManager.openRxChannel("rtp://" + LEG1 + ":" + PORT +
+                                                     "?nif=lo&jitter=20&leg2=" + LEG2 + "&nif2=lo&skew=200");
+        try (MulticastSocket socket = new MulticastSocket())
+        {
+            socket.setNetworkInterface(lo);
+            rx.control("timeout", 1000);
+
+            Thread leading = sender(socket, LEG1, 0, DROPPED);
+            Thread lagging = sender(socket, LEG2, LEG2_DELAY_MILLIS, -1);
+            leading.start();
+            lagging.start();
+
+            ByteBuffer buf = ByteBuffer.allocate(188 * 7);
+            int expected = 0;
+            int gaps = 0;
+            while (expected < DATAGRAMS * 7)
+            {
+                buf.clear();
+                int n;
+                try
+                {
+                    n = rx.readPackets(buf, 7);
+                } catch (SocketTimeoutException ex)
+                {
+                    break;
+                }
+                for (int i = 0; i < n; i++)
+                {
+                    int value = buf.getInt(i * 188 + 4);
+                    if (value != expected)
+                        gaps++;
+                    expected = value + 1;
+                }
+            }
+            leading.join();
+            lagging.join();
+
+            assertEquals(0, gaps);
+            assertEquals(DATAGRAMS * 7, expected);
+            assertEquals(0L, rx.query("rtp lost"));
+        } finally
+        {
+            rx.close();
+        }
+    }
+
+    private static Thread sender(MulticastSocket socket, String group, int delayMillis, int dropped) throws IOException
+    {
+        InetAddress address = InetAddress.getByName(group);
+        return new Thread(() -> {
+            try
+            {
+                Thread.sleep(200 + delayMillis); // 等待接收端加入组播组
+                for (int seq = 0; seq < DATAGRAMS; seq++)
+                {
+                    if (seq != dropped)
+                    {
+                        byte[] data = datagram(seq);
+                        socket.send(new DatagramPacket(data, data.length, address, PORT));
+                    }
+                    Thread.sleep(1);
+                }
+            } catch (IOException | InterruptedException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    private static byte[] datagram(int seq)
+    {
+        byte[] data = new byte[12 + 7 * 188];
+        data[0] = (byte) 0x80;
+        data[1] = 33; // MP2T
+        data[2] = (byte) (seq >> 8);
+        data[3] = (byte) seq;
+        for (int i = 0; i < 7; i++)
+        {
+            int offset = 12 + i * 188;
+            data[offset] = 0x47;
+            data[offset + 1] = 0x01;
+            data[offset + 3] = 0x10;
+            ByteBuffer.wrap(data, offset + 4, 4).putInt(seq * 7 + i); // 包序号，用于检查连续性
+        }
+        return data;
+    }
+}